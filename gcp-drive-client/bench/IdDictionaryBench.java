@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.acloudysky.drive.IdDictionary;
+
+/***
+ * Compares the heap retained by an ID dictionary made of a HashMap and a list of strings, and by the off-heap
+ * {@link IdDictionary}, then the time taken to reopen the mapped dictionary. Each variant interns the same IDs, and the heap
+ * is measured after a full collection, along with the total time spent in the collector. Run it as a single source file with
+ * the client classes and its dependencies on the class path:
+ * <pre>
+ * java -Xmx4g -cp target/classes:$(cat target/cp.txt) bench/IdDictionaryBench.java [IDS] [DIRECTORY]
+ * </pre>
+ * @author Michael
+ *
+ */
+public class IdDictionaryBench {
+
+	public static void main(String[] args) throws IOException {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		File directory = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+		System.out.println(String.format("%-24s %12s %12s %10s", "variant", "heap MB", "GC ms", "ms"));
+
+		long gc = gcTime();
+		long start = System.nanoTime();
+		Map<String, Integer> handles = new HashMap<>();
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			String id = id(i);
+			handles.put(id, ids.size());
+			ids.add(id);
+		}
+		report("HashMap", start, gc);
+		if (handles.get(id(count / 2)) != count / 2)
+			throw new IllegalStateException();
+		handles = null;
+		ids = null;
+
+		File file = new File(directory, "bench_id_dictionary");
+		gc = gcTime();
+		start = System.nanoTime();
+		try (IdDictionary dictionary = new IdDictionary(file)) {
+			for (int i = 0; i < count; i++)
+				dictionary.intern(id(i));
+			report("IdDictionary", start, gc);
+		}
+
+		gc = gcTime();
+		start = System.nanoTime();
+		try (IdDictionary dictionary = new IdDictionary(file)) {
+			report("IdDictionary reopened", start, gc);
+			if (dictionary.lookup(id(count / 2)) != count / 2)
+				throw new IllegalStateException();
+		}
+		for (String suffix : new String[] { "", ".strings", ".table" })
+			new File(file.getPath() + suffix).delete();
+	}
+
+	// A 33 character ID, like most of the Drive file IDs.
+	private static String id(int i) {
+		StringBuilder id = new StringBuilder("1a2b3c4d5e6f7g8h9i0jAbCdE");
+		String number = Integer.toString(i);
+		for (int pad = number.length(); pad < 8; pad++)
+			id.append('0');
+		return id.append(number).toString();
+	}
+
+	private static void report(String name, long start, long gc) {
+		long elapsed = System.nanoTime() - start;
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+		System.out.println(String.format("%-24s %12d %12d %10d", name, heap >> 20, gcTime() - gc, elapsed / 1_000_000));
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, collector.getCollectionTime());
+		return time;
+	}
+
+}
@@ -0,0 +1,138 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import com.acloudysky.drive.FileRecord;
+import com.acloudysky.drive.IdDictionary;
+import com.acloudysky.drive.StreamingListParser;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.model.Comment;
+import com.google.api.services.drive.model.CommentList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+/***
+ * Compares the bytes allocated to parse a page of 1000 files, and a page of 1000 comments, with the materialized parse used by
+ * <i>execute()</i> and with the {@link StreamingListParser}. The comments are also displayed as listComments used to do, by
+ * pretty-printing the whole list into a buffer, and as it does now, by writing each comment to the console as it is read.
+ * <b>Note</b>. Both parses build one model object per item, so the bytes allocated for the files are close; the difference
+ * is that the streaming parse never holds more than one item, while the materialized page keeps all of them reachable.
+ * The files are also read as {@link FileRecord}s, which builds neither the File nor its map of fields.
+ * The allocations are measured with the per-thread counters of the JVM, after a warm-up. Run it as a single source file
+ * with the client classes and its dependencies on the class path:
+ * <pre>
+ * mvn -q dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:$(cat target/cp.txt) bench/ListParseBench.java [ITERATIONS]
+ * </pre>
+ * @author Michael
+ *
+ */
+public class ListParseBench {
+
+	private final static int ITEMS = 1000;
+	private final static JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+	private final static com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	// Consumed by the visitors so the parse cannot be optimized away.
+	private static long sink;
+	// Stands for the console the comments are displayed on.
+	private final static OutputStream console = new OutputStream() {
+		@Override
+		public void write(int b) {
+			sink++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			sink += length;
+		}
+	};
+
+	private interface Parse {
+		void run(byte[] page) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		byte[] files = filesPage();
+		byte[] comments = commentsPage();
+
+		System.out.println(String.format("%-32s %14s %10s", "variant", "bytes/page", "ms/page"));
+		measure("files: materialized", files, iterations, page -> {
+			FileList list = jsonFactory.fromInputStream(new ByteArrayInputStream(page), FileList.class);
+			for (File file : list.getFiles())
+				sink += file.getName().length();
+		});
+		measure("files: streaming", files, iterations, page ->
+			StreamingListParser.parse(jsonFactory, new ByteArrayInputStream(page), "files", File.class,
+					file -> sink += file.getName().length()));
+		IdDictionary ids = new IdDictionary();
+		measure("files: streaming records", files, iterations, page ->
+			StreamingListParser.parse(jsonFactory, new ByteArrayInputStream(page), "files",
+					parser -> FileRecord.read(parser, ids), record -> sink += record.getName().length()));
+		measure("comments: pretty-print all", comments, iterations, page -> {
+			CommentList list = jsonFactory.fromInputStream(new ByteArrayInputStream(page), CommentList.class);
+			StringBuilder buffer = new StringBuilder();
+			buffer.append(list.toPrettyString());
+			console.write(buffer.toString().getBytes(StandardCharsets.UTF_8));
+		});
+		measure("comments: streaming", comments, iterations, page -> {
+			JsonGenerator generator = jsonFactory.createJsonGenerator(console, StandardCharsets.UTF_8);
+			generator.enablePrettyPrint();
+			StreamingListParser.parse(jsonFactory, new ByteArrayInputStream(page), "comments", Comment.class, comment -> {
+				generator.serialize(comment);
+				generator.flush();
+			});
+		});
+	}
+
+	private static void measure(String name, byte[] page, int iterations, Parse parse) throws IOException {
+
+		// Warm up.
+		for (int i = 0; i < iterations; i++)
+			parse.run(page);
+
+		long thread = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			parse.run(page);
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		System.out.println(String.format("%-32s %14d %10.3f", name, allocated / iterations, elapsed / 1e6 / iterations));
+	}
+
+	private static byte[] filesPage() {
+		StringBuilder body = new StringBuilder("{\"kind\":\"drive#fileList\",\"incompleteSearch\":false,\"files\":[");
+		for (int i = 0; i < ITEMS; i++) {
+			if (i > 0)
+				body.append(',');
+			body.append(String.format("{\"id\":\"1a2b3c4d5e6f7g8h9i0j%08d\",\"name\":\"file%d.txt\","
+					+ "\"parents\":[\"0BxFolderIdentifier0000000\"],\"size\":\"%d\",\"md5Checksum\":\"%032x\","
+					+ "\"modifiedTime\":\"2017-09-22T16:56:00.000Z\",\"mimeType\":\"text/plain\"}", i, i, i * 17, i));
+		}
+		body.append("],\"nextPageToken\":\"next\"}");
+		return body.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] commentsPage() {
+		StringBuilder body = new StringBuilder("{\"kind\":\"drive#commentList\",\"comments\":[");
+		for (int i = 0; i < ITEMS; i++) {
+			if (i > 0)
+				body.append(',');
+			body.append(String.format("{\"id\":\"AAAA%06d\",\"htmlContent\":\"Comment number %d on this document\","
+					+ "\"content\":\"Comment number %d on this document\",\"createdTime\":\"2017-09-22T16:56:00.000Z\","
+					+ "\"author\":{\"displayName\":\"Someone %d\",\"me\":false},\"resolved\":false}", i, i, i, i));
+		}
+		body.append("]}");
+		return body.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+}
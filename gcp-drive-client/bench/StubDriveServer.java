@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/***
+ * Minimal stand-in for the Drive v3 REST API used by the startup benchmark.
+ * It answers the files.list request with a fixed page of files so the client can complete a listing
+ * without network access or credentials. Run it as a single source file:
+ * <pre>
+ * java bench/StubDriveServer.java 8099
+ * </pre>
+ * and run the client through StubLauncher with http://127.0.0.1:8099/ as the root URL.
+ * @author Michael
+ *
+ */
+public class StubDriveServer {
+
+	private final static int FILES = 10;
+
+	public static void main(String[] args) throws IOException {
+
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8099;
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/drive/v3/files", StubDriveServer::listFiles);
+		server.start();
+		System.out.println(String.format("Stub Drive server listening on 127.0.0.1:%d", port));
+	}
+
+	/**
+	 * Answers files.list with one page of files.
+	 */
+	private static void listFiles(HttpExchange exchange) throws IOException {
+
+		StringBuilder body = new StringBuilder("{\"files\": [");
+		for (int i = 0; i < FILES; i++) {
+			if (i > 0)
+				body.append(',');
+			body.append(String.format("{\"id\": \"stub%024d\", \"name\": \"file%d.txt\", \"mimeType\": \"text/plain\", "
+					+ "\"parents\": [\"root\"], \"size\": \"%d\", \"modifiedTime\": \"2017-09-22T16:56:00.000Z\"}", i, i, 1024 * i));
+		}
+		body.append("]}");
+
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.acloudysky.drive;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+
+/***
+ * Runs a {@link CommandLine} command with an unauthenticated client which sends the requests to the local
+ * {@code StubDriveServer}, so the startup benchmark and the AppCDS training run need neither credentials nor network.
+ * It is compiled by the bench scripts against target/drive.jar, and is not part of the application:
+ * <pre>
+ * java -cp target/drive.jar:target/bench-classes com.acloudysky.drive.StubLauncher http://127.0.0.1:8099/ ls --limit 10
+ * </pre>
+ * @author Michael
+ *
+ */
+public class StubLauncher {
+
+	public static void main(String[] args) {
+
+		if (args.length < 2) {
+			System.err.println("usage: StubLauncher ROOTURL COMMAND [ARGS...]");
+			System.exit(CommandLine.EXIT_USAGE);
+		}
+		Drive client = new Drive.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+				.setRootUrl(args[0])
+				.setApplicationName("google-drive-client")
+				.build();
+		Main.initServiceClients(client);
+		System.exit(new CommandLine(System.out, System.err).run(java.util.Arrays.copyOfRange(args, 1, args.length)));
+	}
+}
@@ -0,0 +1,25 @@
+#!/bin/sh
+# Dumps the AppCDS archive at the end of a training run that lists the stub server files.
+# The run goes through StubLauncher, compiled into bench-classes next to the JAR, so the archive matches
+# the class path used by startup-bench.sh.
+# Usage: cds-training.sh DRIVE_JAR ARCHIVE
+# Invoked by the fast-start Maven profile.
+set -e
+
+JAR="$1"
+ARCHIVE="$2"
+PORT="${STUB_PORT:-8099}"
+BENCH_DIR="$(cd "$(dirname "$0")" && pwd)"
+CLASSES="$(dirname "$JAR")/bench-classes"
+
+mkdir -p "$CLASSES"
+javac -nowarn -cp "$JAR" -d "$CLASSES" "$BENCH_DIR/StubLauncher.java"
+
+java "$BENCH_DIR/StubDriveServer.java" "$PORT" &
+STUB_PID=$!
+trap 'kill $STUB_PID 2>/dev/null' EXIT
+sleep 2
+
+java -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$JAR:$CLASSES" com.acloudysky.drive.StubLauncher \
+	"http://127.0.0.1:$PORT/" ls --limit 10 > /dev/null
+echo "CDS archive written to $ARCHIVE"
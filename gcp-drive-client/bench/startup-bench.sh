@@ -0,0 +1,60 @@
+#!/bin/sh
+# Compares the time to the first completed listing of the plain JVM, the JVM with the AppCDS archive
+# and the native binary. Each variant runs "drive ls" against the local stub server RUNS times and the
+# median wall time is reported in milliseconds.
+# The commands run through StubLauncher, which sends the requests to the stub server; the native variant is
+# built from it with native-image, when available, as target/drive-bench.
+# Build first with: mvn -Pfast-start package
+# Usage: bench/startup-bench.sh [RUNS]
+set -e
+
+RUNS="${1:-10}"
+PORT="${STUB_PORT:-8099}"
+BENCH_DIR="$(cd "$(dirname "$0")" && pwd)"
+TARGET="$BENCH_DIR/../target"
+ROOT_URL="http://127.0.0.1:$PORT/"
+CLASSES="$TARGET/bench-classes"
+CLASS_PATH="$TARGET/drive.jar:$CLASSES"
+LAUNCHER="com.acloudysky.drive.StubLauncher"
+
+mkdir -p "$CLASSES"
+javac -nowarn -cp "$TARGET/drive.jar" -d "$CLASSES" "$BENCH_DIR/StubLauncher.java"
+
+java "$BENCH_DIR/StubDriveServer.java" "$PORT" &
+STUB_PID=$!
+trap 'kill $STUB_PID 2>/dev/null' EXIT
+sleep 2
+
+# Runs the command RUNS times and prints the median elapsed time.
+measure() {
+	name="$1"
+	shift
+	times=""
+	i=0
+	while [ "$i" -lt "$RUNS" ]; do
+		start=$(date +%s%N)
+		"$@" ls --limit 10 > /dev/null
+		end=$(date +%s%N)
+		times="$times $(( (end - start) / 1000000 ))"
+		i=$((i + 1))
+	done
+	median=$(echo $times | tr ' ' '\n' | sort -n | awk '{ a[NR] = $1 } END { print a[int((NR + 1) / 2)] }')
+	printf "%-10s median %5d ms over %d runs\n" "$name" "$median" "$RUNS"
+}
+
+measure "jvm" java -cp "$CLASS_PATH" "$LAUNCHER" "$ROOT_URL"
+
+if [ -f "$TARGET/drive.jsa" ]; then
+	measure "appcds" java -XX:SharedArchiveFile="$TARGET/drive.jsa" -cp "$CLASS_PATH" "$LAUNCHER" "$ROOT_URL"
+else
+	echo "appcds     skipped: $TARGET/drive.jsa not found"
+fi
+
+if [ ! -x "$TARGET/drive-bench" ] && command -v native-image > /dev/null; then
+	native-image --no-fallback --enable-url-protocols=http -cp "$CLASS_PATH" "$LAUNCHER" "$TARGET/drive-bench" > /dev/null
+fi
+if [ -x "$TARGET/drive-bench" ]; then
+	measure "native" "$TARGET/drive-bench" "$ROOT_URL"
+else
+	echo "native     skipped: native-image not found"
+fi
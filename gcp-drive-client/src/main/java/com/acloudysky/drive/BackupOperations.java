@@ -0,0 +1,503 @@
+package com.acloudysky.drive;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Revision;
+import com.google.api.services.drive.model.RevisionList;
+
+/***
+ * Contains the methods which back up a Drive folder, and its subfolders, into a local content-addressed store, downloading only
+ * the files which changed since the previous backup.
+ * The store is a local directory holding:
+ * <ul>
+ * 	<li><i>objects/</i>: the contents, each stored once in a file named after its SHA-256 hash, such as objects/9f/9f86d0...;</li>
+ * 	<li><i>backup_index.json</i>: the files of the last backup, keyed by file ID, with their path, revision and object;</li>
+ * 	<li><i>snapshots/</i>: a copy of the index for each backup, such as snapshots/20171002T020000Z.json.</li>
+ * </ul>
+ * A file has changed if its <i>md5Checksum</i> or its <i>headRevisionId</i> differ from the index. The Google documents have
+ * neither: when their modification time changed, their last revision is read with revisions.list and they are exported again,
+ * into the first default format of {@link ExportOperations}, only if it is a new revision or if the Drive refuses the revisions,
+ * as it may to a viewer.
+ * A changed file whose MD5 checksum is already in the store, such as a copy or a moved file, is not downloaded again; the other
+ * changed files are downloaded in parallel and hashed while they are written, then stored under their hash, so identical
+ * contents are stored once.
+ * <b>Note</b>. A file which could not be downloaded keeps its previous entry, so the next backup tries it again.
+ * @author Michael
+ *
+ */
+public class BackupOperations {
+
+	// The index of the last backup, in the store.
+	final static String INDEXFILE = "backup_index.json";
+	final static String OBJECTS_DIR = "objects";
+	final static String SNAPSHOTS_DIR = "snapshots";
+
+	private final static int PAGE_SIZE = 1000;
+	private final static int FORBIDDEN = 403;
+	private final static int NOT_FOUND = 404;
+	private final static String FILE_FIELDS = "id, name, mimeType, size, md5Checksum, headRevisionId, modifiedTime";
+
+	private final static JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	/***
+	 * The files of a backup.
+	 */
+	public static class BackupIndex extends GenericJson {
+
+		@Key("folder")
+		private String folder;
+
+		@Key("time")
+		private Long time;
+
+		// Keyed by file ID.
+		@Key("files")
+		private Map<String, FileEntry> files = new HashMap<>();
+
+		// The objects of the downloaded files, keyed by their MD5 checksum.
+		@Key("md5Objects")
+		private Map<String, String> md5Objects = new HashMap<>();
+
+		public Map<String, FileEntry> getFiles() {
+			return files;
+		}
+	}
+
+	/***
+	 * A file of a backup.
+	 */
+	public static class FileEntry extends GenericJson {
+
+		// The path relative to the backed up folder, such as reports/2017/budget.xlsx.
+		@Key("path")
+		private String path;
+
+		@Key("mimeType")
+		private String mimeType;
+
+		@Key("modifiedTime")
+		private Long modifiedTime;
+
+		@Key("md5Checksum")
+		private String md5Checksum;
+
+		// The headRevisionId, or the last revision of a Google document.
+		@Key("revision")
+		private String revision;
+
+		// The SHA-256 hash of the stored content.
+		@Key("object")
+		private String object;
+
+		@Key("size")
+		private Long size;
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getObject() {
+			return object;
+		}
+	}
+
+	/***
+	 * The outcome of a backup.
+	 */
+	public static class Result extends GenericJson {
+
+		@Key("files")
+		private int files;
+
+		@Key("unchanged")
+		private int unchanged;
+
+		@Key("downloaded")
+		private int downloaded;
+
+		// Changed files whose content was already in the store.
+		@Key("deduplicated")
+		private int deduplicated;
+
+		// Files which cannot be backed up, such as forms and shortcuts.
+		@Key("skipped")
+		private int skipped;
+
+		@Key("failed")
+		private int failed;
+
+		@Key("bytes")
+		private long bytes;
+
+		@Key("snapshot")
+		private String snapshot;
+
+		public int getFailed() {
+			return failed;
+		}
+	}
+
+	/**
+	 * Initializes the service client used to back up the folders.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initBackupOperations(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Backs up the specified folder into the store.
+	 * @param folderId The ID of the folder.
+	 * @param store The local store directory; it is created if it does not exist.
+	 * @param parallelism The number of folders listed and files downloaded at the same time.
+	 * @return The outcome of the backup.
+	 * @throws IOException The folder could not be listed or the index could not be written.
+	 */
+	public static Result backup(String folderId, java.io.File store, int parallelism) throws IOException {
+
+		java.io.File objects = new java.io.File(store, OBJECTS_DIR);
+		java.io.File snapshots = new java.io.File(store, SNAPSHOTS_DIR);
+		if (!objects.isDirectory() && !objects.mkdirs() || !snapshots.isDirectory() && !snapshots.mkdirs())
+			throw new IOException(String.format("%s cannot be created", store.getPath()));
+
+		BackupIndex previous = readIndex(store);
+		BackupIndex index = new BackupIndex();
+		index.folder = folderId;
+		index.time = System.currentTimeMillis();
+		index.files = new ConcurrentHashMap<>();
+		index.md5Objects = new ConcurrentHashMap<>(previous.md5Objects);
+
+		Result result = new Result();
+		AtomicInteger unchanged = new AtomicInteger();
+		AtomicInteger downloaded = new AtomicInteger();
+		AtomicInteger deduplicated = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		AtomicLong bytes = new AtomicLong();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+		try {
+			Map<String, File> files = walk(folderId, executor);
+			result.files = files.size();
+
+			List<Future<?>> tasks = new ArrayList<>();
+			// The files whose content is being downloaded for another file of this backup, keyed by path.
+			Map<String, File> copies = new HashMap<>();
+			Map<String, String> scheduled = new HashMap<>();
+			for (Map.Entry<String, File> listed : files.entrySet()) {
+				String path = listed.getKey();
+				File file = listed.getValue();
+				FileEntry entry = previous.files.get(file.getId());
+				boolean document = ExportOperations.DEFAULT_FORMATS.containsKey(file.getMimeType());
+
+				if (file.getMd5Checksum() == null && !document) {
+					result.skipped++;
+					continue;
+				}
+				if (entry != null && isUnchanged(entry, file, objects)) {
+					index.files.put(file.getId(), moved(entry, path));
+					unchanged.incrementAndGet();
+					continue;
+				}
+				String object = file.getMd5Checksum() == null ? null : index.md5Objects.get(file.getMd5Checksum());
+				if (object != null && objectFile(objects, object).exists()) {
+					index.files.put(file.getId(), newEntry(path, file, file.getHeadRevisionId(), object));
+					deduplicated.incrementAndGet();
+					continue;
+				}
+				if (file.getMd5Checksum() != null && scheduled.putIfAbsent(file.getMd5Checksum(), path) != null) {
+					copies.put(path, file);
+					continue;
+				}
+
+				tasks.add(executor.submit(() -> {
+					try {
+						String revision = file.getHeadRevisionId();
+						if (document) {
+							revision = lastRevision(file.getId());
+							// Only the modification time changed, such as for a rename.
+							if (entry != null && revision != null && revision.equals(entry.revision)
+									&& objectFile(objects, entry.object).exists()) {
+								FileEntry same = moved(entry, path);
+								same.modifiedTime = file.getModifiedTime().getValue();
+								index.files.put(file.getId(), same);
+								unchanged.incrementAndGet();
+								return null;
+							}
+						}
+						java.io.File tmpFile = java.io.File.createTempFile("backup", ".part", objects);
+						try {
+							String hash = download(file, document, tmpFile);
+							bytes.addAndGet(tmpFile.length());
+							java.io.File objectFile = objectFile(objects, hash);
+							objectFile.getParentFile().mkdirs();
+							// Identical contents are stored once.
+							if (!objectFile.exists())
+								Files.move(tmpFile.toPath(), objectFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+							if (file.getMd5Checksum() != null)
+								index.md5Objects.put(file.getMd5Checksum(), hash);
+							index.files.put(file.getId(), newEntry(path, file, revision, hash));
+							downloaded.incrementAndGet();
+						}
+						finally {
+							tmpFile.delete();
+						}
+					}
+					catch (IOException e) {
+						failed.incrementAndGet();
+						// Keep the previous version, so the file is tried again by the next backup.
+						if (entry != null)
+							index.files.put(file.getId(), entry);
+						System.err.println(String.format("Error occurred: %s: %s", path, e.getMessage()));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> task : tasks)
+				await(task);
+
+			for (Map.Entry<String, File> copy : copies.entrySet()) {
+				File file = copy.getValue();
+				String object = index.md5Objects.get(file.getMd5Checksum());
+				if (object != null) {
+					index.files.put(file.getId(), newEntry(copy.getKey(), file, file.getHeadRevisionId(), object));
+					deduplicated.incrementAndGet();
+				}
+				else {
+					// The download of the other file failed.
+					failed.incrementAndGet();
+					FileEntry entry = previous.files.get(file.getId());
+					if (entry != null)
+						index.files.put(file.getId(), entry);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		result.unchanged = unchanged.get();
+		result.downloaded = downloaded.get();
+		result.deduplicated = deduplicated.get();
+		result.failed = failed.get();
+		result.bytes = bytes.get();
+
+		index.files = new HashMap<>(index.files);
+		index.md5Objects = new HashMap<>(index.md5Objects);
+		index.setFactory(jsonFactory);
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		java.io.File snapshot = new java.io.File(snapshots, format.format(new Date(index.time)) + ".json");
+		write(index, snapshot);
+		write(index, new java.io.File(store, INDEXFILE));
+		result.snapshot = snapshot.getPath();
+		result.setFactory(jsonFactory);
+		if (Utility.isDEBUG())
+			System.out.println(String.format("Backup of %s: %s", folderId, result));
+		return result;
+	}
+
+	/**
+	 * Reads the index of the last backup of the store.
+	 * @param store The local store directory.
+	 * @return The index; an empty index if the store has none.
+	 * @throws IOException The index could not be read.
+	 */
+	public static BackupIndex readIndex(java.io.File store) throws IOException {
+		java.io.File indexFile = new java.io.File(store, INDEXFILE);
+		if (!indexFile.exists())
+			return new BackupIndex();
+		try (java.io.InputStream in = new java.io.FileInputStream(indexFile)) {
+			BackupIndex index = jsonFactory.fromInputStream(in, StandardCharsets.UTF_8, BackupIndex.class);
+			if (index.files == null)
+				index.files = new HashMap<>();
+			if (index.md5Objects == null)
+				index.md5Objects = new HashMap<>();
+			return index;
+		}
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * Lists the files under the folder, keyed by path; the folders of each level are listed in parallel.
+	 */
+	private static Map<String, File> walk(String folderId, ExecutorService executor) throws IOException {
+
+		Map<String, File> files = new ConcurrentHashMap<>();
+		Map<String, String> level = new HashMap<>();
+		level.put(folderId, "");
+		while (!level.isEmpty()) {
+			Map<String, String> next = new ConcurrentHashMap<>();
+			List<Future<?>> listings = new ArrayList<>();
+			for (Map.Entry<String, String> folder : level.entrySet()) {
+				listings.add(executor.submit(() -> {
+					String pageToken = null;
+					do {
+						Drive.Files.List request = authenticatedClient.files().list()
+								.setQ(DriveQuery.inParents(folder.getKey()).and(DriveQuery.trashed(false)).toString())
+								.setPageSize(PAGE_SIZE)
+								.setSpaces("drive")
+								.setFields(String.format("nextPageToken, files(%s)", FILE_FIELDS))
+								.setPageToken(pageToken);
+						pageToken = StreamingListParser.list(request, "files", File.class, file -> {
+							String path = folder.getValue() + file.getName().replace('/', '_');
+							if (FolderOperations.FOLDER_MIME_TYPE.equals(file.getMimeType()))
+								next.put(file.getId(), path + "/");
+							// Drive allows several files with the same name: the ID tells them apart.
+							else if (files.putIfAbsent(path, file) != null)
+								files.put(path + "~" + file.getId(), file);
+						});
+					} while (pageToken != null);
+					return null;
+				}));
+			}
+			for (Future<?> listing : listings)
+				await(listing);
+			level = next;
+		}
+		return files;
+	}
+
+	private static boolean isUnchanged(FileEntry entry, File file, java.io.File objects) {
+		if (entry.object == null || !objectFile(objects, entry.object).exists())
+			return false;
+		if (file.getMd5Checksum() != null)
+			return file.getMd5Checksum().equals(entry.md5Checksum)
+					&& (file.getHeadRevisionId() == null || file.getHeadRevisionId().equals(entry.revision));
+		return file.getModifiedTime() != null && entry.modifiedTime != null
+				&& file.getModifiedTime().getValue() == entry.modifiedTime;
+	}
+
+	/**
+	 * Gets the last revision of a file, reading all the pages of revisions.list.
+	 * @return The ID of the last revision; null if the revisions cannot be read.
+	 */
+	private static String lastRevision(String fileId) throws IOException {
+		String revision = null;
+		String pageToken = null;
+		do {
+			RevisionList revisions;
+			try {
+				revisions = DriveClientPool.route(authenticatedClient, fileId).revisions().list(fileId)
+						.setPageSize(PAGE_SIZE)
+						.setFields("nextPageToken, revisions(id)")
+						.setPageToken(pageToken)
+						.execute();
+			}
+			catch (HttpResponseException e) {
+				// The Drive may refuse the revisions to a viewer without the edit rights: the document is exported again.
+				if (e.getStatusCode() != FORBIDDEN && e.getStatusCode() != NOT_FOUND)
+					throw e;
+				return null;
+			}
+			List<Revision> page = revisions.getRevisions();
+			if (page != null && !page.isEmpty())
+				revision = page.get(page.size() - 1).getId();
+			pageToken = revisions.getNextPageToken();
+		} while (pageToken != null);
+		return revision;
+	}
+
+	/**
+	 * Downloads, or exports, the file content into the specified file and hashes it in the same pass.
+	 * The downloaded content is verified against the MD5 checksum of the file; a mismatch fails the file, which is
+	 * downloaded again by the next backup.
+	 * @return The SHA-256 hash of the content.
+	 */
+	private static String download(File file, boolean document, java.io.File target) throws IOException {
+		StreamingChecksum checksum = new StreamingChecksum(true);
+		TransferScheduler scheduler = FileOperations.getTransferScheduler();
+		TransferScheduler.Transfer transfer = scheduler.open(target.getPath(), 1);
+		try (OutputStream out = checksum.wrap(scheduler.throttle(new FileOutputStream(target), transfer))) {
+			if (document)
+				DriveClientPool.route(authenticatedClient, file.getId()).files().export(file.getId(), ExportOperations.DEFAULT_FORMATS.get(file.getMimeType()).get(0))
+						.executeMediaAndDownloadTo(out);
+			else
+				DriveClientPool.route(authenticatedClient, file.getId()).files().get(file.getId()).executeMediaAndDownloadTo(out);
+		}
+		if (!document && !checksum.matches(file.getMd5Checksum()))
+			throw new IOException(String.format("%s: downloaded checksum %s does not match Drive checksum %s",
+					file.getName(), checksum.getMd5Checksum(), file.getMd5Checksum()));
+		return checksum.getSha256Checksum();
+	}
+
+	private static FileEntry newEntry(String path, File file, String revision, String object) {
+		FileEntry entry = new FileEntry();
+		entry.path = path;
+		entry.mimeType = file.getMimeType();
+		entry.modifiedTime = file.getModifiedTime() == null ? null : file.getModifiedTime().getValue();
+		entry.md5Checksum = file.getMd5Checksum();
+		entry.revision = revision;
+		entry.object = object;
+		entry.size = file.getSize();
+		return entry;
+	}
+
+	// The entry of an unchanged file, which may have been renamed or moved.
+	private static FileEntry moved(FileEntry entry, String path) {
+		FileEntry copy = (FileEntry) entry.clone();
+		copy.path = path;
+		return copy;
+	}
+
+	private static java.io.File objectFile(java.io.File objects, String hash) {
+		return new java.io.File(new java.io.File(objects, hash.substring(0, 2)), hash);
+	}
+
+	private static void write(BackupIndex index, java.io.File file) throws IOException {
+		java.io.File tmpFile = new java.io.File(file.getPath() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+			writer.write(index.toString());
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Backup interrupted");
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+
+/***
+ * Groups Drive API calls into batch requests and sends the batches with bounded concurrency.
+ * Each batch carries up to 100 calls in a single HTTP round trip; the result of each call is delivered to its callback.
+ * For more information see <a href="https://developers.google.com/drive/v3/web/batch" target="_blank">Batching Requests</a>.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The callbacks are invoked on the threads that send the batches, so they must be thread-safe.</li>
+ *  <li>The calls in a batch can be executed by the Drive in any order. Calls which depend on each other, such as the creation
+ *  of a folder and of its children, must be sent in different batches, calling {@link #flush()} in between.</li>
+ *  <li>All the executors share a rate limiter of the calls per second, see {@link #setCallRate(long)}: a batch is sent when
+ *  the limiter has a token for each of its calls. There is no limit until one is set.</li>
+ *  <li>A call rejected because of the rate limits (403 rateLimitExceeded or userRateLimitExceeded, 429) or of a transient server
+ *  error (5xx) is queued again in a later batch, up to 5 attempts; the batches of the executor are held back with exponential backoff
+ *  meanwhile. The callback only receives the last outcome.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class BatchExecutor implements AutoCloseable {
+
+	// The maximum number of calls the Drive accepts in a batch.
+	final static int MAX_BATCH_SIZE = 100;
+	// The attempts of a call rejected because of the rate limits or of a transient server error.
+	private final static int MAX_ATTEMPTS = 5;
+	private final static long INITIAL_BACKOFF_MILLIS = 1000;
+
+	// The calls per second of all the executors.
+	private final static TokenBucket callLimiter = new TokenBucket(0, MAX_BATCH_SIZE);
+
+	private final Drive client;
+	private final ExecutorService executor;
+	private final List<Future<?>> submitted = new ArrayList<>();
+	private BatchRequest current;
+	// The time, in System.nanoTime() units, before which no batch is sent; set by the calls rejected by the rate limits.
+	private volatile long resumeTime = System.nanoTime();
+
+	/**
+	 * Instantiates the BatchExecutor class.
+	 * @param client The authenticated Drive client.
+	 * @param concurrency The number of batches that can be sent at the same time.
+	 */
+	public BatchExecutor(Drive client, int concurrency) {
+		this.client = client;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+	}
+
+	/**
+	 * Adds a call to the current batch; the batch is sent as soon as it is full.
+	 * @param request The Drive request.
+	 * @param callback The callback which receives the result of the request.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public <T> void queue(DriveRequest<T> request, JsonBatchCallback<T> callback) throws IOException {
+		queue(request, callback, 1);
+	}
+
+	/**
+	 * Sets the calls per second of all the executors; the limit applies to the next batches.
+	 * @param callsPerSecond The calls per second; 0 for no limit.
+	 */
+	public static void setCallRate(long callsPerSecond) {
+		callLimiter.setRate(callsPerSecond, Math.max(MAX_BATCH_SIZE, callsPerSecond));
+	}
+
+	public static long getCallRate() {
+		return callLimiter.getRate();
+	}
+
+	private synchronized <T> void queue(DriveRequest<T> request, JsonBatchCallback<T> callback, int attempt)
+			throws IOException {
+
+		if (current == null) {
+			current = client.batch();
+			// Use the Drive specific batch endpoint rather than the global one.
+			current.setBatchUrl(new GenericUrl(client.getRootUrl() + "batch/drive/v3"));
+		}
+		request.queue(current, retrying(request, callback, attempt));
+
+		if (current.size() == MAX_BATCH_SIZE)
+			submitCurrent();
+	}
+
+	/**
+	 * Sends the calls still queued and waits until all the batches are completed.
+	 * @throws IOException A batch could not be sent; the calls it contained have not been executed.
+	 */
+	public void flush() throws IOException {
+
+		IOException failure = null;
+		// The calls queued again by the completed batches are sent by the next round.
+		while (true) {
+			List<Future<?>> batches;
+			synchronized (this) {
+				if (current != null)
+					submitCurrent();
+				if (submitted.isEmpty())
+					break;
+				batches = new ArrayList<>(submitted);
+				submitted.clear();
+			}
+
+			for (Future<?> batch : batches) {
+				try {
+					batch.get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Batch interrupted");
+				}
+				catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Releases the threads used to send the batches. The calls not flushed are discarded.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void submitCurrent() {
+		BatchRequest batch = current;
+		current = null;
+		submitted.add(executor.submit(() -> {
+			TokenBucket.pause(resumeTime - System.nanoTime());
+			callLimiter.acquire(batch.size());
+			batch.execute();
+			return null;
+		}));
+	}
+
+	/**
+	 * Wraps the callback of a call so that the call is queued again if it is rejected because of the rate limits.
+	 */
+	private <T> JsonBatchCallback<T> retrying(DriveRequest<T> request, JsonBatchCallback<T> callback, int attempt) {
+		return new JsonBatchCallback<T>() {
+			@Override
+			public void onSuccess(T response, HttpHeaders responseHeaders) throws IOException {
+				callback.onSuccess(response, responseHeaders);
+			}
+
+			@Override
+			public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) throws IOException {
+				if (attempt >= MAX_ATTEMPTS || !isRetryable(error)) {
+					callback.onFailure(error, responseHeaders);
+					return;
+				}
+				// Exponential backoff with jitter, shared by the batches of the executor.
+				long backoff = TimeUnit.MILLISECONDS.toNanos(INITIAL_BACKOFF_MILLIS << (attempt - 1));
+				long resume = System.nanoTime() + backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+				if (resume - resumeTime > 0)
+					resumeTime = resume;
+				queue(request, callback, attempt + 1);
+			}
+		};
+	}
+
+	private static boolean isRetryable(GoogleJsonError error) {
+		if (error.getCode() == 429 || error.getCode() >= 500)
+			return true;
+		if (error.getCode() == 403 && error.getErrors() != null)
+			for (GoogleJsonError.ErrorInfo info : error.getErrors())
+				if ("rateLimitExceeded".equals(info.getReason()) || "userRateLimitExceeded".equals(info.getReason()))
+					return true;
+		return false;
+	}
+
+}
@@ -0,0 +1,281 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+
+/***
+ * Contains the methods which delete, trash, restore or move many files at once, such as to clean up the test folder or to
+ * reorganize a Drive.
+ * The files are specified by their IDs or selected by a {@link DriveQuery}; each call is sent in a batch request of up to 100 calls by
+ * the {@link BatchExecutor}, which applies the shared rate limiter and sends the calls rejected by the rate limits again.
+ * The outcome of each file is returned, so a caller can retry or report the files which failed.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Deleting a file is permanent: it skips the trash. Deleting a folder deletes its content too.</li>
+ *  <li>A file is moved by adding the target folder to its parents and removing its other parents, with addParents and
+ *  removeParents, in a single call.</li>
+ *  <li>Only the owner of a file can trash or delete it.</li>
+ *  <li>When a batch cannot be sent, such as because of a network error, its files fail with the error; the other batches
+ *  are not affected.</li>
+ * </ul>
+ * For more information see <a href="https://developers.google.com/drive/v3/reference/files" target="_blank">Files</a>.
+ * @author Michael
+ *
+ */
+public class BulkOperations {
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	/***
+	 * The outcome of the operation on a file.
+	 */
+	public static class Outcome extends GenericJson {
+
+		@Key("id")
+		private String id;
+
+		// delete, trash, restore or move.
+		@Key("operation")
+		private String operation;
+
+		@Key("succeeded")
+		private boolean succeeded;
+
+		// The error message of a failed operation.
+		@Key("error")
+		private String error;
+
+		public String getId() {
+			return id;
+		}
+
+		public boolean isSucceeded() {
+			return succeeded;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * Creates a request for the file with the specified ID.
+	 */
+	private interface RequestFactory {
+		DriveRequest<?> create(String fileID) throws IOException;
+	}
+
+	/**
+	 * Initializes the service client used by the bulk operations.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initBulkOperations(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Lists all the files matching the query, with their ID, name and parents.
+	 * @param query The query.
+	 * @return The matching files.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static List<File> find(DriveQuery query) throws IOException {
+		List<File> files = new ArrayList<>();
+		FileOperations.listFiles(query, 1000, true, files::add);
+		return files;
+	}
+
+	/**
+	 * Deletes the specified files permanently.
+	 * @param fileIDs The IDs of the files.
+	 * @param parallelism The number of batches sent at the same time.
+	 * @return The outcome of each file, in the order of the IDs.
+	 * @throws IOException The operation was interrupted.
+	 */
+	public static List<Outcome> delete(Collection<String> fileIDs, int parallelism) throws IOException {
+		return run("delete", fileIDs, parallelism,
+				fileID -> DriveClientPool.route(authenticatedClient, fileID).files().delete(fileID), null);
+	}
+
+	/**
+	 * Moves the specified files to the trash.
+	 * @param fileIDs The IDs of the files.
+	 * @param parallelism The number of batches sent at the same time.
+	 * @return The outcome of each file, in the order of the IDs.
+	 * @throws IOException The operation was interrupted.
+	 */
+	public static List<Outcome> trash(Collection<String> fileIDs, int parallelism) throws IOException {
+		return run("trash", fileIDs, parallelism,
+				fileID -> DriveClientPool.route(authenticatedClient, fileID).files().update(fileID, new File().setTrashed(true)).setFields("id"), null);
+	}
+
+	/**
+	 * Restores the specified files from the trash.
+	 * @param fileIDs The IDs of the files.
+	 * @param parallelism The number of batches sent at the same time.
+	 * @return The outcome of each file, in the order of the IDs.
+	 * @throws IOException The operation was interrupted.
+	 */
+	public static List<Outcome> restore(Collection<String> fileIDs, int parallelism) throws IOException {
+		return run("restore", fileIDs, parallelism,
+				fileID -> DriveClientPool.route(authenticatedClient, fileID).files().update(fileID, new File().setTrashed(false)).setFields("id"), null);
+	}
+
+	/**
+	 * Moves the specified files into the target folder. Their parents are read first, in batches too.
+	 * @param fileIDs The IDs of the files.
+	 * @param folderID The ID of the target folder.
+	 * @param parallelism The number of batches sent at the same time.
+	 * @return The outcome of each file, in the order of the IDs.
+	 * @throws IOException The operation was interrupted.
+	 */
+	public static List<Outcome> move(Collection<String> fileIDs, String folderID, int parallelism) throws IOException {
+
+		List<File> readable = Collections.synchronizedList(new ArrayList<>());
+		List<Outcome> reads = run("move", fileIDs, parallelism,
+				fileID -> DriveClientPool.route(authenticatedClient, fileID).files().get(fileID).setFields("id, parents"), readable::add);
+
+		// The files whose parents could not be read keep their outcome.
+		Map<String, Outcome> outcomes = new LinkedHashMap<>();
+		for (Outcome outcome : reads)
+			outcomes.put(outcome.id, outcome);
+		for (Outcome outcome : moveFiles(readable, folderID, parallelism))
+			outcomes.put(outcome.id, outcome);
+		return new ArrayList<>(outcomes.values());
+	}
+
+	/**
+	 * Moves the specified files, such as the ones returned by {@link #find(DriveQuery)}, into the target folder.
+	 * @param files The files, with their ID and parents.
+	 * @param folderID The ID of the target folder.
+	 * @param parallelism The number of batches sent at the same time.
+	 * @return The outcome of each file, in the order of the files.
+	 * @throws IOException The operation was interrupted.
+	 */
+	public static List<Outcome> moveFiles(List<File> files, String folderID, int parallelism) throws IOException {
+
+		Map<String, String> removedParents = new LinkedHashMap<>();
+		for (File file : files) {
+			List<String> removed = new ArrayList<>();
+			if (file.getParents() != null)
+				for (String parent : file.getParents())
+					if (!parent.equals(folderID))
+						removed.add(parent);
+			removedParents.put(file.getId(), String.join(",", removed));
+		}
+		return run("move", removedParents.keySet(), parallelism, fileID -> {
+			Drive.Files.Update request = DriveClientPool.route(authenticatedClient, fileID).files().update(fileID, new File())
+					.setAddParents(folderID)
+					.setFields("id");
+			String removed = removedParents.get(fileID);
+			if (!removed.isEmpty())
+				request.setRemoveParents(removed);
+			return request;
+		}, null);
+	}
+
+	/**
+	 * Gets the IDs of the specified files.
+	 * @param files The files.
+	 * @return The IDs, in the order of the files.
+	 */
+	public static List<String> ids(List<File> files) {
+		List<String> ids = new ArrayList<>(files.size());
+		for (File file : files)
+			ids.add(file.getId());
+		return ids;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * Sends a call for each file in batches and records the outcomes.
+	 * @param visitor Receives the files returned by the successful calls, from the threads sending the batches; null if not needed.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Outcome> run(String operation, Collection<String> fileIDs, int parallelism, RequestFactory factory,
+			FileOperations.FileVisitor visitor) throws IOException {
+
+		Map<String, Outcome> outcomes = new LinkedHashMap<>();
+		for (String fileID : fileIDs) {
+			Outcome outcome = new Outcome();
+			outcome.id = fileID;
+			outcome.operation = operation;
+			outcome.setFactory(JacksonFactory.getDefaultInstance());
+			outcomes.put(fileID, outcome);
+		}
+
+		IOException failure = null;
+		try (BatchExecutor batches = new BatchExecutor(authenticatedClient, parallelism)) {
+			try {
+				for (Outcome outcome : outcomes.values())
+					batches.queue((DriveRequest<Object>) factory.create(outcome.id), new JsonBatchCallback<Object>() {
+						@Override
+						public void onSuccess(Object response, HttpHeaders responseHeaders) throws IOException {
+							outcome.succeeded = true;
+							if (visitor != null && response instanceof File)
+								visitor.visit((File) response);
+						}
+
+						@Override
+						public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+							outcome.error = error.getMessage();
+						}
+					});
+			}
+			catch (InterruptedIOException e) {
+				throw e;
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+			try {
+				// Sends the calls queued so far, even if a call could not be queued.
+				batches.flush();
+			}
+			catch (InterruptedIOException e) {
+				throw e;
+			}
+			catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null) {
+			// The calls of a batch which could not be sent received no response.
+			for (Outcome outcome : outcomes.values())
+				if (!outcome.succeeded && outcome.error == null)
+					outcome.error = failure.getMessage();
+		}
+
+		if (Utility.isDEBUG()) {
+			int failed = 0;
+			for (Outcome outcome : outcomes.values())
+				if (!outcome.succeeded)
+					failed++;
+			System.out.println(String.format("[%s] %d files, %d failed", operation, outcomes.size(), failed));
+		}
+		return new ArrayList<>(outcomes.values());
+	}
+
+}
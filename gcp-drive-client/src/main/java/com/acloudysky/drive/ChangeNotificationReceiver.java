@@ -0,0 +1,317 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Channel;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/***
+ * Receives the push notifications of a Drive change channel, opened with changes.watch, so that the changes are fetched when
+ * the Drive reports them rather than by polling.
+ * The notifications only tell that something changed: they are coalesced, and a burst of them, such as the one caused by
+ * a folder upload, triggers a single call to the {@link ChangeHandler}, which reads the changes with changes.list from its own
+ * page token, as {@link MetadataIndex#update()} does. The endpoint is the following:
+ * <pre>
+ * POST http://HOST:PORT/notifications    headers: X-Goog-Channel-ID, X-Goog-Channel-Token, X-Goog-Resource-State
+ * </pre>
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The Drive sends the notifications to a public HTTPS address, in a domain verified for the project; a reverse proxy
+ * 	must forward it to the receiver. Unlike the {@link DriveDaemon}, the receiver listens on all the interfaces;
+ * 	in simulation mode it listens on the loopback interface only.</li>
+ *  <li>A notification is accepted only if it carries the ID and the secret token of a channel opened by the receiver.</li>
+ *  <li>The channel is renewed 10 minutes before it expires; the new channel is opened before the old one is stopped, a minute
+ *  later, so no change is missed. If it cannot be renewed, the changes are fetched and the renewal is tried again every minute.</li>
+ *  <li>Without a public address the receiver runs in simulation mode, for local testing: no channel is opened on the Drive,
+ *  and the notifications sent with the ID and token of {@link #getChannel()}, such as by curl, are processed as real ones.</li>
+ * </ul>
+ * For more information see <a href="https://developers.google.com/drive/v3/web/push" target="_blank">Push Notifications</a>.
+ * @author Michael
+ *
+ */
+public class ChangeNotificationReceiver implements AutoCloseable {
+
+	// Default port.
+	final static int DEFAULTPORT = 8766;
+	final static String PATH = "/notifications";
+	// The delay between the first notification of a burst and the fetch of the changes.
+	private final static long COALESCE_MILLIS = 2000;
+	private final static long RENEW_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	private final static long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	/***
+	 * Fetches the changes when the Drive reports some.
+	 */
+	public interface ChangeHandler {
+		/**
+		 * Gets the page token from which the channel watches the changes.
+		 * @throws IOException An I/O error has been detected.
+		 */
+		String getPageToken() throws IOException;
+
+		/**
+		 * Reads and applies the changes; called once per burst of notifications, never concurrently.
+		 * @throws IOException An I/O error has been detected.
+		 */
+		void fetchChanges() throws IOException;
+	}
+
+	private final ChangeHandler handler;
+	// The public HTTPS address of the receiver; null in simulation mode.
+	private final String address;
+	private final long ttl;
+	private final HttpServer server;
+	// Runs the fetches and the renewals, one at a time.
+	private final ScheduledExecutorService scheduler;
+	// The open channels, keyed by ID: the current one and, while it is renewed, the previous one.
+	private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+	private volatile Channel channel;
+	// True while a fetch is scheduled and not started yet.
+	private final AtomicBoolean fetchScheduled = new AtomicBoolean();
+
+	private final AtomicLong notifications = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong fetches = new AtomicLong();
+
+	/**
+	 * Initializes the service client used to open and stop the channels.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initChangeNotificationReceiver(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Instantiates the ChangeNotificationReceiver class and binds its endpoint; {@link #start()} opens the channel.
+	 * @param handler The handler which fetches the changes.
+	 * @param port The port of the endpoint.
+	 * @param address The public HTTPS address forwarded to the endpoint, such as https://drive.example.com/notifications;
+	 * null for the simulation mode.
+	 * @param ttl The lifetime of a channel in milliseconds, before it is renewed.
+	 * @throws IOException The port cannot be bound.
+	 */
+	public ChangeNotificationReceiver(ChangeHandler handler, int port, String address, long ttl) throws IOException {
+
+		this.handler = handler;
+		this.address = address;
+		this.ttl = Math.max(ttl, 2 * RENEW_MARGIN_MILLIS);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "drive-changes");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		server = HttpServer.create(address == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+				: new InetSocketAddress(port), 0);
+		server.createContext(PATH, this::handleNotification);
+	}
+
+	/**
+	 * Starts the endpoint and opens the channel, or the simulated channel.
+	 * @throws IOException The channel cannot be opened.
+	 */
+	public void start() throws IOException {
+
+		if (address == null) {
+			channel = new Channel().setId(UUID.randomUUID().toString()).setToken(createToken()).setType("web_hook");
+			channels.put(channel.getId(), channel);
+		}
+		else
+			renew();
+		server.start();
+	}
+
+	/**
+	 * Gets the current channel, with its ID and token.
+	 */
+	public Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Fetches the changes on the receiver thread, such as the ones made before the channel was opened.
+	 * The fetches never overlap, and the notifications received before it starts are served by the same fetch.
+	 */
+	public void refresh() {
+		scheduleFetch();
+	}
+
+	/**
+	 * Processes a change notification as if it had been received, for testing.
+	 */
+	public void simulate() {
+		notifications.incrementAndGet();
+		scheduleFetch();
+	}
+
+	/**
+	 * Gets the number of change notifications accepted.
+	 */
+	public long getNotifications() {
+		return notifications.get();
+	}
+
+	/**
+	 * Gets the number of notifications rejected because of an unknown channel or a wrong token.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Gets the number of fetches of the changes.
+	 */
+	public long getFetches() {
+		return fetches.get();
+	}
+
+	/**
+	 * Stops the channels and the endpoint.
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+		scheduler.shutdownNow();
+		if (address != null)
+			for (Channel open : channels.values())
+				stop(open);
+		channels.clear();
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private void handleNotification(HttpExchange exchange) throws IOException {
+
+		try {
+			Headers headers = exchange.getRequestHeaders();
+			Channel open = channels.get(String.valueOf(headers.getFirst("X-Goog-Channel-ID")));
+			String token = headers.getFirst("X-Goog-Channel-Token");
+			if (!"POST".equals(exchange.getRequestMethod()) || open == null || token == null
+					|| !MessageDigest.isEqual(open.getToken().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+				rejected.incrementAndGet();
+				exchange.sendResponseHeaders(403, -1);
+				return;
+			}
+			try (InputStream body = exchange.getRequestBody()) {
+				while (body.read() != -1)
+					;
+			}
+			// The sync notification only confirms that the channel is open.
+			if (!"sync".equals(headers.getFirst("X-Goog-Resource-State"))) {
+				notifications.incrementAndGet();
+				scheduleFetch();
+			}
+			// Answer at once: the Drive retries the notifications which are not acknowledged.
+			exchange.sendResponseHeaders(200, -1);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Schedules a fetch, unless one is already scheduled; the notifications received meanwhile are covered by it.
+	 */
+	private void scheduleFetch() {
+		if (fetchScheduled.compareAndSet(false, true))
+			scheduler.schedule(this::fetch, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private void fetch() {
+		// The notifications received from now on schedule another fetch.
+		fetchScheduled.set(false);
+		try {
+			handler.fetchChanges();
+			fetches.incrementAndGet();
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println(String.format("Error occurred: fetching the changes: %s", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Opens a new channel, then stops the previous one and schedules the next renewal.
+	 */
+	private void renew() throws IOException {
+
+		Channel request = new Channel()
+				.setId(UUID.randomUUID().toString())
+				.setType("web_hook")
+				.setAddress(address)
+				.setToken(createToken())
+				.setExpiration(System.currentTimeMillis() + ttl);
+		Channel opened = authenticatedClient.changes().watch(handler.getPageToken(), request).execute();
+		opened.setToken(request.getToken());
+		channels.put(opened.getId(), opened);
+
+		Channel previous = channel;
+		channel = opened;
+		// The notifications already sent on the previous channel are still accepted for a while.
+		if (previous != null)
+			scheduler.schedule(() -> {
+				channels.remove(previous.getId());
+				stop(previous);
+			}, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+
+		long expiration = opened.getExpiration() != null ? opened.getExpiration() : request.getExpiration();
+		long delay = Math.max(RETRY_MILLIS, expiration - System.currentTimeMillis() - RENEW_MARGIN_MILLIS);
+		scheduler.schedule(this::scheduledRenew, delay, TimeUnit.MILLISECONDS);
+		if (Utility.isDEBUG())
+			System.out.println(String.format("Channel %s open until %tc", opened.getId(), expiration));
+	}
+
+	private void scheduledRenew() {
+		try {
+			renew();
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println(String.format("Error occurred: renewing the channel: %s", e.getMessage()));
+			// The notifications may be lost: catch up, then try again.
+			fetch();
+			scheduler.schedule(this::scheduledRenew, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void stop(Channel open) {
+		try {
+			authenticatedClient.channels().stop(new Channel().setId(open.getId()).setResourceId(open.getResourceId())).execute();
+		}
+		catch (IOException e) {
+			// The channel expires anyway.
+			System.err.println(String.format("Error occurred: stopping channel %s: %s", open.getId(), e.getMessage()));
+		}
+	}
+
+	private static String createToken() {
+		byte[] bytes = new byte[24];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes)
+			token.append(String.format("%02x", b));
+		return token.toString();
+	}
+
+}
@@ -0,0 +1,1286 @@
+package com.acloudysky.drive;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Permission;
+
+/***
+ * Runs Drive operations non-interactively, as an alternative to the {@link SimpleUI} menu loop.
+ * It is meant to be used from scripts, cron jobs and pipelines: it does not display greetings or menus,
+ * writes one record per line to the standard output as soon as it is available and returns an exit code.
+ * The supported commands are the following:
+ * <pre>
+ * ls [--all] [--json] [--limit N] [--type MIME] [--name TEXT] [--parent ID] [--owner EMAIL] [--days N] [--trashed]
+ * upload [--parallel N] [--parent ID] [--json] [--queue [--priority N]] [--pack [--pack-threshold SIZE] [--pack-size SIZE]] PATH...
+ * download [--mime MIME] [--json] [--queue [--priority N]] [--cache [--max-age SECONDS]] FILEID TARGET
+ * sync [--parallel N] [--parent ID] [--json] [--queue [--priority N]] DIR
+ * tree [--parallel N] [--json] [FOLDERID]
+ * mkdirs [--parallel N] [--parent ID] [--json] DIR
+ * resume [--parallel N] [--json]
+ * limit [--rate RATE] [--job-rate RATE] [--call-rate N]
+ * extract [--json] PACKID [MEMBER TARGET]
+ * delta-upload [--parallel N] [--parent ID] [--json] FILE...
+ * delta-download [--parallel N] [--json] MANIFESTID TARGET
+ * export [--parallel N] [--json] [--mime MIME[,MIME...]] FILEID... DIR
+ * backup [--parallel N] [--json] FOLDERID STOREDIR
+ * share [--parallel N] [--json] [--prune] FOLDERID PERMISSION...
+ * trash|restore|delete [--parallel N] [--json] [--type MIME] [--name TEXT] [--parent ID] [--owner EMAIL] [--days N] [--trashed]
+ *        [FILEID...]
+ * move --to FOLDERID [--parallel N] [--json] [--type MIME] [--name TEXT] [--parent ID] [--owner EMAIL] [--days N] [FILEID...]
+ * index [--json]
+ * watch [--json] [--port N] [--address URL] [--ttl SECONDS]
+ * search [--json] [--limit N] [--type MIME] [--owner EMAIL] [--days N] [--min-size SIZE] [--max-size SIZE] [--folder ID]
+ *        [--max-age SECONDS] [WORDS...]
+ * cache [--json]
+ * </pre>
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Without <i>--json</i> each record is written as tab separated values; with <i>--json</i> each record is a
+ * 	JSON object on its own line.</li>
+ *  <li>The ls options are sent to the server as a {@link DriveQuery}, so only the matching files are listed: <i>--name</i>
+ *  matches the names with words starting with TEXT, <i>--parent</i> the direct children of the folder and <i>--days</i> the files
+ *  modified in the last N days. The files in the trash are only listed with <i>--trashed</i>.</li>
+ *  <li>When <i>--parent</i> is not specified, the upload and sync commands use the folder ID stored in the
+ *  client_defaults.json file.</li>
+ *  <li>With <i>--queue</i> the transfers are recorded in the {@link TransferQueue} before they run, together with the
+ *  transfers left unfinished by the previous runs. If the process dies, the resume command, or the next queued command,
+ *  runs exactly the transfers which did not complete. A transfer already done is not repeated. In daemon mode each
+ *  command only runs its own transfers and the ones left by the previous runs, so its output and exit code describe them.</li>
+ *  <li>The transfer commands accept <i>--rate</i>, the total bytes per second, and <i>--job-rate</i>, the bytes per second of each
+ *  transfer; the rates take a K, M or G suffix and 0 means no limit. The bandwidth is shared fairly among the concurrent transfers
+ *  (see {@link TransferScheduler}) and the smaller files are sent first. The limits apply to the whole process: in daemon mode
+ *  they are only accepted by the limit command, which changes the limits of the running transfers too.</li>
+ *  <li>With <i>--pack</i> the files smaller than <i>--pack-threshold</i> (64K by default) are stored in zip packs of up to
+ *  <i>--pack-size</i> bytes (64M by default) instead of one Drive file each, see {@link PackOperations}. The extract command
+ *  lists the members of a pack or extracts a single member.</li>
+ *  <li>The delta-upload command stores each file as content-defined chunks plus a manifest and only sends the chunks that the
+ *  folder does not hold yet, see {@link DeltaOperations}; delta-download rebuilds the file from its manifest.</li>
+ *  <li>The export command exports each Google document into all the formats of <i>--mime</i>, or by default a Doc as docx, pdf
+ *  and txt, a Sheet as xlsx and csv, a Slides as pptx and pdf, see {@link ExportOperations}. The formats of a document are
+ *  exported concurrently, and <i>--parallel</i> documents at a time.</li>
+ *  <li>The backup command backs up the folder and its subfolders into the local store directory, downloading only the files
+ *  changed since the previous backup of the store, see {@link BackupOperations}.</li>
+ *  <li>The share command applies the permissions, written as TYPE:ADDRESS=ROLE such as user:alice@example.com=writer or
+ *  anyone=reader, to the folder and everything under it, see {@link PermissionOperations}. Only the missing permissions and the
+ *  different roles are sent, in batches and without notification emails; with <i>--prune</i> the other permissions are deleted,
+ *  except the owner ones.</li>
+ *  <li>The trash, restore, delete and move commands apply to the specified files or, without FILEID, to all the files matching
+ *  the ls options, of which at least one is required; see {@link BulkOperations}. The calls are sent in batches of 100, and
+ *  <i>--call-rate</i> limits the calls per second of all the batches. One record is written per file, with its outcome. Delete
+ *  skips the trash. Restore only matches the files in the trash.</li>
+ *  <li>The index command loads the local {@link MetadataIndex} on its first run, then applies the changes made since the previous
+ *  run. The search command answers from that index, offline, with the files whose name has words starting with WORDS,
+ *  modified in the last <i>--days</i>, anywhere under <i>--folder</i>. If the index is older than <i>--max-age</i> (300 seconds
+ *  by default) it is updated first, and if it cannot be, the query is sent to the server.</li>
+ *  <li>The watch command keeps the metadata index up to date until the process is stopped: it opens a Drive change channel
+ *  towards <i>--address</i>, the public HTTPS address forwarded to <i>--port</i>, and updates the index when the Drive reports
+ *  changes, see {@link ChangeNotificationReceiver}. Without <i>--address</i> it runs in simulation mode and writes the channel ID and
+ *  token to send the notifications with. When the process is interrupted, the channel is stopped and the index saved before
+ *  it exits. The daemon refuses the command, which would hold one of its workers forever.</li>
+ *  <li>With <i>--cache</i> the download command reads the file through the {@link ContentCache}, so a file downloaded by
+ *  many commands is fetched once: its checksum is validated by a metadata call, unless it was validated less than
+ *  <i>--max-age</i> ago (0 by default), and only the blocks missing in the cache are downloaded. The disk tier is shared by the
+ *  processes; the memory tier by the commands of a daemon, whose cache command writes the hit and miss metrics.</li>
+ *  <li>The mkdirs command creates in the parent folder a copy of the folder hierarchy of DIR; the files are not uploaded.</li>
+ *  <li>The upload command uploads the files under a directory PATH with their subdirectories, which are created as folders
+ *  of the parent folder; the files of PATH itself go into the parent folder.</li>
+ *  <li>The sync command uploads the files in DIR that are missing in the parent folder and updates the ones
+ *  whose size or MD5 checksum is different.</li>
+ *  <li>Errors are written to the standard error; the exit code is 0 on success, 1 if any operation failed and 2
+ *  for usage errors.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class CommandLine {
+
+	// Exit codes.
+	final static int EXIT_OK = 0;
+	final static int EXIT_FAILED = 1;
+	final static int EXIT_USAGE = 2;
+
+	private final static String USAGE =
+			"usage: drive ls [--all] [--json] [--limit N] [--type MIME] [--name TEXT] [--parent ID]%n"
+			+ "                [--owner EMAIL] [--days N] [--trashed]%n"
+			+ "       drive upload [--parallel N] [--parent ID] [--json] [--queue [--priority N]]%n"
+			+ "                    [--pack [--pack-threshold SIZE] [--pack-size SIZE]] PATH...%n"
+			+ "       drive download [--mime MIME] [--json] [--queue [--priority N]] [--cache [--max-age SECONDS]]%n"
+			+ "                      FILEID TARGET%n"
+			+ "       drive sync [--parallel N] [--parent ID] [--json] [--queue [--priority N]] DIR%n"
+			+ "       drive tree [--parallel N] [--json] [FOLDERID]%n"
+			+ "       drive mkdirs [--parallel N] [--parent ID] [--json] DIR%n"
+			+ "       drive resume [--parallel N] [--json]%n"
+			+ "       drive limit [--rate RATE] [--job-rate RATE] [--call-rate N]%n"
+			+ "       drive extract [--json] PACKID [MEMBER TARGET]%n"
+			+ "       drive delta-upload [--parallel N] [--parent ID] [--json] FILE...%n"
+			+ "       drive delta-download [--parallel N] [--json] MANIFESTID TARGET%n"
+			+ "       drive export [--parallel N] [--json] [--mime MIME[,MIME...]] FILEID... DIR%n"
+			+ "       drive backup [--parallel N] [--json] FOLDERID STOREDIR%n"
+			+ "       drive share [--parallel N] [--json] [--prune] FOLDERID PERMISSION...%n"
+			+ "       drive trash|restore|delete [--parallel N] [--json] [--type MIME] [--name TEXT] [--parent ID]%n"
+			+ "                    [--owner EMAIL] [--days N] [--trashed] [FILEID...]%n"
+			+ "       drive move --to FOLDERID [--parallel N] [--json] [--type MIME] [--name TEXT] [--parent ID]%n"
+			+ "                    [--owner EMAIL] [--days N] [FILEID...]%n"
+			+ "       drive index [--json]%n"
+			+ "       drive watch [--json] [--port N] [--address URL] [--ttl SECONDS]%n"
+			+ "       drive search [--json] [--limit N] [--type MIME] [--owner EMAIL] [--days N]%n"
+			+ "                    [--min-size SIZE] [--max-size SIZE] [--folder ID] [--max-age SECONDS] [WORDS...]%n"
+			+ "       drive cache [--json]%n";
+
+	private final static JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+	// Numbers the queued runs of the process, which own their jobs in the shared transfer queue.
+	private final static AtomicLong queuedRuns = new AtomicLong();
+
+	// Options and arguments of the current command.
+	private final Map<String, String> options = new HashMap<>();
+	private final List<String> arguments = new ArrayList<>();
+
+	private final PrintStream out;
+	private final PrintStream err;
+	// Run by the DriveDaemon, whose state is shared by the commands.
+	private final boolean daemon;
+
+	/**
+	 * Instantiates the CommandLine class, which runs a command for the current process.
+	 * @param out The stream where the records are written.
+	 * @param err The stream where the errors are written.
+	 */
+	CommandLine(PrintStream out, PrintStream err) {
+		this(out, err, false);
+	}
+
+	/**
+	 * Instantiates the CommandLine class.
+	 * @param out The stream where the records are written.
+	 * @param err The stream where the errors are written.
+	 * @param daemon true if the command is run by the {@link DriveDaemon}, among other commands; otherwise, false.
+	 */
+	CommandLine(PrintStream out, PrintStream err, boolean daemon) {
+		this.out = out;
+		this.err = err;
+		this.daemon = daemon;
+	}
+
+	/**
+	 * Tells whether the specified name is a command supported by this class.
+	 * @param name The command name.
+	 * @return true if the command is supported; otherwise, false.
+	 */
+	static boolean isCommand(String name) {
+		switch (name) {
+			case "ls":
+			case "upload":
+			case "download":
+			case "sync":
+			case "tree":
+			case "mkdirs":
+			case "resume":
+			case "limit":
+			case "extract":
+			case "delta-upload":
+			case "delta-download":
+			case "export":
+			case "backup":
+			case "share":
+			case "trash":
+			case "restore":
+			case "delete":
+			case "move":
+			case "index":
+			case "watch":
+			case "search":
+			case "cache":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Parses and runs the specified command.
+	 * <b>Note</b>. {@link Main#initServiceClients(com.google.api.services.drive.Drive)} must be called first.
+	 * @param args The command name followed by its options and arguments.
+	 * @return The exit code.
+	 */
+	int run(String[] args) {
+
+		if (args.length == 0 || !isCommand(args[0])) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		// Split options from arguments. The flags have no value.
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if ("--all".equals(arg) || "--json".equals(arg) || "--queue".equals(arg) || "--pack".equals(arg)
+					|| "--trashed".equals(arg) || "--prune".equals(arg) || "--cache".equals(arg))
+				options.put(arg, "true");
+			else if (arg.startsWith("--")) {
+				if (i + 1 == args.length) {
+					err.printf("Missing value for %s%n", arg);
+					return EXIT_USAGE;
+				}
+				options.put(arg, args[++i]);
+			}
+			else
+				arguments.add(arg);
+		}
+
+		try {
+			if (!setLimits(args[0]))
+				return EXIT_USAGE;
+			switch (args[0]) {
+				case "ls":
+					return list();
+				case "upload":
+					return upload();
+				case "download":
+					return download();
+				case "tree":
+					return tree();
+				case "mkdirs":
+					return mkdirs();
+				case "resume":
+					return runQueued(new ArrayList<>());
+				case "limit":
+					return limit();
+				case "extract":
+					return extract();
+				case "delta-upload":
+					return deltaUpload();
+				case "delta-download":
+					return deltaDownload();
+				case "export":
+					return export();
+				case "backup":
+					return backup();
+				case "share":
+					return share();
+				case "trash":
+				case "restore":
+				case "delete":
+				case "move":
+					return bulk(args[0]);
+				case "index":
+					return index();
+				case "watch":
+					return watch();
+				case "search":
+					return search();
+				case "cache":
+					return cache();
+				default:
+					return sync();
+			}
+		}
+		catch (NumberFormatException e) {
+			err.printf("Invalid number: %s%n", e.getMessage());
+			return EXIT_USAGE;
+		}
+		catch (IllegalArgumentException e) {
+			err.printf("%s%n", e.getMessage());
+			return EXIT_USAGE;
+		}
+		catch (IOException e) {
+			err.printf("Error occurred: %s%n", e.getMessage());
+			return EXIT_FAILED;
+		}
+		finally {
+			out.flush();
+		}
+	}
+
+	/*********************
+	 * Command functions *
+	 *********************/
+
+	/**
+	 * Lists the files, most recently modified first.
+	 */
+	private int list() throws IOException {
+
+		boolean all = options.containsKey("--all");
+		int limit = Integer.parseInt(option("--limit", all ? "1000" : "10"));
+		// Filtered by the server, so only the matching files are transferred.
+		DriveQuery query = DriveQuery.allOf(filterQuery(),
+				options.containsKey("--trashed") ? null : DriveQuery.trashed(false));
+
+		FileOperations.listFiles(query, limit, all, file -> writeFile("listed", null, file));
+		return EXIT_OK;
+	}
+
+	/**
+	 * Trashes, restores, deletes or moves the specified files, or the files matching the filter options, in batches.
+	 */
+	private int bulk(String operation) throws IOException {
+
+		DriveQuery filter = filterQuery();
+		String folderID = options.get("--to");
+		// A missing filter would select the whole Drive.
+		if (arguments.isEmpty() == (filter == null) || "move".equals(operation) != (folderID != null)) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		List<File> files = null;
+		List<String> fileIDs = arguments;
+		if (filter != null) {
+			DriveQuery trashed = "restore".equals(operation) ? DriveQuery.trashed(true)
+					: options.containsKey("--trashed") ? null : DriveQuery.trashed(false);
+			files = BulkOperations.find(DriveQuery.allOf(filter, trashed));
+			fileIDs = BulkOperations.ids(files);
+		}
+
+		int parallel = Integer.parseInt(option("--parallel", "4"));
+		List<BulkOperations.Outcome> outcomes;
+		switch (operation) {
+			case "trash":
+				outcomes = BulkOperations.trash(fileIDs, parallel);
+				break;
+			case "restore":
+				outcomes = BulkOperations.restore(fileIDs, parallel);
+				break;
+			case "delete":
+				outcomes = BulkOperations.delete(fileIDs, parallel);
+				break;
+			default:
+				// The listed files come with their parents.
+				outcomes = files != null ? BulkOperations.moveFiles(files, folderID, parallel)
+						: BulkOperations.move(fileIDs, folderID, parallel);
+		}
+
+		int failed = 0;
+		for (BulkOperations.Outcome outcome : outcomes) {
+			if (!outcome.isSucceeded())
+				failed++;
+			if (options.containsKey("--json"))
+				out.println(outcome.toString());
+			else
+				out.println(String.format("%s\t%s\t%s", outcome.isSucceeded() ? operation : "failed", outcome.getId(),
+						outcome.getError() == null ? "" : outcome.getError()));
+		}
+		return failed == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Builds the query of the ls filter options, without the trashed term.
+	 * @return The query; null if no filter option is specified.
+	 */
+	private DriveQuery filterQuery() {
+		return DriveQuery.allOf(
+				options.containsKey("--type") ? DriveQuery.mimeType(options.get("--type")) : null,
+				options.containsKey("--name") ? DriveQuery.nameContains(options.get("--name")) : null,
+				options.containsKey("--parent") ? DriveQuery.inParents(options.get("--parent")) : null,
+				options.containsKey("--owner") ? DriveQuery.owner(options.get("--owner")) : null,
+				options.containsKey("--days") ? DriveQuery.modifiedAfter(System.currentTimeMillis()
+						- TimeUnit.DAYS.toMillis(Integer.parseInt(options.get("--days")))) : null);
+	}
+
+	/**
+	 * Uploads the specified files, or the files contained in the specified directories, in parallel.
+	 */
+	private int upload() throws IOException {
+
+		if (arguments.isEmpty()) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		String parentID = parentFolderID();
+		// The Drive folder of each file.
+		Map<java.io.File, String> parents = new LinkedHashMap<>();
+		int failures = 0;
+		for (String path : arguments)
+			failures += addLocalFiles(new java.io.File(path), parentID, parents);
+
+		// Send the small files first, so most of them complete early.
+		List<java.io.File> localFiles = new ArrayList<>(parents.keySet());
+		localFiles.sort(Comparator.comparingLong(java.io.File::length));
+
+		if (options.containsKey("--pack"))
+			packSmallFiles(localFiles, parents);
+
+		if (options.containsKey("--queue")) {
+			List<TransferJob> jobs = new ArrayList<>();
+			for (java.io.File localFile : localFiles)
+				jobs.add(TransferJob.upload(localFile, parents.get(localFile), mimeTypeOf(localFile), priority()));
+			int exitCode = runQueued(jobs);
+			return failures == 0 ? exitCode : EXIT_FAILED;
+		}
+
+		List<Runnable> tasks = new ArrayList<>();
+		for (java.io.File localFile : localFiles) {
+			tasks.add(() -> {
+				try {
+					File file = FileOperations.uploadFile(localFile, parents.get(localFile), mimeTypeOf(localFile));
+					writeFile("uploaded", localFile.getPath(), file);
+				}
+				catch (IOException e) {
+					throw new RuntimeException(String.format("%s: %s", localFile.getPath(), e.getMessage()), e);
+				}
+			});
+		}
+		int exitCode = runParallel(tasks);
+		return failures == 0 ? exitCode : EXIT_FAILED;
+	}
+
+	/**
+	 * Downloads the specified file into the target local file.
+	 */
+	private int download() throws IOException {
+
+		if (arguments.size() != 2) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		java.io.File target = new java.io.File(arguments.get(1));
+		if (options.containsKey("--cache")) {
+			// The cache holds the Drive content, not the exports.
+			if (options.containsKey("--queue") || options.containsKey("--mime")) {
+				err.printf(USAGE);
+				return EXIT_USAGE;
+			}
+			File file = ContentCache.getDefault().download(arguments.get(0), target,
+					TimeUnit.SECONDS.toMillis(Long.parseLong(option("--max-age", "0"))));
+			writeFile("downloaded", target.getPath(), file);
+			return EXIT_OK;
+		}
+		if (options.containsKey("--queue")) {
+			List<TransferJob> jobs = new ArrayList<>();
+			jobs.add(TransferJob.download(FileOperations.getFile(arguments.get(0)), target, options.get("--mime"), priority()));
+			return runQueued(jobs);
+		}
+
+		File file = FileOperations.downloadFile(arguments.get(0), target, options.get("--mime"));
+		writeFile("downloaded", target.getPath(), file);
+		return EXIT_OK;
+	}
+
+	/**
+	 * Uploads the files of the local directory which are missing or differ in the parent folder.
+	 */
+	private int sync() throws IOException {
+
+		if (arguments.size() != 1 || !new java.io.File(arguments.get(0)).isDirectory()) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		String parentID = parentFolderID();
+
+		// Get the files already contained in the parent folder.
+		Map<String, File> remoteFiles = new HashMap<>();
+		FileOperations.listFiles(DriveQuery.inParents(parentID).and(DriveQuery.folder(false)).and(DriveQuery.trashed(false)),
+				1000, true,
+				file -> remoteFiles.put(file.getName(), file));
+
+		// Only the files of the directory itself: the parent folder is compared by name.
+		List<java.io.File> localFiles = new ArrayList<>();
+		java.io.File[] children = new java.io.File(arguments.get(0)).listFiles();
+		if (children != null)
+			for (java.io.File child : children)
+				if (child.isFile())
+					localFiles.add(child);
+		localFiles.sort(Comparator.comparingLong(java.io.File::length));
+
+		boolean queued = options.containsKey("--queue");
+		List<TransferJob> jobs = new ArrayList<>();
+		List<Runnable> tasks = new ArrayList<>();
+		for (java.io.File localFile : localFiles) {
+			File remoteFile = remoteFiles.get(localFile.getName());
+			if (remoteFile != null && sameContent(localFile, remoteFile)) {
+				writeFile("unchanged", localFile.getPath(), remoteFile);
+				continue;
+			}
+			if (queued) {
+				jobs.add(remoteFile == null
+						? TransferJob.upload(localFile, parentID, mimeTypeOf(localFile), priority())
+						: TransferJob.update(localFile, remoteFile.getId(), mimeTypeOf(localFile), priority()));
+				continue;
+			}
+			tasks.add(() -> {
+				try {
+					if (remoteFile == null)
+						writeFile("uploaded", localFile.getPath(),
+								FileOperations.uploadFile(localFile, parentID, mimeTypeOf(localFile)));
+					else
+						writeFile("updated", localFile.getPath(),
+								FileOperations.updateFile(remoteFile.getId(), localFile, mimeTypeOf(localFile)));
+				}
+				catch (IOException e) {
+					throw new RuntimeException(String.format("%s: %s", localFile.getPath(), e.getMessage()), e);
+				}
+			});
+		}
+		return queued ? runQueued(jobs) : runParallel(tasks);
+	}
+
+	/**
+	 * Lists the full paths of the files and folders under the specified folder.
+	 */
+	private int tree() throws IOException {
+
+		if (arguments.size() > 1) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		String folderID = arguments.isEmpty() ? parentFolderID() : arguments.get(0);
+		FolderTree tree = FolderOperations.loadTree(folderID, Integer.parseInt(option("--parallel", "8")));
+
+		boolean json = options.containsKey("--json");
+		for (int node = 0; node < tree.size(); node++) {
+			String type = tree.isFolder(node) ? "folder" : "file";
+			if (json) {
+				GenericJson record = new GenericJson();
+				record.setFactory(jsonFactory);
+				record.set("id", tree.getId(node));
+				record.set("type", type);
+				record.set("path", tree.getPath(node));
+				out.println(record.toString());
+			}
+			else
+				out.println(String.format("%s\t%s\t%s", tree.getId(node), type, tree.getPath(node)));
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Creates a copy of the local folder hierarchy in the parent folder.
+	 */
+	private int mkdirs() throws IOException {
+
+		if (arguments.size() != 1 || !new java.io.File(arguments.get(0)).isDirectory()) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		Map<Path, String> failures = new HashMap<>();
+		Map<Path, String> created = FolderOperations.mirrorLocalTree(
+				Paths.get(arguments.get(0)), parentFolderID(),
+				Integer.parseInt(option("--parallel", "4")), failures);
+
+		boolean json = options.containsKey("--json");
+		for (Map.Entry<Path, String> folder : created.entrySet()) {
+			if (json) {
+				GenericJson record = new GenericJson();
+				record.setFactory(jsonFactory);
+				record.set("status", "created");
+				record.set("path", folder.getKey().toString());
+				record.set("id", folder.getValue());
+				out.println(record.toString());
+			}
+			else
+				out.println(String.format("created\t%s\t%s", folder.getValue(), folder.getKey()));
+		}
+		for (Map.Entry<Path, String> failure : failures.entrySet())
+			err.printf("Error occurred: %s: %s%n", failure.getKey(), failure.getValue());
+
+		return failures.isEmpty() ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Lists the members of a pack, or extracts one of them.
+	 */
+	private int extract() throws IOException {
+
+		if (arguments.size() != 1 && arguments.size() != 3) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		String packID = arguments.get(0);
+		boolean json = options.containsKey("--json");
+		if (arguments.size() == 1) {
+			for (PackOperations.Member member : PackOperations.readIndex(packID).getMembers()) {
+				if (json)
+					out.println(member.toString());
+				else
+					out.println(String.format("%s\t%d\t%d", member.getName(), member.getOffset(), member.getSize()));
+			}
+			return EXIT_OK;
+		}
+
+		java.io.File target = new java.io.File(arguments.get(2));
+		PackOperations.Member member = PackOperations.extract(packID, arguments.get(1), target);
+		if (json) {
+			GenericJson record = new GenericJson();
+			record.setFactory(jsonFactory);
+			record.set("status", "extracted");
+			record.set("path", target.getPath());
+			record.set("member", member);
+			out.println(record.toString());
+		}
+		else
+			out.println(String.format("extracted\t%s\t%d\t%s", member.getName(), member.getSize(), target.getPath()));
+		return EXIT_OK;
+	}
+
+	/**
+	 * Uploads the specified files as chunks, sending only the chunks not stored yet.
+	 */
+	private int deltaUpload() throws IOException {
+
+		if (arguments.isEmpty()) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		String parentID = parentFolderID();
+		int parallel = Integer.parseInt(option("--parallel", "4"));
+		int failures = 0;
+		for (String path : arguments) {
+			try {
+				DeltaOperations.Result result = DeltaOperations.upload(new java.io.File(path), parentID, parallel);
+				writeFile("uploaded", path, result.getManifestFile());
+			}
+			catch (IOException e) {
+				failures++;
+				err.printf("Error occurred: %s: %s%n", path, e.getMessage());
+			}
+		}
+		return failures == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Rebuilds a chunked file from its manifest.
+	 */
+	private int deltaDownload() throws IOException {
+
+		if (arguments.size() != 2) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		java.io.File target = new java.io.File(arguments.get(1));
+		DeltaOperations.Manifest manifest = DeltaOperations.download(arguments.get(0), target,
+				Integer.parseInt(option("--parallel", "4")));
+		if (options.containsKey("--json")) {
+			GenericJson record = new GenericJson();
+			record.setFactory(jsonFactory);
+			record.set("status", "downloaded");
+			record.set("path", target.getPath());
+			record.set("name", manifest.getName());
+			record.set("size", manifest.getSize());
+			record.set("chunks", manifest.getChunks().size());
+			out.println(record.toString());
+		}
+		else
+			out.println(String.format("downloaded\t%s\t%d\t%d\t%s", manifest.getName(), manifest.getSize(),
+					manifest.getChunks().size(), target.getPath()));
+		return EXIT_OK;
+	}
+
+	/**
+	 * Exports the specified Google documents into several formats each.
+	 */
+	private int export() {
+
+		if (arguments.size() < 2) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		java.io.File targetDir = new java.io.File(arguments.get(arguments.size() - 1));
+		List<String> mimeTypes = options.containsKey("--mime") ? Arrays.asList(options.get("--mime").split(",")) : null;
+		List<Runnable> tasks = new ArrayList<>();
+		for (String fileID : arguments.subList(0, arguments.size() - 1)) {
+			tasks.add(() -> {
+				try {
+					File file = ExportOperations.getMetadata(fileID);
+					for (java.io.File target : ExportOperations.exportAll(file, mimeTypes, targetDir).values())
+						writeFile("exported", target.getPath(), file);
+				}
+				catch (IOException e) {
+					throw new RuntimeException(String.format("%s: %s", fileID, e.getMessage()), e);
+				}
+			});
+		}
+		return runParallel(tasks);
+	}
+
+	/**
+	 * Backs up the specified folder into the local store, downloading only the changed files.
+	 */
+	private int backup() throws IOException {
+
+		if (arguments.size() != 2) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		BackupOperations.Result result = BackupOperations.backup(arguments.get(0), new java.io.File(arguments.get(1)),
+				Integer.parseInt(option("--parallel", "8")));
+		if (options.containsKey("--json"))
+			out.println(result.toString());
+		else
+			for (Map.Entry<String, Object> field : result.entrySet())
+				out.println(String.format("%s\t%s", field.getKey(), field.getValue()));
+		return result.getFailed() == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Writes the metrics of the content cache of the process.
+	 */
+	private int cache() throws IOException {
+
+		ContentCache.Stats stats = ContentCache.getDefault().getStats();
+		if (options.containsKey("--json"))
+			out.println(stats.toString());
+		else
+			for (Map.Entry<String, Object> field : stats.entrySet())
+				out.println(String.format("%s\t%s", field.getKey(), field.getValue()));
+		return EXIT_OK;
+	}
+
+	/**
+	 * Updates the metadata index each time the Drive reports changes, until the process is stopped.
+	 */
+	private int watch() throws IOException {
+
+		if (daemon) {
+			err.println("watch runs until the process is stopped: run it outside the daemon");
+			return EXIT_USAGE;
+		}
+
+		// On SIGINT or SIGTERM, stop the channel and save the index before the process exits.
+		CountDownLatch stopped = new CountDownLatch(1);
+		CountDownLatch closed = new CountDownLatch(1);
+		Thread hook = new Thread(() -> {
+			stopped.countDown();
+			try {
+				closed.await(30, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "watch-shutdown");
+		Runtime.getRuntime().addShutdownHook(hook);
+
+		try (MetadataIndex index = MetadataIndex.open()) {
+			if (!index.isLoaded())
+				index.load();
+			ChangeNotificationReceiver.ChangeHandler handler = new ChangeNotificationReceiver.ChangeHandler() {
+				@Override
+				public String getPageToken() {
+					return index.getPageToken();
+				}
+
+				@Override
+				public void fetchChanges() throws IOException {
+					int changes = index.update();
+					writeRecord("updated", "changes", changes, "files", index.size());
+				}
+			};
+			String address = options.get("--address");
+			try (ChangeNotificationReceiver receiver = new ChangeNotificationReceiver(handler,
+					Integer.parseInt(option("--port", String.valueOf(ChangeNotificationReceiver.DEFAULTPORT))), address,
+					TimeUnit.SECONDS.toMillis(Long.parseLong(option("--ttl", "86400"))))) {
+				receiver.start();
+				// The changes made before the channel was open, on the receiver thread like the others.
+				receiver.refresh();
+				// The token is only needed to simulate the notifications.
+				if (address == null)
+					writeRecord("simulating", "channel", receiver.getChannel().getId(), "token", receiver.getChannel().getToken());
+				else
+					writeRecord("watching", "channel", receiver.getChannel().getId(), "address", address);
+				stopped.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		finally {
+			closed.countDown();
+			try {
+				Runtime.getRuntime().removeShutdownHook(hook);
+			}
+			catch (IllegalStateException e) {
+				// The process is exiting: the hook is running.
+			}
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Writes a record made of a status and two named values.
+	 */
+	private void writeRecord(String status, String firstName, Object first, String secondName, Object second) {
+
+		String record;
+		if (options.containsKey("--json")) {
+			GenericJson json = new GenericJson();
+			json.setFactory(jsonFactory);
+			json.set("status", status);
+			json.set(firstName, first);
+			json.set(secondName, second);
+			record = json.toString();
+		}
+		else
+			record = String.format("%s\t%s\t%s", status, first, second);
+		synchronized (out) {
+			out.println(record);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Applies the permission set to the folder tree.
+	 */
+	private int share() throws IOException {
+
+		if (arguments.size() < 2) {
+			err.printf(USAGE);
+			return EXIT_USAGE;
+		}
+
+		List<Permission> permissions = new ArrayList<>();
+		for (String spec : arguments.subList(1, arguments.size())) {
+			try {
+				permissions.add(PermissionOperations.parse(spec));
+			}
+			catch (IllegalArgumentException e) {
+				err.printf("%s%n", e.getMessage());
+				return EXIT_USAGE;
+			}
+		}
+		PermissionOperations.Result result = PermissionOperations.share(arguments.get(0), permissions,
+				options.containsKey("--prune"), Integer.parseInt(option("--parallel", "8")));
+		if (options.containsKey("--json"))
+			out.println(result.toString());
+		else
+			for (Map.Entry<String, Object> field : result.entrySet())
+				out.println(String.format("%s\t%s", field.getKey(), field.getValue()));
+		return result.getFailed() == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Loads the metadata index, or applies the changes made since it was last updated.
+	 */
+	private int index() throws IOException {
+
+		try (MetadataIndex index = MetadataIndex.open()) {
+			String status = "updated";
+			int changes = 0;
+			if (index.isLoaded())
+				changes = index.update();
+			else {
+				index.load();
+				status = "loaded";
+			}
+			if (options.containsKey("--json")) {
+				GenericJson record = new GenericJson();
+				record.setFactory(jsonFactory);
+				record.set("status", status);
+				record.set("files", index.size());
+				record.set("changes", changes);
+				out.println(record.toString());
+			}
+			else
+				out.println(String.format("%s\t%d\t%d", status, index.size(), changes));
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Searches the metadata index, most recently modified first.
+	 */
+	private int search() throws IOException {
+
+		MetadataIndex.Query query = new MetadataIndex.Query()
+				.setName(String.join(" ", arguments))
+				.setLimit(Integer.parseInt(option("--limit", "100")));
+		if (options.containsKey("--type"))
+			query.setMimeType(options.get("--type"));
+		if (options.containsKey("--owner"))
+			query.setOwner(options.get("--owner"));
+		if (options.containsKey("--days"))
+			query.setModifiedAfter(System.currentTimeMillis()
+					- TimeUnit.DAYS.toMillis(Integer.parseInt(options.get("--days"))));
+		if (options.containsKey("--min-size"))
+			query.setMinSize(parseRate(options.get("--min-size")));
+		if (options.containsKey("--max-size"))
+			query.setMaxSize(parseRate(options.get("--max-size")));
+		if (options.containsKey("--folder"))
+			query.setFolder(options.get("--folder"));
+
+		try (MetadataIndex index = MetadataIndex.open()) {
+			long maxAge = TimeUnit.SECONDS.toMillis(Long.parseLong(option("--max-age", "300")));
+			for (FileRecord record : index.search(query, maxAge))
+				writeFile("found", null, record.toFile(index.getIds()));
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Displays the bandwidth limits, after changing them if --rate or --job-rate is specified, and the HTTP requests sent
+	 * by each identity of the client pool, if any.
+	 */
+	private int limit() {
+		TransferScheduler scheduler = FileOperations.getTransferScheduler();
+		out.println(String.format("rate\t%d", scheduler.getRate()));
+		out.println(String.format("job-rate\t%d", scheduler.getTransferRate()));
+		out.println(String.format("call-rate\t%d", BatchExecutor.getCallRate()));
+		DriveClientPool pool = DriveClientPool.getInstalled();
+		if (pool != null)
+			for (Map.Entry<String, Long> shard : pool.getUsage().entrySet())
+				out.println(String.format("requests\t%s\t%d", shard.getKey(), shard.getValue()));
+		return EXIT_OK;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * Stores the files smaller than the --pack-threshold option in packs, in the folder of the files, and removes the
+	 * packed files from the list. The files of a pack which could not be created are left in the list, sorted by size
+	 * like the others, so that they are uploaded one by one.
+	 */
+	private void packSmallFiles(List<java.io.File> localFiles, Map<java.io.File, String> parents) throws IOException {
+
+		long threshold = parseRate(option("--pack-threshold", "64K"));
+		Map<String, List<java.io.File>> folders = new LinkedHashMap<>();
+		for (java.io.File localFile : localFiles)
+			if (localFile.length() < threshold)
+				folders.computeIfAbsent(parents.get(localFile), folderID -> new ArrayList<>()).add(localFile);
+
+		for (Map.Entry<String, List<java.io.File>> folder : folders.entrySet()) {
+			List<java.io.File> smallFiles = folder.getValue();
+			if (smallFiles.size() < 2)
+				continue;
+			Map<java.io.File, String> failures = new LinkedHashMap<>();
+			Map<File, PackOperations.PackIndex> packs = PackOperations.pack(smallFiles, folder.getKey(),
+					parseRate(option("--pack-size", "64M")), failures);
+			for (Map.Entry<java.io.File, String> failure : failures.entrySet())
+				err.printf("Error occurred: packing %s: %s; uploading it alone%n", failure.getKey().getPath(), failure.getValue());
+
+			// The members are in the order of the local files which were packed.
+			List<java.io.File> packed = new ArrayList<>(smallFiles);
+			packed.removeAll(failures.keySet());
+			localFiles.removeAll(new HashSet<>(packed));
+			int next = 0;
+			for (Map.Entry<File, PackOperations.PackIndex> pack : packs.entrySet())
+				for (int i = 0; i < pack.getValue().getMembers().size(); i++)
+					writeFile("packed", packed.get(next++).getPath(), pack.getKey());
+		}
+	}
+
+	/**
+	 * Applies the --rate, --job-rate and --call-rate options to the transfer scheduler and the batches.
+	 * The limits are those of the process: in daemon mode only the limit command changes them, so that the limits of a
+	 * command do not apply to the commands which follow.
+	 * @return false if the options cannot be applied by the command; otherwise, true.
+	 */
+	private boolean setLimits(String command) {
+		if (daemon && !"limit".equals(command)) {
+			for (String option : new String[] { "--rate", "--job-rate", "--call-rate" })
+				if (options.containsKey(option)) {
+					err.printf("%s would change the limits of the daemon: use drive limit%n", option);
+					return false;
+				}
+			return true;
+		}
+		TransferScheduler scheduler = FileOperations.getTransferScheduler();
+		if (options.containsKey("--rate"))
+			scheduler.setRate(parseRate(options.get("--rate")));
+		if (options.containsKey("--job-rate"))
+			scheduler.setTransferRate(parseRate(options.get("--job-rate")));
+		if (options.containsKey("--call-rate"))
+			BatchExecutor.setCallRate(Long.parseLong(options.get("--call-rate")));
+		return true;
+	}
+
+	/**
+	 * Parses a rate in bytes per second, or a size in bytes, with an optional K, M or G suffix.
+	 */
+	private static long parseRate(String value) {
+		String number = value.trim().toUpperCase();
+		long unit = 1;
+		if (number.endsWith("K") || number.endsWith("M") || number.endsWith("G")) {
+			unit = number.endsWith("K") ? 1L << 10 : number.endsWith("M") ? 1L << 20 : 1L << 30;
+			number = number.substring(0, number.length() - 1);
+		}
+		return Math.round(Double.parseDouble(number) * unit);
+	}
+
+	/**
+	 * Runs the tasks using the number of threads specified by the --parallel option.
+	 * @return EXIT_OK if all the tasks succeeded; otherwise, EXIT_FAILED.
+	 */
+	private int runParallel(List<Runnable> tasks) {
+
+		int parallel = Integer.parseInt(option("--parallel", "4"));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallel));
+		AtomicInteger failures = new AtomicInteger();
+
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Runnable task : tasks)
+				futures.add(executor.submit(task));
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				}
+				catch (Exception e) {
+					failures.incrementAndGet();
+					Throwable cause = e.getCause() != null ? e.getCause() : e;
+					err.printf("Error occurred: %s%n", cause.getMessage());
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return failures.get() == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Records the jobs in the transfer queue, then runs them with the jobs left unfinished by the previous runs,
+	 * using the number of workers specified by the --parallel option.
+	 * The jobs are owned by this run, so that the other commands of the daemon, which share the queue, do not run them.
+	 * @param jobs The new jobs; the ones already pending or done are ignored.
+	 * @return EXIT_OK if all the jobs succeeded; otherwise, EXIT_FAILED.
+	 */
+	private int runQueued(List<TransferJob> jobs) throws IOException {
+
+		String run = "run-" + queuedRuns.incrementAndGet();
+		try (TransferQueue queue = TransferQueue.open()) {
+			queue.enqueueAll(run, jobs);
+			try {
+				AtomicInteger failures = new AtomicInteger();
+				List<Runnable> workers = new ArrayList<>();
+				int parallel = Math.max(1, Integer.parseInt(option("--parallel", "4")));
+				for (int i = 0; i < parallel; i++) {
+					workers.add(() -> {
+						TransferJob job;
+						while ((job = queue.take(run)) != null) {
+							if (!runJob(queue, job))
+								failures.incrementAndGet();
+						}
+					});
+				}
+				int exitCode = runParallel(workers);
+				return failures.get() == 0 ? exitCode : EXIT_FAILED;
+			}
+			finally {
+				// The jobs left, if the run stopped early, are run by the next command.
+				queue.release(run);
+			}
+		}
+	}
+
+	/**
+	 * Runs a job taken from the transfer queue and records its outcome.
+	 * @return true if the job succeeded; otherwise, false.
+	 */
+	private boolean runJob(TransferQueue queue, TransferJob job) {
+
+		java.io.File localFile = new java.io.File(job.getLocalPath());
+		try {
+			switch (job.getType()) {
+				case TransferJob.UPLOAD:
+					// Reserve the ID first, so that a retry after a crash finds the file instead of creating a copy.
+					queue.start(job, job.getFileID() == null ? FileOperations.nextFileID() : null);
+					writeFile("uploaded", localFile.getPath(), FileOperations.uploadFile(
+							localFile, job.getRemoteID(), job.getMimeType(), job.getFileID()));
+					break;
+				case TransferJob.UPDATE:
+					queue.start(job, null);
+					writeFile("updated", localFile.getPath(),
+							FileOperations.updateFile(job.getRemoteID(), localFile, job.getMimeType()));
+					break;
+				default:
+					queue.start(job, null);
+					writeFile("downloaded", localFile.getPath(),
+							FileOperations.downloadFile(job.getRemoteID(), localFile, job.getMimeType()));
+					break;
+			}
+			queue.complete(job);
+			return true;
+		}
+		catch (IOException e) {
+			err.printf("Error occurred: %s: %s%n", localFile.getPath(), e.getMessage());
+			try {
+				queue.fail(job, e.getMessage());
+			}
+			catch (IOException logError) {
+				err.printf("Error occurred: %s%n", logError.getMessage());
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Writes one record for the specified file; the record is flushed right away so that the
+	 * reader of the stream can process it while the command is still running.
+	 * @param status The outcome of the operation.
+	 * @param path The local path involved in the operation; null if none.
+	 * @param file The Drive file metadata.
+	 */
+	private void writeFile(String status, String path, File file) {
+
+		String record;
+		if (options.containsKey("--json")) {
+			GenericJson json = new GenericJson();
+			json.setFactory(jsonFactory);
+			json.set("status", status);
+			if (path != null)
+				json.set("path", path);
+			json.set("file", file);
+			record = json.toString();
+		}
+		else
+			record = String.format("%s\t%s\t%s\t%s\t%s\t%s", status, file.getId(), file.getName(),
+					file.getMimeType(), file.getModifiedTime(), path == null ? "" : path);
+
+		synchronized (out) {
+			out.println(record);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Adds the specified file or, if it is a directory, the regular files under it, with the Drive folder of each one.
+	 * The files of the directory go into the parent folder; its subdirectories are first copied into the parent folder,
+	 * see {@link FolderOperations#mirrorLocalTree}, and their files go into the copies.
+	 * @return The number of files left out because their folder could not be created.
+	 */
+	private int addLocalFiles(java.io.File path, String parentID, Map<java.io.File, String> parents) throws IOException {
+
+		if (path.isFile()) {
+			parents.put(path, parentID);
+			return 0;
+		}
+		if (!path.isDirectory())
+			throw new IOException(String.format("%s not found", path.getPath()));
+
+		Path root = path.toPath().toAbsolutePath().normalize();
+		Map<Path, String> folders = new HashMap<>();
+		folders.put(root, parentID);
+		java.io.File[] children = path.listFiles();
+		if (children != null)
+			for (java.io.File child : children)
+				if (child.isDirectory()) {
+					Map<Path, String> failures = new HashMap<>();
+					folders.putAll(FolderOperations.mirrorLocalTree(child.toPath(), parentID,
+							Integer.parseInt(option("--parallel", "4")), failures));
+					for (Map.Entry<Path, String> failure : failures.entrySet())
+						err.printf("Error occurred: %s: %s%n", failure.getKey(), failure.getValue());
+				}
+
+		int missing = 0;
+		try (Stream<Path> files = Files.walk(root)) {
+			for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+				String folderID = folders.get(file.getParent());
+				// Keep the path as written by the user.
+				java.io.File localFile = new java.io.File(path, root.relativize(file).toString());
+				if (folderID != null)
+					parents.put(localFile, folderID);
+				else {
+					err.printf("Error occurred: %s: folder not created%n", localFile.getPath());
+					missing++;
+				}
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Tells whether the local file has the content of the Drive file, comparing the sizes then the MD5 checksums.
+	 */
+	private static boolean sameContent(java.io.File localFile, File remoteFile) throws IOException {
+
+		// The Google formats have neither.
+		if (remoteFile.getSize() == null || remoteFile.getMd5Checksum() == null || remoteFile.getSize() != localFile.length())
+			return false;
+		StreamingChecksum checksum = new StreamingChecksum(false);
+		try (InputStream in = checksum.wrap(new FileInputStream(localFile))) {
+			byte[] buffer = new byte[64 * 1024];
+			while (in.read(buffer) != -1)
+				;
+		}
+		return checksum.matches(remoteFile.getMd5Checksum());
+	}
+
+	/**
+	 * Gets the parent folder from the --parent option or from the default settings.
+	 * @throws IllegalArgumentException Neither the option nor the default folder is set.
+	 */
+	private String parentFolderID() {
+		String parentID = options.get("--parent");
+		if (parentID != null)
+			return parentID;
+		// Not readSettings(): it writes to the standard output and exits on errors, which would stop the daemon.
+		try {
+			parentID = DriveDefaultSettings.loadSettings().getFolderID();
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException(String.format("No --parent and no default settings: %s", e.getMessage()));
+		}
+		if (parentID == null || parentID.isEmpty())
+			throw new IllegalArgumentException(String.format("No --parent and no folderID in %s", DriveDefaultSettings.DEFAULTSFILE));
+		return parentID;
+	}
+
+	/**
+	 * Gets the MIME type of the local file; defaults to application/octet-stream.
+	 */
+	private static String mimeTypeOf(java.io.File localFile) {
+		Path path = localFile.toPath();
+		try {
+			String mimeType = java.nio.file.Files.probeContentType(path);
+			if (mimeType != null)
+				return mimeType;
+		}
+		catch (IOException e) {
+			// Fall through to the default.
+		}
+		return "application/octet-stream";
+	}
+
+	private int priority() {
+		return Integer.parseInt(option("--priority", "0"));
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+}
@@ -0,0 +1,590 @@
+package com.acloudysky.drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+
+/***
+ * Keeps the content of the Drive files read repeatedly, such as the reference images fetched by many jobs, so that it is
+ * downloaded once rather than on every read.
+ * The content is cached in the blocks of 64 KB of the {@link RemoteFileChannel}, in two tiers: a memory tier, 64 MB by default,
+ * and a disk tier, 1 GB by default, which survives the process and is shared with the other processes using the same directory.
+ * Each tier evicts the least recently used blocks. A block is read from the memory tier, else from the disk tier, which copies it
+ * into memory, else from the Drive, which stores it into both.
+ * The blocks are identified by the file ID and the MD5 checksum of the content, so a block of an older content is never returned:
+ * before a file is read its checksum is validated by a metadata call, unless it was validated less than <i>maxAge</i> ago.
+ * Reads with a long <i>maxAge</i> send no call at all; to see the changes anyway, use the cache as the handler of a
+ * {@link ChangeNotificationReceiver}, or call {@link #fetchChanges()} periodically: the changed files are validated again
+ * on their next read.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The whole reads, {@link #read(String, long)} and {@link #download(String, java.io.File, long)}, verify the content against the
+ * 	checksum; when it does not match, because a disk block is damaged, the blocks of the file are dropped and it is read again once.
+ * 	The blocks are fetched from the validated revision, which is validated again if the Drive no longer has it.</li>
+ *  <li>The blocks of the previous content of a file are dropped when the validation finds that it changed; the blocks of the
+ *  deleted files are evicted like the unused ones.</li>
+ *  <li>The Google formats have no content to cache: they must be exported, see {@link ExportOperations}.</li>
+ *  <li>Each process enforces the disk capacity on the blocks it knows; the processes sharing a directory can exceed it
+ *  until they restart.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class ContentCache implements ChangeNotificationReceiver.ChangeHandler {
+
+	final static String CACHEDIR = "content_cache";
+	private final static long DEFAULT_MEMORY_CAPACITY = 64L * 1024 * 1024;
+	private final static long DEFAULT_DISK_CAPACITY = 1024L * 1024 * 1024;
+	private final static String TEMP_SUFFIX = ".tmp";
+	private final static int PAGE_SIZE = 1000;
+	private final static int NOT_FOUND = 404;
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+	// The cache shared by the commands of the process.
+	private static ContentCache defaultCache;
+
+	/***
+	 * The metrics of a cache, counted in blocks: the hits are the blocks read from a tier, the misses the blocks fetched
+	 * from the Drive, including the ones read ahead.
+	 */
+	public static class Stats extends GenericJson {
+
+		@Key("memoryHits")
+		private long memoryHits;
+
+		@Key("diskHits")
+		private long diskHits;
+
+		@Key("misses")
+		private long misses;
+
+		// The ratio of the blocks read from the cache.
+		@Key("hitRatio")
+		private double hitRatio;
+
+		// Metadata calls sent to validate a file.
+		@Key("validations")
+		private long validations;
+
+		// Files found changed by a validation or reported by the change feed.
+		@Key("invalidations")
+		private long invalidations;
+
+		@Key("memoryEvictions")
+		private long memoryEvictions;
+
+		@Key("diskEvictions")
+		private long diskEvictions;
+
+		@Key("memoryBytes")
+		private long memoryBytes;
+
+		@Key("diskBytes")
+		private long diskBytes;
+
+		public long getMemoryHits() {
+			return memoryHits;
+		}
+
+		public long getDiskHits() {
+			return diskHits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+	}
+
+	// A file validated against the Drive.
+	private static class Version {
+		private final File file;
+		private final long validatedTime;
+		// Reported changed: validated again whatever its age.
+		private final boolean stale;
+
+		private Version(File file, long validatedTime, boolean stale) {
+			this.file = file;
+			this.validatedTime = validatedTime;
+			this.stale = stale;
+		}
+	}
+
+	/**
+	 * Opens the destination of a whole read.
+	 */
+	private interface Sink {
+		OutputStream open() throws IOException;
+	}
+
+	private final java.io.File directory;
+	private final long memoryCapacity;
+	private final long diskCapacity;
+
+	// The state below is guarded by this.
+	private final Map<String, Version> versions = new HashMap<>();
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes;
+	// The lengths of the blocks on disk, by name.
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private long diskBytes;
+	// The position in the change feed; null until the first fetch.
+	private String pageToken;
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong validations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong memoryEvictions = new AtomicLong();
+	private final AtomicLong diskEvictions = new AtomicLong();
+
+	/**
+	 * Initializes the service client used to validate the files and read the change feed.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initContentCache(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Gets the cache shared by the process, stored in the content_cache directory with the default capacities.
+	 * @return The cache.
+	 * @throws IOException The directory could not be created or read.
+	 */
+	public static synchronized ContentCache getDefault() throws IOException {
+		if (defaultCache == null)
+			defaultCache = new ContentCache(new java.io.File(
+					Utility.getAbsoluteFilePath(DriveDefaultSettings.SERVICESDIR, DriveDefaultSettings.DATADIR, CACHEDIR)),
+					DEFAULT_MEMORY_CAPACITY, DEFAULT_DISK_CAPACITY);
+		return defaultCache;
+	}
+
+	/**
+	 * Instantiates the ContentCache class and loads the blocks already stored in the directory, the most recently used last.
+	 * @param directory The directory of the disk tier; it is created if needed.
+	 * @param memoryCapacity The capacity of the memory tier, in bytes.
+	 * @param diskCapacity The capacity of the disk tier, in bytes; 0 to keep the blocks in memory only.
+	 * @throws IOException The directory could not be created or read.
+	 */
+	public ContentCache(java.io.File directory, long memoryCapacity, long diskCapacity) throws IOException {
+
+		this.directory = directory;
+		this.memoryCapacity = memoryCapacity;
+		this.diskCapacity = diskCapacity;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException(String.format("Cannot create the cache directory %s", directory));
+
+		java.io.File[] blocks = directory.listFiles();
+		if (blocks == null)
+			throw new IOException(String.format("Cannot read the cache directory %s", directory));
+		Arrays.sort(blocks, Comparator.comparingLong(java.io.File::lastModified));
+		for (java.io.File block : blocks) {
+			// Left by a process which died while writing.
+			if (block.getName().endsWith(TEMP_SUFFIX))
+				block.delete();
+			else if (block.isFile()) {
+				disk.put(block.getName(), block.length());
+				diskBytes += block.length();
+			}
+		}
+		deleteBlocks(evictDisk());
+	}
+
+	/**
+	 * Reads the whole content of the specified file into memory, through the cache.
+	 * @param fileID The ID of the file.
+	 * @param maxAge How long a validation of the file is trusted, in milliseconds; 0 to validate it now.
+	 * @return The content.
+	 * @throws IOException The file has no content, its content does not match its checksum, or an I/O error has been detected.
+	 */
+	public byte[] read(String fileID, long maxAge) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		copyVerified(fileID, maxAge, () -> {
+			content.reset();
+			return content;
+		});
+		return content.toByteArray();
+	}
+
+	/**
+	 * Downloads the content of the specified file into the local target, through the cache.
+	 * @param fileID The ID of the file.
+	 * @param target The local target file.
+	 * @param maxAge How long a validation of the file is trusted, in milliseconds; 0 to validate it now.
+	 * @return The metadata of the file.
+	 * @throws IOException The file has no content, its content does not match its checksum, or an I/O error has been detected.
+	 */
+	public File download(String fileID, java.io.File target, long maxAge) throws IOException {
+		try {
+			return copyVerified(fileID, maxAge, () -> new FileOutputStream(target));
+		}
+		catch (IOException e) {
+			target.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a channel on the content of the specified file which reads its blocks through the cache, to read parts of the file.
+	 * The parts are not verified against the checksum.
+	 * @param fileID The ID of the file.
+	 * @param maxAge How long a validation of the file is trusted, in milliseconds; 0 to validate it now.
+	 * @return The channel, at position 0.
+	 * @throws IOException The file has no content, or an I/O error has been detected.
+	 */
+	public RemoteFileChannel open(String fileID, long maxAge) throws IOException {
+		return RemoteFileChannel.open(validate(fileID, maxAge), this);
+	}
+
+	/**
+	 * Gets the metadata of the file, validated by a metadata call unless it was validated less than <i>maxAge</i> ago.
+	 * If the checksum changed, the blocks of the previous content are dropped.
+	 * @param fileID The ID of the file.
+	 * @param maxAge How long a validation is trusted, in milliseconds.
+	 * @return The metadata, with the name, size, MD5 checksum and head revision.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public File validate(String fileID, long maxAge) throws IOException {
+
+		Version version;
+		synchronized (this) {
+			version = versions.get(fileID);
+		}
+		if (version != null && !version.stale && System.currentTimeMillis() - version.validatedTime < maxAge)
+			return version.file;
+
+		long validatedTime = System.currentTimeMillis();
+		File file = DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+				.setFields("id, name, mimeType, size, md5Checksum, headRevisionId")
+				.execute();
+		validations.incrementAndGet();
+		if (version != null && version.file.getMd5Checksum() != null
+				&& !version.file.getMd5Checksum().equals(file.getMd5Checksum())) {
+			// A file reported changed is already counted.
+			if (!version.stale)
+				invalidations.incrementAndGet();
+			drop(fileID, version.file.getMd5Checksum());
+		}
+		synchronized (this) {
+			versions.put(fileID, new Version(file, validatedTime, false));
+		}
+		return file;
+	}
+
+	/**
+	 * Marks the specified file as changed: it is validated again on its next read, whatever the age of its validation.
+	 * @param fileID The ID of the file.
+	 */
+	public void invalidate(String fileID) {
+		synchronized (this) {
+			Version version = versions.get(fileID);
+			if (version == null || version.stale)
+				return;
+			// The checksum is kept, so the validation can drop the blocks of the previous content.
+			versions.put(fileID, new Version(version.file, version.validatedTime, true));
+		}
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Gets the position in the change feed from which {@link #fetchChanges()} reads the changes, taking the current one
+	 * on the first call.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	@Override
+	public synchronized String getPageToken() throws IOException {
+		if (pageToken == null)
+			pageToken = authenticatedClient.changes().getStartPageToken().execute().getStartPageToken();
+		return pageToken;
+	}
+
+	/**
+	 * Reads the changes made since the previous call and invalidates the cached files which changed.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	@Override
+	public void fetchChanges() throws IOException {
+
+		String token = getPageToken();
+		while (token != null) {
+			ChangeList changes = authenticatedClient.changes().list(token)
+					.setPageSize(PAGE_SIZE)
+					.setSpaces("drive")
+					.setFields("nextPageToken, newStartPageToken, changes(fileId)")
+					.execute();
+			for (Change change : changes.getChanges())
+				if (change.getFileId() != null)
+					invalidate(change.getFileId());
+			if (changes.getNewStartPageToken() != null) {
+				synchronized (this) {
+					pageToken = changes.getNewStartPageToken();
+				}
+				token = null;
+			}
+			else
+				token = changes.getNextPageToken();
+		}
+	}
+
+	/**
+	 * Gets the metrics of the cache.
+	 */
+	public Stats getStats() {
+
+		Stats stats = new Stats();
+		stats.memoryHits = memoryHits.get();
+		stats.diskHits = diskHits.get();
+		stats.misses = misses.get();
+		long reads = stats.memoryHits + stats.diskHits + stats.misses;
+		stats.hitRatio = reads == 0 ? 0 : (double) (stats.memoryHits + stats.diskHits) / reads;
+		stats.validations = validations.get();
+		stats.invalidations = invalidations.get();
+		stats.memoryEvictions = memoryEvictions.get();
+		stats.diskEvictions = diskEvictions.get();
+		synchronized (this) {
+			stats.memoryBytes = memoryBytes;
+			stats.diskBytes = diskBytes;
+		}
+		stats.setFactory(JacksonFactory.getDefaultInstance());
+		return stats;
+	}
+
+	/*********************
+	 * Block functions   *
+	 *********************/
+
+	/**
+	 * Gets a block from the memory tier, else from the disk tier; counts a hit. The misses are counted by
+	 * {@link #putBlock(String, String, long, byte[])}, for each block fetched from the Drive, including the ones read ahead.
+	 * @param length The expected length of the block; a disk block of another length is dropped.
+	 * @return The block; null if it is not cached.
+	 */
+	byte[] getBlock(String fileID, String md5Checksum, long index, int length) {
+
+		if (md5Checksum == null)
+			return null;
+		String name = blockName(fileID, md5Checksum, index);
+		synchronized (this) {
+			byte[] block = memory.get(name);
+			if (block != null) {
+				memoryHits.incrementAndGet();
+				return block;
+			}
+			if (!disk.containsKey(name))
+				return null;
+		}
+
+		java.io.File file = new java.io.File(directory, name);
+		byte[] block = null;
+		try {
+			block = Files.readAllBytes(file.toPath());
+			// Keeps the recency across the restarts.
+			file.setLastModified(System.currentTimeMillis());
+		}
+		catch (IOException e) {
+			// Evicted by another process.
+		}
+		if (block == null || block.length != length) {
+			synchronized (this) {
+				Long removed = disk.remove(name);
+				if (removed != null)
+					diskBytes -= removed;
+			}
+			file.delete();
+			return null;
+		}
+		diskHits.incrementAndGet();
+		synchronized (this) {
+			putMemory(name, block);
+		}
+		return block;
+	}
+
+	/**
+	 * Tells whether a block is cached, without counting a hit or a miss.
+	 */
+	synchronized boolean containsBlock(String fileID, String md5Checksum, long index) {
+		if (md5Checksum == null)
+			return false;
+		String name = blockName(fileID, md5Checksum, index);
+		return memory.containsKey(name) || disk.containsKey(name);
+	}
+
+	/**
+	 * Stores a block fetched from the Drive into both tiers; counts a miss.
+	 */
+	void putBlock(String fileID, String md5Checksum, long index, byte[] block) {
+
+		misses.incrementAndGet();
+		if (md5Checksum == null)
+			return;
+		String name = blockName(fileID, md5Checksum, index);
+		synchronized (this) {
+			putMemory(name, block);
+		}
+		if (diskCapacity <= 0)
+			return;
+
+		// Written aside, then renamed, so no process reads a partial block.
+		java.io.File file = new java.io.File(directory, name);
+		java.io.File temp = new java.io.File(directory, name + TEMP_SUFFIX);
+		try {
+			Files.write(temp.toPath(), block);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			temp.delete();
+			System.err.println(String.format("Error occurred: caching %s: %s", name, e.getMessage()));
+			return;
+		}
+		List<String> evicted;
+		synchronized (this) {
+			Long replaced = disk.put(name, (long) block.length);
+			diskBytes += block.length - (replaced == null ? 0 : replaced);
+			evicted = evictDisk();
+		}
+		deleteBlocks(evicted);
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * Reads the whole content through a channel into the sink and verifies it; when it does not match, drops the blocks of the
+	 * file and reads it again, with a new validation.
+	 */
+	private File copyVerified(String fileID, long maxAge, Sink sink) throws IOException {
+
+		for (int attempt = 1; ; attempt++) {
+			File file = validate(fileID, attempt == 1 ? maxAge : 0);
+			StreamingChecksum checksum = new StreamingChecksum(false);
+			try (RemoteFileChannel channel = RemoteFileChannel.open(file, this);
+					OutputStream out = checksum.wrap(sink.open())) {
+				ByteBuffer buffer = ByteBuffer.allocate(RemoteFileChannel.BLOCK_SIZE * 16);
+				while (channel.read(buffer) != -1) {
+					out.write(buffer.array(), 0, buffer.position());
+					buffer.clear();
+				}
+			}
+			catch (HttpResponseException e) {
+				// The revision validated earlier has been purged since.
+				if (attempt >= 2 || e.getStatusCode() != NOT_FOUND)
+					throw e;
+				invalidate(fileID);
+				continue;
+			}
+			catch (RemoteFileChannel.RevisionChangedException e) {
+				// The file changed since it was validated, and its revision cannot be read.
+				if (attempt >= 2)
+					throw e;
+				invalidate(fileID);
+				continue;
+			}
+			if (checksum.matches(file.getMd5Checksum()))
+				return file;
+			drop(fileID, file.getMd5Checksum());
+			invalidate(fileID);
+			if (attempt >= 2)
+				throw new IOException(String.format("%s: read checksum %s does not match Drive checksum %s after %d attempts",
+						file.getName(), checksum.getMd5Checksum(), file.getMd5Checksum(), attempt));
+			if (Utility.isDEBUG())
+				System.out.println(String.format("%s: checksum mismatch, reading again", file.getName()));
+		}
+	}
+
+	// The name of a block, in the memory tier and on disk; the IDs and checksums contain no path separator.
+	private static String blockName(String fileID, String md5Checksum, long index) {
+		return String.format("%s.%s.%d", fileID, md5Checksum, index);
+	}
+
+	// Guarded by this.
+	private void putMemory(String name, byte[] block) {
+		byte[] replaced = memory.put(name, block);
+		memoryBytes += block.length - (replaced == null ? 0 : replaced.length);
+		Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+		while (memoryBytes > memoryCapacity && eldest.hasNext()) {
+			memoryBytes -= eldest.next().getValue().length;
+			eldest.remove();
+			memoryEvictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes the least recently used blocks from the disk index until it fits; guarded by this.
+	 * @return The names of the blocks to delete.
+	 */
+	private List<String> evictDisk() {
+		List<String> evicted = new ArrayList<>();
+		Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+		while (diskBytes > diskCapacity && eldest.hasNext()) {
+			Map.Entry<String, Long> block = eldest.next();
+			diskBytes -= block.getValue();
+			evicted.add(block.getKey());
+			eldest.remove();
+			diskEvictions.incrementAndGet();
+		}
+		return evicted;
+	}
+
+	private void deleteBlocks(List<String> names) {
+		for (String name : names)
+			new java.io.File(directory, name).delete();
+	}
+
+	/**
+	 * Removes the blocks of a content of the file from both tiers.
+	 */
+	private void drop(String fileID, String md5Checksum) {
+
+		if (md5Checksum == null)
+			return;
+		String prefix = String.format("%s.%s.", fileID, md5Checksum);
+		List<String> dropped = new ArrayList<>();
+		synchronized (this) {
+			Iterator<Map.Entry<String, byte[]>> blocks = memory.entrySet().iterator();
+			while (blocks.hasNext()) {
+				Map.Entry<String, byte[]> block = blocks.next();
+				if (block.getKey().startsWith(prefix)) {
+					memoryBytes -= block.getValue().length;
+					blocks.remove();
+				}
+			}
+			Iterator<Map.Entry<String, Long>> files = disk.entrySet().iterator();
+			while (files.hasNext()) {
+				Map.Entry<String, Long> block = files.next();
+				if (block.getKey().startsWith(prefix)) {
+					diskBytes -= block.getValue();
+					dropped.add(block.getKey());
+					files.remove();
+				}
+			}
+		}
+		deleteBlocks(dropped);
+	}
+
+}
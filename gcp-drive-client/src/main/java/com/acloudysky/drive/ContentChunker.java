@@ -0,0 +1,148 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/***
+ * Splits a stream into content-defined chunks with the FastCDC algorithm.
+ * The chunk boundaries depend on the content, not on the offsets: a rolling Gear hash of the last bytes is computed and a chunk
+ * ends where the hash matches a mask. Inserting or removing a few bytes in a large file therefore only changes the chunks around
+ * the edit; the other chunks keep their boundaries and their hashes, so they need not be uploaded again.
+ * As in FastCDC, no boundary is looked for in the first <i>minSize</i> bytes of a chunk, and a stricter mask is used before
+ * <i>avgSize</i> and a looser one after it (normalized chunking), which keeps the chunk sizes close to the average.
+ * <b>Note</b>. The Gear table is generated from a fixed seed: changing it would change all the boundaries.
+ * @author Michael
+ *
+ */
+public class ContentChunker {
+
+	// Default chunk sizes; large, because each chunk is stored as a Drive file.
+	final static int DEFAULT_MIN_SIZE = 256 * 1024;
+	final static int DEFAULT_AVG_SIZE = 1024 * 1024;
+	final static int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+	private final static long[] GEAR = new long[256];
+	static {
+		SplittableRandom random = new SplittableRandom(0x5DEECE66DL);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	/**
+	 * Receives the chunks in the order of the stream.
+	 * @author Michael
+	 *
+	 */
+	public interface ChunkVisitor {
+		/**
+		 * Processes the specified chunk.
+		 * @param offset The offset of the chunk in the stream.
+		 * @param data The chunk content; the array is not reused.
+		 * @throws IOException An I/O error has been detected.
+		 */
+		void visit(long offset, byte[] data) throws IOException;
+	}
+
+	private final int minSize;
+	private final int avgSize;
+	private final int maxSize;
+	// Stricter mask used before avgSize, looser mask used after it.
+	private final long maskS;
+	private final long maskL;
+
+	/**
+	 * Instantiates the ContentChunker class with the default sizes: 256 KB, 1 MB and 4 MB.
+	 */
+	public ContentChunker() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Instantiates the ContentChunker class.
+	 * @param minSize The minimum chunk size.
+	 * @param avgSize The expected chunk size; a power of 2.
+	 * @param maxSize The maximum chunk size.
+	 */
+	public ContentChunker(int minSize, int avgSize, int maxSize) {
+		if (minSize <= 0 || minSize > avgSize || avgSize > maxSize)
+			throw new IllegalArgumentException("The chunk sizes must be 0 < min <= avg <= max");
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+		int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+		this.maskS = topBits(bits + 2);
+		this.maskL = topBits(Math.max(1, bits - 2));
+	}
+
+	/**
+	 * Reads the stream to its end and passes each chunk to the visitor.
+	 * @param inputStream The stream to split.
+	 * @param visitor The visitor.
+	 * @return The length of the stream.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public long chunk(InputStream inputStream, ChunkVisitor visitor) throws IOException {
+
+		byte[] buffer = new byte[maxSize];
+		int length = 0;
+		long offset = 0;
+		boolean eof = false;
+
+		while (true) {
+			while (!eof && length < maxSize) {
+				int read = inputStream.read(buffer, length, maxSize - length);
+				if (read < 0)
+					eof = true;
+				else
+					length += read;
+			}
+			if (length == 0)
+				return offset;
+
+			int size = cut(buffer, length);
+			visitor.visit(offset, Arrays.copyOf(buffer, size));
+			System.arraycopy(buffer, size, buffer, 0, length - size);
+			length -= size;
+			offset += size;
+		}
+	}
+
+	/**
+	 * Finds the end of the chunk which starts at the beginning of the buffer.
+	 * @param buffer The buffer.
+	 * @param length The bytes available; at least maxSize unless the stream ended.
+	 * @return The chunk size.
+	 */
+	int cut(byte[] buffer, int length) {
+
+		if (length <= minSize)
+			return length;
+		int end = Math.min(length, maxSize);
+		int normal = Math.min(end, avgSize);
+
+		long hash = 0;
+		int i = minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+			if ((hash & maskS) == 0)
+				return i + 1;
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+			if ((hash & maskL) == 0)
+				return i + 1;
+		}
+		return end;
+	}
+
+	/**
+	 * Gets a mask of the top bits of the hash: with the Gear hash they depend on the last 64 bytes, while the low bits
+	 * depend on the last few bytes only.
+	 */
+	private static long topBits(int bits) {
+		return bits >= 64 ? -1L : ((1L << bits) - 1) << (64 - bits);
+	}
+
+}
@@ -0,0 +1,189 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.services.drive.Drive;
+
+/***
+ * Refreshes the OAuth2 access token in the background, before it expires, so that no request waits for a token round trip.
+ * The {@link Credential} built by the client authentication library refreshes the token lazily, while holding a lock that
+ * every request needs: the first request after the expiration, and all the requests queued behind it, wait for the refresh.
+ * This class authorizes the requests with a cached copy of the token instead, and replaces it from a background thread a few
+ * minutes before the expiration. The new token is persisted by the refresh listeners of the credential on that same thread.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Only one refresh runs at a time; the callers asking for a refresh while one is running share its result.</li>
+ *  <li>If the Drive still answers 401, the request waits for a refresh and is retried once.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class CredentialManager implements HttpRequestInitializer {
+
+	// Refresh the token this long before it expires.
+	private final static long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	// Delay before retrying a failed background refresh.
+	private final static long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(15);
+	// Time a request waits for a refresh after a 401 response.
+	private final static long REFRESH_TIMEOUT_SECONDS = 30;
+
+	private final Credential credential;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "credential-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// The token used to authorize the requests.
+	private volatile String accessToken;
+	// The refresh in progress, if any.
+	private final AtomicReference<CompletableFuture<String>> inFlight = new AtomicReference<>();
+
+	/**
+	 * Instantiates the CredentialManager class.
+	 * @param credential The credential whose token must be kept fresh.
+	 */
+	CredentialManager(Credential credential) {
+		this.credential = credential;
+		this.accessToken = credential.getAccessToken();
+	}
+
+	/**
+	 * Gets a client equivalent to the specified one whose token is refreshed in the background.
+	 * @param client A client authorized by a {@link Credential}.
+	 * @return The new client; the specified client if it is not authorized by a Credential.
+	 * @throws IOException The initial token could not be obtained.
+	 */
+	public static Drive manage(Drive client) throws IOException {
+
+		HttpRequestInitializer initializer = client.getRequestFactory().getInitializer();
+		if (!(initializer instanceof Credential))
+			return client;
+
+		CredentialManager manager = new CredentialManager((Credential) initializer);
+		manager.start();
+
+		return new Drive.Builder(client.getRequestFactory().getTransport(), client.getJsonFactory(), manager)
+				.setApplicationName(client.getApplicationName())
+				.setRootUrl(client.getRootUrl())
+				.setServicePath(client.getServicePath())
+				.build();
+	}
+
+	/**
+	 * Makes sure a valid token is available and schedules the next refresh.
+	 * @throws IOException The token could not be refreshed.
+	 */
+	void start() throws IOException {
+		Long expiresAt = credential.getExpirationTimeMilliseconds();
+		if (accessToken == null || expiresAt == null || expiresAt - System.currentTimeMillis() < REFRESH_MARGIN_MILLIS)
+			awaitRefresh();
+		scheduleRefresh();
+	}
+
+	/**
+	 * Sets the cached token on each request and retries once the requests rejected with 401.
+	 */
+	@Override
+	public void initialize(HttpRequest request) {
+		request.setInterceptor(httpRequest -> httpRequest.getHeaders().setAuthorization("Bearer " + accessToken));
+
+		HttpUnsuccessfulResponseHandler next = request.getUnsuccessfulResponseHandler();
+		request.setUnsuccessfulResponseHandler((httpRequest, response, supportsRetry) -> {
+			if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED) {
+				// The token was revoked or expired early: wait for the shared refresh.
+				String rejected = accessToken;
+				awaitRefresh();
+				return supportsRetry && !rejected.equals(accessToken);
+			}
+			return next != null && next.handleResponse(httpRequest, response, supportsRetry);
+		});
+	}
+
+	/**
+	 * Starts a refresh, unless one is already running.
+	 * @return The refresh; it completes with the new token.
+	 */
+	CompletableFuture<String> refresh() {
+
+		CompletableFuture<String> current = inFlight.get();
+		if (current != null)
+			return current;
+
+		CompletableFuture<String> created = new CompletableFuture<>();
+		if (!inFlight.compareAndSet(null, created))
+			return inFlight.get();
+
+		scheduler.execute(() -> {
+			try {
+				if (!credential.refreshToken())
+					throw new IOException("The access token could not be refreshed");
+				accessToken = credential.getAccessToken();
+				created.complete(accessToken);
+			}
+			catch (IOException | RuntimeException e) {
+				created.completeExceptionally(e);
+			}
+			finally {
+				inFlight.set(null);
+			}
+		});
+		return created;
+	}
+
+	/**
+	 * Waits for the shared refresh.
+	 */
+	private void awaitRefresh() throws IOException {
+		try {
+			refresh().get(REFRESH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Token refresh interrupted");
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		catch (TimeoutException e) {
+			throw new IOException("Token refresh timed out", e);
+		}
+	}
+
+	/**
+	 * Schedules the next background refresh a few minutes before the token expires.
+	 */
+	private void scheduleRefresh() {
+
+		Long expiresAt = credential.getExpirationTimeMilliseconds();
+		long delay = expiresAt == null ? RETRY_DELAY_MILLIS
+				: Math.max(0, expiresAt - System.currentTimeMillis() - REFRESH_MARGIN_MILLIS);
+
+		scheduler.schedule(() -> {
+			refresh().whenComplete((token, error) -> {
+				if (error == null)
+					scheduleRefresh();
+				else {
+					if (Utility.isDEBUG())
+						System.out.println(String.format("[CredentialManager] refresh error: %s", error.getMessage()));
+					scheduler.schedule(this::scheduleRefresh, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			});
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,520 @@
+package com.acloudysky.drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+/***
+ * Contains the methods which store large files as content-defined chunks, so that a new version of a file only uploads the
+ * chunks that changed. The file is split by the {@link ContentChunker}; each chunk is stored once, as a Drive file named after its
+ * SHA-256 hash, in the <i>.chunks</i> folder of the parent folder, and it is shared by all the files and versions of that folder.
+ * The file itself is represented by a manifest, named after the file with the <i>.manifest.json</i> suffix, listing its chunks:
+ * <pre>
+ * { "name" : "disk.img", "size" : 4294967296, "chunks" : [ { "hash" : "9f86...", "offset" : 0, "size" : 1048576, "id" : "CHUNKID" } ] }
+ * </pre>
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The chunks already stored are known from a local index, the <i>chunk_index.json</i> file next to the client_defaults.json
+ *  file. When the index knows nothing about a chunks folder, it is loaded by listing the folder. Before a manifest refers to
+ *  chunks provided by the index, the folder is listed once per process, and the chunks deleted meanwhile are stored again.</li>
+ *  <li>The download fetches the chunks in parallel and writes each of them at its offset; each chunk is verified against its hash.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class DeltaOperations {
+
+	// The name of the folder holding the chunks.
+	final static String CHUNKS_FOLDER = ".chunks";
+	// The suffix of the manifest file names.
+	final static String MANIFEST_SUFFIX = ".manifest.json";
+	// Local chunk index file name.
+	final static String INDEXFILE = "chunk_index.json";
+
+	private final static JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	// The chunks known to be stored, keyed by chunks folder ID, then by hash.
+	private static ChunkIndex chunkIndex;
+	// The chunks folders listed by this process; the index is trusted for the others only once checked.
+	private final static Set<String> listedFolders = ConcurrentHashMap.newKeySet();
+
+	/***
+	 * The manifest of a chunked file.
+	 */
+	public static class Manifest extends GenericJson {
+
+		@Key("name")
+		private String name;
+
+		@Key("size")
+		private Long size;
+
+		@Key("chunks")
+		private List<ChunkRef> chunks;
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public List<ChunkRef> getChunks() {
+			return chunks;
+		}
+	}
+
+	/***
+	 * A chunk of a file.
+	 */
+	public static class ChunkRef extends GenericJson {
+
+		@Key("hash")
+		private String hash;
+
+		@Key("offset")
+		private Long offset;
+
+		@Key("size")
+		private Integer size;
+
+		// The ID of the Drive file holding the chunk.
+		@Key("id")
+		private String id;
+	}
+
+	/***
+	 * The local chunk index, stored in the chunk_index.json file.
+	 */
+	public static class ChunkIndex extends GenericJson {
+
+		@Key("folders")
+		private Map<String, Map<String, String>> folders;
+	}
+
+	/***
+	 * The outcome of an upload.
+	 */
+	public static class Result {
+
+		private final File manifestFile;
+		private final int chunks;
+		private final int uploadedChunks;
+		private final long uploadedBytes;
+
+		private Result(File manifestFile, int chunks, int uploadedChunks, long uploadedBytes) {
+			this.manifestFile = manifestFile;
+			this.chunks = chunks;
+			this.uploadedChunks = uploadedChunks;
+			this.uploadedBytes = uploadedBytes;
+		}
+
+		public File getManifestFile() {
+			return manifestFile;
+		}
+
+		public int getChunks() {
+			return chunks;
+		}
+
+		/**
+		 * Gets the number of chunks which were not stored yet.
+		 */
+		public int getUploadedChunks() {
+			return uploadedChunks;
+		}
+
+		public long getUploadedBytes() {
+			return uploadedBytes;
+		}
+	}
+
+	/**
+	 * Initializes class global variables.
+	 * @param serviceClient The authenticated service
+	 * authorized to access Google Drive using its REST API.
+	 */
+	public static void initDeltaOperations(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Uploads the local file as chunks plus a manifest; only the chunks not stored yet in the folder are sent.
+	 * If the folder already contains a manifest for the file, it is replaced.
+	 * @param localFile The local file.
+	 * @param parentId The ID of the folder.
+	 * @param parallelism The number of chunks uploaded at the same time.
+	 * @return The outcome of the upload.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static Result upload(java.io.File localFile, String parentId, int parallelism) throws IOException {
+
+		String chunksFolderId = getChunksFolder(parentId);
+		Map<String, String> stored = getStoredChunks(chunksFolderId);
+
+		Manifest manifest = new Manifest();
+		manifest.setFactory(jsonFactory);
+		manifest.name = localFile.getName();
+		manifest.chunks = new ArrayList<>();
+
+		// Chunks being uploaded, keyed by hash, so that a chunk repeated in the file is sent once.
+		Map<String, Future<String>> uploads = new HashMap<>();
+		long[] uploadedBytes = new long[1];
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+		// Bounds the chunks held in memory while waiting to be sent.
+		Semaphore inFlight = new Semaphore(Math.max(1, parallelism) * 2);
+		TransferScheduler scheduler = FileOperations.getTransferScheduler();
+		TransferScheduler.Transfer transfer = scheduler.open(localFile.getPath(), 1);
+
+		IOException failure = null;
+		try {
+			try (InputStream inputStream = new FileInputStream(localFile)) {
+				manifest.size = new ContentChunker().chunk(inputStream, (offset, data) -> {
+					ChunkRef chunk = new ChunkRef();
+					chunk.hash = sha256(data);
+					chunk.offset = offset;
+					chunk.size = data.length;
+					manifest.chunks.add(chunk);
+
+					if (stored.containsKey(chunk.hash) || uploads.containsKey(chunk.hash))
+						return;
+					try {
+						inFlight.acquire();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Upload interrupted");
+					}
+					uploadedBytes[0] += data.length;
+					uploads.put(chunk.hash, executor.submit(() -> {
+						try {
+							return uploadChunk(chunksFolderId, chunk.hash, data, scheduler, transfer);
+						}
+						finally {
+							inFlight.release();
+						}
+					}));
+				});
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+
+			// Wait for the new chunks and record each one stored, even if another one failed, so a retry does not send them again.
+			for (Map.Entry<String, Future<String>> upload : uploads.entrySet()) {
+				try {
+					stored.put(upload.getKey(), await(upload.getValue()));
+				}
+				catch (IOException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			saveChunkIndex();
+		}
+		if (failure != null)
+			throw failure;
+
+		// The index may be out of date, such as when chunks were deleted on the Drive: check the chunks
+		// it provided before the manifest refers to them, and store again the ones which are missing.
+		int uploadedChunks = uploads.size();
+		List<ChunkRef> reused = new ArrayList<>();
+		for (ChunkRef chunk : manifest.chunks)
+			if (!uploads.containsKey(chunk.hash))
+				reused.add(chunk);
+		if (!reused.isEmpty() && refreshStoredChunks(chunksFolderId, stored)) {
+			try (RandomAccessFile file = new RandomAccessFile(localFile, "r")) {
+				for (ChunkRef chunk : reused) {
+					if (stored.containsKey(chunk.hash))
+						continue;
+					byte[] data = new byte[chunk.size];
+					file.seek(chunk.offset);
+					file.readFully(data);
+					if (!sha256(data).equals(chunk.hash))
+						throw new IOException(String.format("%s changed during the upload", localFile.getName()));
+					stored.put(chunk.hash, uploadChunk(chunksFolderId, chunk.hash, data, scheduler, transfer));
+					uploadedChunks++;
+					uploadedBytes[0] += data.length;
+				}
+			}
+			finally {
+				saveChunkIndex();
+			}
+		}
+
+		for (ChunkRef chunk : manifest.chunks)
+			chunk.id = stored.get(chunk.hash);
+		File manifestFile = writeManifest(parentId, manifest);
+		if (Utility.isDEBUG())
+			System.out.println(String.format("%s: %d chunks, %d uploaded (%d bytes)",
+					localFile.getName(), manifest.chunks.size(), uploadedChunks, uploadedBytes[0]));
+		return new Result(manifestFile, manifest.chunks.size(), uploadedChunks, uploadedBytes[0]);
+	}
+
+	/**
+	 * Rebuilds a chunked file, downloading its chunks in parallel.
+	 * @param manifestId The ID of the manifest file.
+	 * @param target The local target file.
+	 * @param parallelism The number of chunks downloaded at the same time.
+	 * @return The manifest.
+	 * @throws IOException An I/O error has been detected, or a chunk does not match its hash.
+	 */
+	public static Manifest download(String manifestId, java.io.File target, int parallelism) throws IOException {
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		DriveClientPool.route(authenticatedClient, manifestId).files().get(manifestId).executeMediaAndDownloadTo(content);
+		Manifest manifest = jsonFactory.fromString(content.toString("UTF-8"), Manifest.class);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+		TransferScheduler scheduler = FileOperations.getTransferScheduler();
+		TransferScheduler.Transfer transfer = scheduler.open(target.getPath(), 1);
+
+		try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+			file.setLength(manifest.size);
+			FileChannel channel = file.getChannel();
+
+			// A chunk repeated in the file is downloaded once per occurrence, which is simpler than sharing the buffers.
+			List<Future<?>> downloads = new ArrayList<>();
+			for (ChunkRef chunk : manifest.chunks) {
+				downloads.add(executor.submit(() -> {
+					ByteArrayOutputStream data = new ByteArrayOutputStream(chunk.size);
+					DriveClientPool.route(authenticatedClient, chunk.id).files().get(chunk.id)
+							.executeMediaAndDownloadTo(scheduler.throttle(data, transfer));
+					byte[] bytes = data.toByteArray();
+					if (bytes.length != chunk.size || !sha256(bytes).equals(chunk.hash))
+						throw new IOException(String.format("Chunk at offset %d does not match its hash", chunk.offset));
+					// Positional writes: the chunks can be written in any order.
+					ByteBuffer buffer = ByteBuffer.wrap(bytes);
+					long position = chunk.offset;
+					while (buffer.hasRemaining())
+						position += channel.write(buffer, position);
+					return null;
+				}));
+			}
+			for (Future<?> download : downloads)
+				await(download);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return manifest;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * Gets the chunks folder of the parent folder, creating it if it does not exist.
+	 */
+	private static String getChunksFolder(String parentId) throws IOException {
+
+		FileList folders = authenticatedClient.files().list()
+				.setQ(DriveQuery.nameEquals(CHUNKS_FOLDER).and(DriveQuery.inParents(parentId))
+						.and(DriveQuery.folder(true)).and(DriveQuery.trashed(false)).toString())
+				.setSpaces("drive")
+				.setFields("files(id)")
+				.execute();
+		if (!folders.getFiles().isEmpty())
+			return folders.getFiles().get(0).getId();
+
+		File folderMetadata = new File();
+		folderMetadata.setName(CHUNKS_FOLDER);
+		folderMetadata.setMimeType(FolderOperations.FOLDER_MIME_TYPE);
+		folderMetadata.setParents(Collections.singletonList(parentId));
+		return authenticatedClient.files().create(folderMetadata).setFields("id").execute().getId();
+	}
+
+	/**
+	 * Gets the chunks known to be stored in the folder; the folder is listed if the local index knows nothing about it.
+	 */
+	private static synchronized Map<String, String> getStoredChunks(String chunksFolderId) throws IOException {
+
+		if (chunkIndex == null)
+			chunkIndex = readChunkIndex();
+
+		Map<String, String> stored = chunkIndex.folders.get(chunksFolderId);
+		if (stored == null) {
+			stored = listChunks(chunksFolderId);
+			chunkIndex.folders.put(chunksFolderId, stored);
+			listedFolders.add(chunksFolderId);
+		}
+		return stored;
+	}
+
+	/**
+	 * Replaces the chunks known to be stored in the folder with a listing of the folder, unless the folder was already
+	 * listed by this process.
+	 * @return true if the folder has been listed; otherwise, false.
+	 */
+	private static boolean refreshStoredChunks(String chunksFolderId, Map<String, String> stored) throws IOException {
+
+		if (!listedFolders.add(chunksFolderId))
+			return false;
+		Map<String, String> listed = listChunks(chunksFolderId);
+		stored.keySet().retainAll(listed.keySet());
+		stored.putAll(listed);
+		return true;
+	}
+
+	private static Map<String, String> listChunks(String chunksFolderId) throws IOException {
+		Map<String, String> listed = new ConcurrentHashMap<>();
+		FileOperations.listFiles(DriveQuery.inParents(chunksFolderId).and(DriveQuery.trashed(false)), 1000, true,
+				file -> listed.put(file.getName(), file.getId()));
+		return listed;
+	}
+
+	private static ChunkIndex readChunkIndex() throws IOException {
+
+		java.io.File indexFile = new java.io.File(Utility.getAbsoluteFilePath(
+				DriveDefaultSettings.SERVICESDIR, DriveDefaultSettings.DATADIR, INDEXFILE));
+		ChunkIndex index = null;
+		if (indexFile.exists()) {
+			try (InputStream inputStream = new FileInputStream(indexFile)) {
+				index = jsonFactory.fromInputStream(inputStream, ChunkIndex.class);
+			}
+		}
+		if (index == null)
+			index = new ChunkIndex();
+		index.setFactory(jsonFactory);
+		// Use concurrent maps: the uploads of several files can update the index at the same time.
+		Map<String, Map<String, String>> folders = new ConcurrentHashMap<>();
+		if (index.folders != null)
+			for (Map.Entry<String, Map<String, String>> folder : index.folders.entrySet())
+				folders.put(folder.getKey(), new ConcurrentHashMap<>(folder.getValue()));
+		index.folders = folders;
+		return index;
+	}
+
+	/**
+	 * Writes the local chunk index to a temporary file, then replaces the old index.
+	 */
+	private static synchronized void saveChunkIndex() throws IOException {
+
+		if (chunkIndex == null)
+			return;
+		java.io.File indexFile = new java.io.File(Utility.getAbsoluteFilePath(
+				DriveDefaultSettings.SERVICESDIR, DriveDefaultSettings.DATADIR, INDEXFILE));
+		java.io.File temporary = new java.io.File(indexFile.getPath() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+			writer.write(chunkIndex.toString());
+		}
+		Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Stores a chunk in the chunks folder.
+	 * @return The ID of the chunk file.
+	 */
+	private static String uploadChunk(String chunksFolderId, String hash, byte[] data,
+			TransferScheduler scheduler, TransferScheduler.Transfer transfer) throws IOException {
+
+		File chunkMetadata = new File();
+		chunkMetadata.setName(hash);
+		chunkMetadata.setParents(Collections.singletonList(chunksFolderId));
+		Drive.Files.Create request = DriveClientPool.route(authenticatedClient, hash).files().create(chunkMetadata,
+				scheduler.throttle(new ByteArrayContent("application/octet-stream", data), transfer))
+				.setFields("id");
+		request.getMediaHttpUploader().setDirectUploadEnabled(true);
+		return request.execute().getId();
+	}
+
+	/**
+	 * Creates the manifest of the file, or replaces the content of the existing one.
+	 */
+	private static File writeManifest(String parentId, Manifest manifest) throws IOException {
+
+		String name = manifest.name + MANIFEST_SUFFIX;
+		ByteArrayContent content = new ByteArrayContent("application/json",
+				manifest.toString().getBytes(StandardCharsets.UTF_8));
+
+		FileList existing = authenticatedClient.files().list()
+				.setQ(DriveQuery.nameEquals(name).and(DriveQuery.inParents(parentId)).and(DriveQuery.trashed(false)).toString())
+				.setSpaces("drive")
+				.setFields("files(id)")
+				.execute();
+		String fields = "id, name, parents, size, md5Checksum, modifiedTime, mimeType";
+		if (!existing.getFiles().isEmpty())
+			return DriveClientPool.route(authenticatedClient, parentId).files().update(existing.getFiles().get(0).getId(), new File(), content)
+					.setFields(fields)
+					.execute();
+
+		File manifestMetadata = new File();
+		manifestMetadata.setName(name);
+		manifestMetadata.setParents(Collections.singletonList(parentId));
+		manifestMetadata.setAppProperties(Collections.singletonMap("chunkedFile", manifest.name));
+		return DriveClientPool.route(authenticatedClient, parentId).files().create(manifestMetadata, content)
+				.setFields(fields)
+				.execute();
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Transfer interrupted");
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	private static String sha256(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// SHA-256 is available on every Java platform.
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
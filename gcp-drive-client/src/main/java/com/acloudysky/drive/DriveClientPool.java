@@ -0,0 +1,359 @@
+package com.acloudysky.drive;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+
+/***
+ * Spreads the Drive traffic over several identities, to go beyond the per-user quotas of a single OAuth2 identity.
+ * Each identity (a service account, optionally impersonating a domain user) is a shard with its own Drive client.
+ * An operation is routed to a shard by a consistent hash of the ID of the folder or file it works on, so the same
+ * folder always goes through the same identity and adding an identity only moves a fraction of the keys.
+ * Every HTTP request sent by a shard, retries and upload chunks included, is charged to its per-minute budget; the
+ * shards which used their budget, or which are throttled (HTTP 429 or 503), are skipped for the next shard on the ring.
+ * The identities are read from the <i>client_pool.json</i> file, next to the client_defaults.json file:
+ * <pre>
+ * {
+ *   "requestsPerMinute" : 1000,
+ *   "accounts" : [
+ *     { "name" : "sa1", "keyFile" : "/path/to/sa1.json" },
+ *     { "name" : "sa2", "keyFile" : "/path/to/sa2.json", "user" : "someone@your-domain.com" }
+ *   ]
+ * }
+ * </pre>
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Without the client_pool.json file every operation uses the single authenticated client.</li>
+ * 	<li>The operations on a known folder or file (uploads, downloads, reads, updates and deletions) are routed; the change
+ * 	feeds, the searches and the batches stay on the authenticated client, because their page tokens and results are
+ * 	tied to one identity.</li>
+ * 	<li>Every identity must have access to the routed folders and files, for example as members of the same shared
+ * 	drive; the files are owned by the identity which created them.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class DriveClientPool {
+
+	// Client pool settings file name.
+	final static String POOLFILE = "client_pool.json";
+
+	// Points per shard on the hash ring; more points spread the keys more evenly.
+	private final static int VIRTUAL_NODES = 128;
+	// First and maximum time a throttled shard is skipped.
+	private final static long MIN_BACKOFF_MILLIS = 1000;
+	private final static long MAX_BACKOFF_MILLIS = 64000;
+
+	// The pool used by the operations classes; null to use their authenticated client.
+	private static volatile DriveClientPool installed;
+
+	/***
+	 * The client pool settings, read from the client_pool.json file.
+	 */
+	public static class PoolSettings extends GenericJson {
+
+		@Key("requestsPerMinute")
+		private Integer requestsPerMinute;
+
+		@Key("accounts")
+		private List<Account> accounts;
+	}
+
+	/***
+	 * An identity of the client pool.
+	 */
+	public static class Account extends GenericJson {
+
+		@Key("name")
+		private String name;
+
+		// The service account JSON key file.
+		@Key("keyFile")
+		private String keyFile;
+
+		// The domain user to impersonate; optional.
+		@Key("user")
+		private String user;
+	}
+
+	/***
+	 * An identity of the pool with its client and its usage.
+	 */
+	private static class Shard {
+
+		private final String name;
+		private final Drive client;
+		private final AtomicLong requests = new AtomicLong();
+
+		// Requests sent in the current minute.
+		private long windowStart;
+		private int windowRequests;
+
+		// The shard is skipped until this time.
+		private volatile long throttledUntil;
+		private long backoff = MIN_BACKOFF_MILLIS;
+
+		private Shard(String name, HttpTransport transport, JsonFactory jsonFactory, HttpRequestInitializer credential) {
+			this.name = name;
+			this.client = new Drive.Builder(transport, jsonFactory, request -> {
+				credential.initialize(request);
+				// Charge each attempt, since the retries of a request are sent again.
+				HttpExecuteInterceptor authorize = request.getInterceptor();
+				request.setInterceptor(httpRequest -> {
+					if (authorize != null)
+						authorize.intercept(httpRequest);
+					charge(System.currentTimeMillis());
+				});
+				// Watch every response for the throttling signals.
+				HttpResponseInterceptor next = request.getResponseInterceptor();
+				request.setResponseInterceptor(response -> {
+					if (next != null)
+						next.interceptResponse(response);
+					int status = response.getStatusCode();
+					if (status == 429 || status == 503)
+						throttled(System.currentTimeMillis());
+					else if (response.isSuccessStatusCode())
+						succeeded();
+				});
+			}).setApplicationName("google-drive-client").build();
+		}
+
+		/**
+		 * Counts a request sent in the current minute.
+		 */
+		private synchronized void charge(long now) {
+			if (now - windowStart >= 60000) {
+				windowStart = now;
+				windowRequests = 0;
+			}
+			windowRequests++;
+			requests.incrementAndGet();
+		}
+
+		/**
+		 * Tells whether the shard is neither throttled nor over its per-minute budget.
+		 */
+		private synchronized boolean isAvailable(long now, int requestsPerMinute) {
+			if (throttledUntil > now)
+				return false;
+			return requestsPerMinute <= 0 || now - windowStart >= 60000 || windowRequests < requestsPerMinute;
+		}
+
+		/**
+		 * Gets the time when the shard becomes available again.
+		 */
+		private synchronized long availableAt(int requestsPerMinute) {
+			if (requestsPerMinute > 0 && windowRequests >= requestsPerMinute)
+				return Math.max(throttledUntil, windowStart + 60000);
+			return throttledUntil;
+		}
+
+		private synchronized void throttled(long now) {
+			throttledUntil = now + backoff;
+			backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+		}
+
+		private synchronized void succeeded() {
+			backoff = MIN_BACKOFF_MILLIS;
+		}
+	}
+
+	private final List<Shard> shards = new CopyOnWriteArrayList<>();
+	// Replaced, never modified, when a shard is added; so it can be read without locking.
+	private volatile TreeMap<Integer, Shard> ring = new TreeMap<>();
+	private final int requestsPerMinute;
+
+	/**
+	 * Instantiates an empty DriveClientPool class.
+	 * @param requestsPerMinute The budget of each shard; 0 for no limit other than the throttling signaled by the Drive.
+	 */
+	public DriveClientPool(int requestsPerMinute) {
+		this.requestsPerMinute = requestsPerMinute;
+	}
+
+	/**
+	 * Creates the pool described by the client_pool.json file.
+	 * The access tokens of the identities are refreshed in the background, see {@link CredentialManager}.
+	 * @return The client pool; null if there is no client_pool.json file.
+	 * @throws IOException The settings or a key file could not be read.
+	 */
+	public static DriveClientPool fromSettings() throws IOException {
+
+		String filePath = Utility.getAbsoluteFilePath(DriveDefaultSettings.SERVICESDIR, DriveDefaultSettings.DATADIR, POOLFILE);
+		if (!new java.io.File(filePath).isFile())
+			return null;
+
+		JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+		HttpTransport transport = new NetHttpTransport();
+
+		PoolSettings settings;
+		try (InputStream inputStream = new FileInputStream(filePath)) {
+			settings = jsonFactory.fromInputStream(inputStream, PoolSettings.class);
+		}
+
+		DriveClientPool pool = new DriveClientPool(settings.requestsPerMinute == null ? 0 : settings.requestsPerMinute);
+		for (Account account : settings.accounts) {
+			GoogleCredential credential;
+			try (InputStream keyStream = new FileInputStream(account.keyFile)) {
+				credential = GoogleCredential.fromStream(keyStream, transport, jsonFactory)
+						.createScoped(Collections.singleton(DriveScopes.DRIVE));
+			}
+			if (account.user != null && !account.user.isEmpty()) {
+				// Impersonate the domain user (domain-wide delegation).
+				credential = new GoogleCredential.Builder()
+						.setTransport(transport)
+						.setJsonFactory(jsonFactory)
+						.setServiceAccountId(credential.getServiceAccountId())
+						.setServiceAccountPrivateKey(credential.getServiceAccountPrivateKey())
+						.setServiceAccountPrivateKeyId(credential.getServiceAccountPrivateKeyId())
+						.setServiceAccountScopes(Collections.singleton(DriveScopes.DRIVE))
+						.setServiceAccountUser(account.user)
+						.build();
+			}
+			String name = account.name != null ? account.name : credential.getServiceAccountId();
+			pool.addShard(name, transport, jsonFactory, manage(credential));
+		}
+		return pool;
+	}
+
+	/**
+	 * Sets the pool used by the operations classes for the operations on a known folder or file.
+	 * @param pool The client pool; null to use the single authenticated client.
+	 */
+	public static void install(DriveClientPool pool) {
+		installed = pool;
+	}
+
+	/**
+	 * Gets the installed pool.
+	 * @return The client pool; null if none is installed.
+	 */
+	public static DriveClientPool getInstalled() {
+		return installed;
+	}
+
+	/**
+	 * Gets the client to use for an operation on the specified folder or file.
+	 * @param client The authenticated client, used when no pool is installed.
+	 * @param key The ID of the folder or file the operation works on.
+	 * @return The client of the shard chosen by the installed pool; the specified client if no pool is installed.
+	 */
+	static Drive route(Drive client, String key) {
+		DriveClientPool pool = installed;
+		return pool == null || key == null ? client : pool.clientFor(key);
+	}
+
+	/**
+	 * Adds an identity to the pool.
+	 * @param name The shard name; it must be stable because it determines the keys routed to the shard.
+	 * @param transport The HTTP transport.
+	 * @param jsonFactory The JSON factory.
+	 * @param credential The credential of the identity, such as a GoogleCredential.
+	 */
+	public synchronized void addShard(String name, HttpTransport transport, JsonFactory jsonFactory,
+			HttpRequestInitializer credential) {
+
+		Shard shard = new Shard(name, transport, jsonFactory, credential);
+		shards.add(shard);
+
+		TreeMap<Integer, Shard> newRing = new TreeMap<>(ring);
+		for (int i = 0; i < VIRTUAL_NODES; i++)
+			newRing.put(hash(name + "#" + i), shard);
+		ring = newRing;
+	}
+
+	/**
+	 * Gets the client to use for an operation on the specified folder or file.
+	 * The shard owning the key is used unless it is throttled or over budget; the next shards on the ring are tried then.
+	 * If all the shards are unavailable, the one which becomes available first is returned.
+	 * @param key The ID of the folder or file the operation works on.
+	 * @return The Drive client.
+	 */
+	public Drive clientFor(String key) {
+
+		TreeMap<Integer, Shard> currentRing = ring;
+		if (currentRing.isEmpty())
+			throw new IllegalStateException("The client pool is empty");
+
+		Map.Entry<Integer, Shard> entry = currentRing.ceilingEntry(hash(key));
+		if (entry == null)
+			entry = currentRing.firstEntry();
+
+		// Walk the ring until each shard has been tried once.
+		long now = System.currentTimeMillis();
+		Set<Shard> tried = new HashSet<>();
+		Shard fallback = null;
+		while (tried.size() < shards.size() && tried.size() < currentRing.size()) {
+			Shard shard = entry.getValue();
+			if (tried.add(shard)) {
+				if (shard.isAvailable(now, requestsPerMinute))
+					return shard.client;
+				if (fallback == null || shard.availableAt(requestsPerMinute) < fallback.availableAt(requestsPerMinute))
+					fallback = shard;
+			}
+			entry = currentRing.higherEntry(entry.getKey());
+			if (entry == null)
+				entry = currentRing.firstEntry();
+		}
+		return fallback.client;
+	}
+
+	/**
+	 * Gets the number of HTTP requests sent by each shard.
+	 * @return The request counts keyed by shard name.
+	 */
+	public Map<String, Long> getUsage() {
+		Map<String, Long> usage = new TreeMap<>();
+		for (Shard shard : shards)
+			usage.put(shard.name, shard.requests.get());
+		return usage;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private static HttpRequestInitializer manage(Credential credential) throws IOException {
+		CredentialManager manager = new CredentialManager(credential);
+		manager.start();
+		return manager;
+	}
+
+	private static int hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+		}
+		catch (NoSuchAlgorithmException e) {
+			// MD5 is available on every Java platform.
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
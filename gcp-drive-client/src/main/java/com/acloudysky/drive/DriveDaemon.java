@@ -0,0 +1,223 @@
+package com.acloudysky.drive;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/***
+ * Keeps an authenticated Drive client warm and runs the {@link CommandLine} commands received over a loopback HTTP endpoint.
+ * Short-lived callers such as cron jobs and shell scripts avoid paying the JVM startup, the OAuth2 token refresh and the
+ * TLS handshake on every invocation; the daemon authenticates once and reuses the pooled keep-alive connections.
+ * The endpoint is the following:
+ * <pre>
+ * POST http://127.0.0.1:PORT/run    body: the command and its arguments, one per line
+ * GET  http://127.0.0.1:PORT/health
+ * </pre>
+ * For example:
+ * <pre>
+ * printf 'ls\n--all\n--json\n' | curl -s -H "X-Drive-Token: $(cat ~/.googleservices/drive/daemon_token)" --data-binary @- http://127.0.0.1:8765/run
+ * </pre>
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The server only listens on the loopback interface. Every request must also carry the token that the daemon writes at
+ * 	startup in the <i>daemon_token</i> file, next to the client_defaults.json file, which is readable by the owner only.</li>
+ *  <li>The records are streamed as the command produces them. The last line of the response reports the exit code and the errors,
+ *  as <i>exit CODE</i> or, with <i>--json</i>, as <i>{"exit":CODE,"errors":[...]}</i>.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class DriveDaemon {
+
+	// Default loopback port.
+	final static int DEFAULTPORT = 8765;
+	// File containing the token the callers must send.
+	final static String TOKENFILE = "daemon_token";
+	private final static String TOKENHEADER = "X-Drive-Token";
+
+	private final HttpServer server;
+	private final String token;
+
+	/**
+	 * Instantiates the DriveDaemon class and binds the loopback endpoint.
+	 * <b>Note</b>. {@link Main#initServiceClients(Drive)} must be called first.
+	 * @param port The loopback port.
+	 * @param threads The number of commands that can run at the same time.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	DriveDaemon(int port, int threads) throws IOException {
+
+		token = createToken();
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(Executors.newFixedThreadPool(threads));
+		server.createContext("/run", this::handleRun);
+		server.createContext("/health", exchange -> sendText(exchange, 200, "ok"));
+	}
+
+	/**
+	 * Starts the daemon; it runs until the process is stopped.
+	 * @param args The daemon options: [--port N] [--threads N].
+	 * @return The exit code if the daemon could not start.
+	 */
+	static int run(String[] args) {
+
+		int port = DEFAULTPORT;
+		int threads = 8;
+		try {
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				if ("--port".equals(args[i]))
+					port = Integer.parseInt(args[i + 1]);
+				else if ("--threads".equals(args[i]))
+					threads = Integer.parseInt(args[i + 1]);
+			}
+		}
+		catch (NumberFormatException e) {
+			System.err.println(String.format("Invalid number: %s", e.getMessage()));
+			return CommandLine.EXIT_USAGE;
+		}
+
+		// Keep more idle connections to the Drive host than the default 5, so the concurrent
+		// commands reuse them instead of paying a new TLS handshake.
+		// It must be set before the first connection is opened.
+		System.setProperty("http.maxConnections", String.valueOf(Math.max(5, threads * 2)));
+
+		try {
+			Main.initServiceClients(Main.getAuthenticatedClient());
+			DriveDaemon daemon = new DriveDaemon(port, threads);
+			daemon.server.start();
+			System.out.println(String.format("Drive daemon listening on 127.0.0.1:%d", port));
+			return CommandLine.EXIT_OK;
+		}
+		catch (Exception e) {
+			System.err.println(String.format("Error %s starting the daemon.", e.toString()));
+			return CommandLine.EXIT_FAILED;
+		}
+	}
+
+	/**
+	 * Runs the command contained in the request body and streams its output.
+	 */
+	private void handleRun(HttpExchange exchange) throws IOException {
+
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendText(exchange, 405, "POST required");
+				return;
+			}
+			String received = exchange.getRequestHeaders().getFirst(TOKENHEADER);
+			// Constant-time comparison, so the token cannot be guessed from the response times.
+			if (received == null
+					|| !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), received.getBytes(StandardCharsets.UTF_8))) {
+				sendText(exchange, 403, "Invalid token");
+				return;
+			}
+
+			// Read the command, one argument per line.
+			List<String> command = new ArrayList<>();
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (!line.isEmpty())
+						command.add(line);
+			}
+			if (command.isEmpty() || !CommandLine.isCommand(command.get(0))) {
+				sendText(exchange, 400, String.format("Unknown command %s", command));
+				return;
+			}
+
+			// Stream the records as they are produced.
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, 0);
+			PrintStream out = new PrintStream(exchange.getResponseBody(), false, "UTF-8");
+			ByteArrayOutputStream errors = new ByteArrayOutputStream();
+			PrintStream err = new PrintStream(errors, true, "UTF-8");
+
+			int exitCode = new CommandLine(out, err, true).run(command.toArray(new String[command.size()]));
+
+			// Report the outcome on the last line.
+			String errorText = new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+			if (command.contains("--json")) {
+				GenericJson status = new GenericJson();
+				status.setFactory(JacksonFactory.getDefaultInstance());
+				status.set("exit", exitCode);
+				List<String> errorLines = new ArrayList<>();
+				if (!errorText.isEmpty())
+					for (String line : errorText.split("\\R"))
+						errorLines.add(line);
+				status.set("errors", errorLines);
+				out.println(status.toString());
+			}
+			else {
+				out.println(String.format("exit %d", exitCode));
+				if (!errorText.isEmpty())
+					out.println(errorText);
+			}
+			out.close();
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Sends a short plain text response.
+	 */
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Creates a random token and stores it in a file readable by the owner only.
+	 */
+	private static String createToken() throws IOException {
+
+		byte[] bytes = new byte[24];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes)
+			token.append(String.format("%02x", b));
+
+		Path tokenFile = Paths.get(Utility.getAbsoluteFilePath(DriveDefaultSettings.SERVICESDIR,
+				DriveDefaultSettings.DATADIR, TOKENFILE));
+		Files.deleteIfExists(tokenFile);
+		try {
+			Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch (UnsupportedOperationException e) {
+			// Not a POSIX file system (Windows); rely on the user's profile permissions.
+			Files.createFile(tokenFile);
+		}
+		Files.write(tokenFile, token.toString().getBytes(StandardCharsets.UTF_8));
+		return token.toString();
+	}
+
+}
@@ -268,6 +268,20 @@ public class DriveDefaultSettings extends GenericJson {
 		return settings;
 	}
 
+	/***
+	 * Reads the settings contained in the <i>client_defaults.json</i> file without displaying anything.
+	 * Unlike {@link #readSettings()} it does not exit when the file is missing or was not edited, so that a command
+	 * run by a script or by the daemon can report the error instead.
+	 * @return The DriveDefaultSettings object
+	 * @throws IOException The file could not be read.
+	 */
+	static DriveDefaultSettings loadSettings() throws IOException {
+		String filePath = Utility.getAbsoluteFilePath(SERVICESDIR, DATADIR, DEFAULTSFILE);
+		try (InputStream inputStream = new FileInputStream(filePath)) {
+			return JacksonFactory.getDefaultInstance().fromInputStream(inputStream, DriveDefaultSettings.class);
+		}
+	}
+
 	
 	/**
 	 * Update the value of the specified key in the client_defaults.json file. 
@@ -0,0 +1,190 @@
+package com.acloudysky.drive;
+
+import com.google.api.client.util.DateTime;
+
+/***
+ * Builds the search queries of files.list, the <i>q</i> parameter, so that the files are filtered by the server rather than
+ * listed and filtered by the client.
+ * A query is made of terms, such as {@link #inParents(String)} or {@link #modifiedAfter(long)}, combined with {@link #and(DriveQuery)},
+ * {@link #or(DriveQuery)} and {@link #not(DriveQuery)}; {@link #toString()} returns the query in the Drive syntax, with the
+ * string values quoted and escaped and the operands of a different operator in parentheses. For example:
+ * <pre>
+ * DriveQuery.inParents(folderId).and(DriveQuery.nameContains("budget")).and(DriveQuery.trashed(false))
+ * </pre>
+ * returns <i>'folderId' in parents and name contains 'budget' and trashed = false</i>.
+ * For more information see <a href="https://developers.google.com/drive/v3/web/search-parameters" target="_blank">Search for Files</a>.
+ * <b>Note</b>. The queries are immutable.
+ * @author Michael
+ *
+ */
+public class DriveQuery {
+
+	// The operator of a compound query; null for a single term.
+	private final String operator;
+	private final String expression;
+
+	private DriveQuery(String operator, String expression) {
+		this.operator = operator;
+		this.expression = expression;
+	}
+
+	/*********************
+	 * Terms             *
+	 *********************/
+
+	/**
+	 * Matches the files contained in the specified folder; the files in its subfolders are not matched.
+	 */
+	public static DriveQuery inParents(String folderId) {
+		return term("%s in parents", quote(folderId));
+	}
+
+	/**
+	 * Matches the files with the specified name.
+	 */
+	public static DriveQuery nameEquals(String name) {
+		return term("name = %s", quote(name));
+	}
+
+	/**
+	 * Matches the files whose name contains words starting with the specified text.
+	 */
+	public static DriveQuery nameContains(String text) {
+		return term("name contains %s", quote(text));
+	}
+
+	/**
+	 * Matches the files whose content, name or description contain the specified text.
+	 */
+	public static DriveQuery fullTextContains(String text) {
+		return term("fullText contains %s", quote(text));
+	}
+
+	public static DriveQuery mimeType(String mimeType) {
+		return term("mimeType = %s", quote(mimeType));
+	}
+
+	/**
+	 * Matches the folders, or all the other files if folder is false.
+	 */
+	public static DriveQuery folder(boolean folder) {
+		return term(folder ? "mimeType = %s" : "mimeType != %s", quote(FolderOperations.FOLDER_MIME_TYPE));
+	}
+
+	/**
+	 * Matches the files modified after the specified time, in milliseconds since the epoch.
+	 */
+	public static DriveQuery modifiedAfter(long time) {
+		return term("modifiedTime > %s", quote(new DateTime(time).toStringRfc3339()));
+	}
+
+	/**
+	 * Matches the files modified before the specified time, in milliseconds since the epoch.
+	 */
+	public static DriveQuery modifiedBefore(long time) {
+		return term("modifiedTime < %s", quote(new DateTime(time).toStringRfc3339()));
+	}
+
+	/**
+	 * Matches the files in the trash, or the files not in the trash if trashed is false.
+	 */
+	public static DriveQuery trashed(boolean trashed) {
+		return term("trashed = %s", String.valueOf(trashed));
+	}
+
+	/**
+	 * Matches the files owned by the user with the specified email address.
+	 */
+	public static DriveQuery owner(String emailAddress) {
+		return term("%s in owners", quote(emailAddress));
+	}
+
+	/**
+	 * Matches the files with the specified public custom property.
+	 */
+	public static DriveQuery property(String key, String value) {
+		return term("properties has { key=%s and value=%s }", quote(key), quote(value));
+	}
+
+	/**
+	 * Matches the files with the specified private custom property, such as the <i>packOf</i> property of the pack indexes.
+	 */
+	public static DriveQuery appProperty(String key, String value) {
+		return term("appProperties has { key=%s and value=%s }", quote(key), quote(value));
+	}
+
+	/*********************
+	 * Operators         *
+	 *********************/
+
+	/**
+	 * Matches the files matched by both this query and the other one.
+	 */
+	public DriveQuery and(DriveQuery other) {
+		return combine("and", other);
+	}
+
+	/**
+	 * Matches the files matched by this query, the other one, or both.
+	 */
+	public DriveQuery or(DriveQuery other) {
+		return combine("or", other);
+	}
+
+	/**
+	 * Matches the files not matched by the specified query.
+	 */
+	public static DriveQuery not(DriveQuery query) {
+		return new DriveQuery(null, "not " + query.operand(null));
+	}
+
+	/**
+	 * Combines the non-null queries with the and operator.
+	 * @param queries The queries; null ones are ignored.
+	 * @return The combined query; null if all of them are null.
+	 */
+	public static DriveQuery allOf(DriveQuery... queries) {
+		DriveQuery result = null;
+		for (DriveQuery query : queries)
+			if (query != null)
+				result = result == null ? query : result.and(query);
+		return result;
+	}
+
+	/**
+	 * Gets the query in the Drive syntax.
+	 */
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * Quotes a string value, escaping the quotes and the backslashes it contains.
+	 * @param value The value.
+	 * @return The quoted value.
+	 */
+	static String quote(String value) {
+		if (value == null)
+			throw new IllegalArgumentException("Null query value");
+		return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+	}
+
+	private static DriveQuery term(String format, Object... values) {
+		return new DriveQuery(null, String.format(format, values));
+	}
+
+	private DriveQuery combine(String combinator, DriveQuery other) {
+		return new DriveQuery(combinator, operand(combinator) + " " + combinator + " " + other.operand(combinator));
+	}
+
+	// The expression, in parentheses if it is combined with a different operator.
+	private String operand(String combinator) {
+		return operator == null || operator.equals(combinator) ? expression : "(" + expression + ")";
+	}
+
+}
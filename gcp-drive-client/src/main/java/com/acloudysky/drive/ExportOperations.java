@@ -0,0 +1,237 @@
+package com.acloudysky.drive;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/***
+ * Contains the methods which export a Google document into several formats at once, such as a Doc as docx, pdf and txt.
+ * The metadata of the document is read once, then the export requests of all the formats are sent concurrently and each one is
+ * streamed into its own local file, so the time to export a document is about the time of the slowest format rather than the
+ * sum of all of them.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Each format is written to a <i>.part</i> file, renamed when complete; if a format fails, the other ones are cancelled,
+ * 	the formats already renamed are deleted and no partial file is left.</li>
+ *  <li>The exports are throttled by the transfer scheduler of {@link FileOperations}, like the downloads.</li>
+ *  <li>Drive limits an export to 10 MB.</li>
+ * </ul>
+ * For more information see <a href="https://developers.google.com/drive/v3/web/manage-downloads" target="_blank">Download Files</a>.
+ * @author Michael
+ *
+ */
+public class ExportOperations {
+
+	// The formats a Google document is exported into when none is specified, keyed by document MIME type.
+	final static Map<String, List<String>> DEFAULT_FORMATS = new HashMap<>();
+	// The file name extension of each export format.
+	final static Map<String, String> EXTENSIONS = new HashMap<>();
+
+	static {
+		DEFAULT_FORMATS.put("application/vnd.google-apps.document", Arrays.asList(
+				"application/vnd.openxmlformats-officedocument.wordprocessingml.document", "application/pdf", "text/plain"));
+		DEFAULT_FORMATS.put("application/vnd.google-apps.spreadsheet", Arrays.asList(
+				"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "text/csv"));
+		DEFAULT_FORMATS.put("application/vnd.google-apps.presentation", Arrays.asList(
+				"application/vnd.openxmlformats-officedocument.presentationml.presentation", "application/pdf"));
+		DEFAULT_FORMATS.put("application/vnd.google-apps.drawing", Arrays.asList("image/png", "application/pdf"));
+
+		EXTENSIONS.put("application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx");
+		EXTENSIONS.put("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx");
+		EXTENSIONS.put("application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx");
+		EXTENSIONS.put("application/vnd.oasis.opendocument.text", "odt");
+		EXTENSIONS.put("application/vnd.oasis.opendocument.spreadsheet", "ods");
+		EXTENSIONS.put("application/vnd.oasis.opendocument.presentation", "odp");
+		EXTENSIONS.put("application/pdf", "pdf");
+		EXTENSIONS.put("application/rtf", "rtf");
+		EXTENSIONS.put("application/zip", "zip");
+		EXTENSIONS.put("application/epub+zip", "epub");
+		EXTENSIONS.put("text/plain", "txt");
+		EXTENSIONS.put("text/html", "html");
+		EXTENSIONS.put("text/csv", "csv");
+		EXTENSIONS.put("text/tab-separated-values", "tsv");
+		EXTENSIONS.put("image/png", "png");
+		EXTENSIONS.put("image/jpeg", "jpg");
+		EXTENSIONS.put("image/svg+xml", "svg");
+	}
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	// The exports wait on the network: the threads are created as needed and reused by the next documents.
+	private final static ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "drive-export");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Initializes the service client used to export the documents.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initExportOperations(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Exports the specified document into each of the specified formats.
+	 * @param fileID The ID of the Google document.
+	 * @param mimeTypes The export formats; null for the default formats of the document type.
+	 * @param targetDir The local directory where the files are written.
+	 * @return The local files, keyed by format, in the order of the formats.
+	 * @throws IOException An I/O error has been detected, or the document is not a Google document.
+	 */
+	public static Map<String, java.io.File> exportAll(String fileID, List<String> mimeTypes, java.io.File targetDir)
+			throws IOException {
+		return exportAll(getMetadata(fileID), mimeTypes, targetDir);
+	}
+
+	/**
+	 * Reads the metadata an export needs.
+	 * @param fileID The ID of the Google document.
+	 * @return The metadata of the document.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static File getMetadata(String fileID) throws IOException {
+		return DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+				.setFields("id, name, mimeType, modifiedTime")
+				.execute();
+	}
+
+	/**
+	 * Exports the document into each of the specified formats, using metadata already read, such as by a listing.
+	 * @param file The metadata of the document; its ID, name and MIME type are needed.
+	 * @param mimeTypes The export formats; null for the default formats of the document type.
+	 * @param targetDir The local directory where the files are written.
+	 * @return The local files, keyed by format, in the order of the formats.
+	 * @throws IOException An I/O error has been detected, or the document is not a Google document.
+	 */
+	public static Map<String, java.io.File> exportAll(File file, List<String> mimeTypes, java.io.File targetDir)
+			throws IOException {
+
+		List<String> formats = mimeTypes != null ? mimeTypes : DEFAULT_FORMATS.get(file.getMimeType());
+		if (formats == null || formats.isEmpty())
+			throw new IOException(String.format("%s is not a Google document: %s", file.getName(), file.getMimeType()));
+		if (!targetDir.isDirectory() && !targetDir.mkdirs())
+			throw new IOException(String.format("%s cannot be created", targetDir.getPath()));
+
+		Map<String, java.io.File> targets = new LinkedHashMap<>();
+		List<Future<?>> exports = new ArrayList<>();
+		Batch batch = new Batch();
+		for (String mimeType : formats) {
+			java.io.File target = new java.io.File(targetDir, localName(file.getName(), mimeType));
+			targets.put(mimeType, target);
+			exports.add(executor.submit(() -> {
+				export(file.getId(), mimeType, target, batch);
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<?> export : exports)
+				await(export);
+		}
+		catch (IOException e) {
+			for (Future<?> export : exports)
+				export.cancel(true);
+			// No export completes after this: the formats are written all or none.
+			batch.fail();
+			throw new IOException(String.format("%s: %s", file.getName(), e.getMessage()), e);
+		}
+		if (Utility.isDEBUG())
+			System.out.println(String.format("%s exported into %s", file.getName(), targets.keySet()));
+		return targets;
+	}
+
+	/**
+	 * Gets the local file name of a document exported into the specified format, such as Budget.xlsx.
+	 * @param name The document name.
+	 * @param mimeType The export format.
+	 * @return The local file name.
+	 */
+	static String localName(String name, String mimeType) {
+		String extension = EXTENSIONS.get(mimeType);
+		if (extension == null)
+			extension = mimeType.substring(mimeType.lastIndexOf('/') + 1);
+		// Drive allows the separators in the names.
+		return name.replace('/', '_').replace('\\', '_') + "." + extension;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/***
+	 * The exports of a document: once one of them failed, the others are not moved into place and the ones
+	 * already moved are deleted.
+	 */
+	private static class Batch {
+
+		private final List<java.io.File> completed = new ArrayList<>();
+		private boolean failed;
+
+		/**
+		 * Moves the exported file to its target, unless the batch failed.
+		 */
+		synchronized void complete(java.io.File partFile, java.io.File target) throws IOException {
+			if (failed)
+				throw new InterruptedIOException("Export cancelled");
+			Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			completed.add(target);
+		}
+
+		synchronized void fail() {
+			failed = true;
+			for (java.io.File target : completed)
+				target.delete();
+			completed.clear();
+		}
+	}
+
+	private static void export(String fileID, String mimeType, java.io.File target, Batch batch) throws IOException {
+
+		java.io.File partFile = new java.io.File(target.getPath() + ".part");
+		TransferScheduler scheduler = FileOperations.getTransferScheduler();
+		TransferScheduler.Transfer transfer = scheduler.open(target.getPath(), 1);
+		try {
+			try (OutputStream outputStream = scheduler.throttle(new FileOutputStream(partFile), transfer)) {
+				DriveClientPool.route(authenticatedClient, fileID).files().export(fileID, mimeType).executeMediaAndDownloadTo(outputStream);
+			}
+			batch.complete(partFile, target);
+		}
+		finally {
+			partFile.delete();
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Export interrupted");
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+}
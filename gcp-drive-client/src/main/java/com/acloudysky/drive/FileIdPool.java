@@ -0,0 +1,151 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.services.drive.Drive;
+
+/***
+ * Hands out file IDs pre-generated by the Drive, so that files and folders can be created with a known ID.
+ * Knowing the ID before the create request is sent lets the caller pipeline the dependent work, such as creating the
+ * children of a folder or recording the ID in the default settings, instead of waiting for the server to assign it.
+ * The IDs are fetched in blocks with files.generateIds by a background thread when the pool runs low; taking an ID
+ * is a lock-free poll of a concurrent queue. For more information see
+ * <a href="https://developers.google.com/drive/v3/reference/files/generateIds" target="_blank">Files: generateIds</a>.
+ * <b>Note</b>. Nothing is fetched until the first ID is requested or {@link #prefetch()} is called.
+ * @author Michael
+ *
+ */
+public class FileIdPool {
+
+	// The maximum number of IDs returned by a files.generateIds call.
+	final static int MAX_BLOCK_SIZE = 1000;
+
+	private final Drive client;
+	private final int blockSize;
+	// Refill when fewer IDs than this are left.
+	private final int lowWatermark;
+
+	private final ConcurrentLinkedQueue<String> ids = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger available = new AtomicInteger();
+	// The refill in progress, if any.
+	private Future<?> refill;
+	private final ExecutorService refiller = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "file-id-pool");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Instantiates the FileIdPool class.
+	 * @param client The authenticated Drive client.
+	 * @param blockSize The number of IDs to fetch per files.generateIds call, up to 1000.
+	 */
+	public FileIdPool(Drive client, int blockSize) {
+		this.client = client;
+		this.blockSize = Math.max(1, Math.min(MAX_BLOCK_SIZE, blockSize));
+		this.lowWatermark = Math.max(1, this.blockSize / 4);
+	}
+
+	/**
+	 * Starts fetching a block of IDs in the background, so that the first call to {@link #next()} does not wait
+	 * for a round trip.
+	 */
+	public void prefetch() {
+		refillInBackground();
+	}
+
+	/**
+	 * Takes an unused file ID.
+	 * If the pool is empty, the caller waits for the refill in progress; the ID is fetched by the calling
+	 * thread only when the refill failed.
+	 * @return The file ID.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public String next() throws IOException {
+
+		String id = ids.poll();
+		if (id == null) {
+			// The pool is empty: wait for the block being fetched rather than sending a second request.
+			awaitRefill(refillInBackground());
+			id = ids.poll();
+			if (id == null)
+				return generateIds(client, 1).get(0);
+		}
+
+		if (available.decrementAndGet() < lowWatermark)
+			refillInBackground();
+		return id;
+	}
+
+	/**
+	 * Starts fetching a block of IDs, unless a fetch is already in progress.
+	 * @return The refill in progress.
+	 */
+	private synchronized Future<?> refillInBackground() {
+
+		if (refill != null && !refill.isDone())
+			return refill;
+
+		refill = refiller.submit(() -> {
+			try {
+				List<String> block = generateIds(client, blockSize);
+				ids.addAll(block);
+				available.addAndGet(block.size());
+			}
+			catch (IOException e) {
+				// The next caller finding the pool empty will fetch its own ID and retry the refill.
+				if (Utility.isDEBUG())
+					System.out.println(String.format("[FileIdPool] refill error: %s", e.getMessage()));
+			}
+		});
+		return refill;
+	}
+
+	/**
+	 * Waits for the specified refill to end. A failed refill is reported by the pool staying empty.
+	 * @param pending The refill.
+	 * @throws IOException The wait was interrupted.
+	 */
+	private static void awaitRefill(Future<?> pending) throws IOException {
+		try {
+			pending.get();
+		}
+		catch (ExecutionException e) {
+			// Already logged by the refill.
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for file IDs", e);
+		}
+	}
+
+	/**
+	 * Gets the specified number of file IDs from the Drive, in blocks of 1000.
+	 * @param client The authenticated Drive client.
+	 * @param count The number of IDs.
+	 * @return The IDs.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	static List<String> generateIds(Drive client, int count) throws IOException {
+		List<String> generated = new ArrayList<>(count);
+		while (generated.size() < count) {
+			int block = Math.min(MAX_BLOCK_SIZE, count - generated.size());
+			generated.addAll(client.files().generateIds()
+					.setCount(block)
+					.setSpace("drive")
+					.execute()
+					.getIds());
+		}
+		return generated;
+	}
+
+}
@@ -11,26 +11,33 @@
 package com.acloudysky.drive;
 
 import com.acloudysky.utilities.Utility;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpStatusCodes;
 
 import com.google.api.services.drive.Drive;
 
 import com.google.api.services.drive.Drive.Files;
-import com.google.api.services.drive.Drive.Files.Export;
 
 
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import java.util.Collections;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 
 /***
@@ -45,8 +52,29 @@ public class FileOperations {
 	// The authenticated service client authorized to use the Google Drive REST API.
 	private static Drive authenticatedClient;
 	private static DriveDefaultSettings defaultSettings;
-	
-	
+	// Pre-generated IDs for the files and folders to create.
+	private static FileIdPool idPool;
+	// Shares the bandwidth among the concurrent transfers; no limit until one is set.
+	private static final TransferScheduler transferScheduler = new TransferScheduler(0);
+	// The attempts of a transfer whose content does not match the checksum of the Drive file.
+	private static volatile int verifyAttempts = 3;
+	// True to compute the SHA-256 checksum of the transfers too.
+	private static volatile boolean sha256Enabled;
+
+	/**
+	 * Receives the files returned by the listing methods one at a time.
+	 * @author Michael
+	 *
+	 */
+	public interface FileVisitor {
+		/**
+		 * Processes the specified file.
+		 * @param file The file metadata returned by the Drive.
+		 * @throws IOException An I/O error has been detected.
+		 */
+		void visit(File file) throws IOException;
+	}
+
 	/***
 	 * Internal class that contains utility methods used during the
 	 * processing of file operations.
@@ -105,13 +133,18 @@ public class FileOperations {
 					System.out.println(String.format("Folder %s already exists; not created.", foldername));
 				}
 				else {
+						// Take the folder ID from the pool, so a retried create cannot make a second folder.
+						folderId = idPool.next();
+						
 						// Create the folder.
+						fileMetadata.setId(folderId);
 						fileMetadata.setName(foldername);
 						fileMetadata.setMimeType("application/vnd.google-apps.folder");
 						fileMetadata = authenticatedClient.files().create(fileMetadata).execute();
 						
-						// Store the folder Id in the in memory defaults.  
-						defaultSettings.setFolderID(fileMetadata.getId());
+						// Record the ID only once the folder exists.
+						defaultSettings.setFolderID(folderId);
+						defaultSettings.updateDefaultSettings("folderID", folderId);
 						
 						if (Utility.isDEBUG())
 							System.out.println(String.format("default folder id: %s ", defaultSettings.getFolderID()));
@@ -147,6 +180,9 @@ public class FileOperations {
 	public static void initFileOperations(Drive serviceClient, DriveDefaultSettings clientDefaultSettings) {
 		
 		authenticatedClient = serviceClient;
+		idPool = new FileIdPool(serviceClient, 100);
+		// The interactive mode creates files and folders: fetch their IDs while the settings are read.
+		idPool.prefetch();
 		defaultSettings = clientDefaultSettings.readSettings();
 		
 		
@@ -164,19 +200,10 @@ public class FileOperations {
 		if (folderID.isEmpty()) {
 			try {
 					
-					// Create the folder in the Google Drive
+					// Create the folder in the Google Drive. 
+					// The folder Id is stored in the default settings and in the client_defaults.json file 
+					// so we can use it later on for file operations.
 					File fileMetadata = FileUtility.createDefaultFolder(folderName);
-				
-					folderID = fileMetadata.getId();
-					
-					// Update the default settings; so we can use the ID later on for file operations.
-					defaultSettings.setFolderID(folderID);
-					
-					// Update the default folder Id in the client_defaults.json file. 
-					// defaultSettings.writeSettingsFolderID(".googleservices", "drive", "client_defaults.json", folderID);
-					
-					// Update the default folder Id in the client_defaults.json file. 
-					defaultSettings.updateDefaultSettings("folderID", folderID);
 					
 					System.out.println(String.format("%s %s", fileMetadata.getName(), " created."));
 					
@@ -186,9 +213,21 @@ public class FileOperations {
 		}
 		else
 				System.out.println(String.format("[initFileOperations] %s already exists; not created.", folderName));
-			
+
 	}
-	
+
+	/**
+	 * Initializes the service client only.
+	 * Unlike {@link #initFileOperations(Drive, DriveDefaultSettings)} it does not read the default settings
+	 * nor create the default folder, and it does not display anything. It is used by the non-interactive
+	 * command mode where the output must stay machine-readable.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initServiceClient(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+		idPool = new FileIdPool(serviceClient, 100);
+	}
+
 	  /**
 	   * Uploads the specified file.
 	   *
@@ -224,17 +263,25 @@ public class FileOperations {
 	    // File to upload
 	    java.io.File fileContent = new java.io.File(filename);
 	    // Set input stream based on the previous file and specify the download MIME type.
-	    FileContent mediaContent = new FileContent(downloadMimeType, fileContent);
+	    // The checksum is computed while the file is uploaded.
+	    StreamingChecksum checksum = new StreamingChecksum(sha256Enabled);
+	    AbstractInputStreamContent mediaContent = checksum.wrap(new FileContent(downloadMimeType, fileContent));
+	    String fileID = null;
 	    try 
 	    {
+			// Take the file ID from the pool, so a retried upload cannot make a second file. 
+			fileID = idPool.next();
+			fileMetadata.setId(fileID);
+			
 			// Insert the file in the Drive storage. 
-			Files.Create request = authenticatedClient.files().create(fileMetadata, mediaContent);
+			Files.Create request = authenticatedClient.files().create(fileMetadata, mediaContent)
+					.setFields("id, name, mimeType, md5Checksum");
 			request.getMediaHttpUploader().setDirectUploadEnabled(true);
-			File file = request.execute();
+			File file = verifyUpload(request.execute(), checksum, fileContent, downloadMimeType);
 			
-			String fileID = file.getId();
-			// Update the default folder Id in the client_defaults.json file. 
+			// Record the ID in the client_defaults.json file only once the upload is verified.
 			defaultSettings.updateDefaultSettings(defaultSettingsKey, fileID);
+			
 			// Display header information, if debug is enabled.
 			if (Utility.isDEBUG()){
 				System.out.println(String.format("File ID:    %s", file.getId()));
@@ -262,7 +309,9 @@ public class FileOperations {
 		
 		try {
 				// Get the file.
-				File file = authenticatedClient.files().get(fileID).execute();
+				File file = authenticatedClient.files().get(fileID)
+						.setFields("id, name, mimeType, createdTime, description, md5Checksum")
+						.execute();
 			
 				// Display file information.
 				 if (Utility.isDEBUG())
@@ -275,24 +324,10 @@ public class FileOperations {
 				// Get local file absolute path.
 				String outFilePath= Utility.getAbsoluteFilePath(localDir, localFile);
 				
-				// Associate output stream with local file.
+				// Download file from Drive, verify it and copy it to the local file. 
 				java.io.File locFile = new java.io.File(outFilePath); 
-				FileOutputStream outputStream = new FileOutputStream(locFile);
-	    	  
-				// Download file from Drive and copy it to the local file. 
-				String fileMimeType = file.getMimeType();
+				downloadContent(file, locFile, downloadMimeType);
 				
-	
-				if ( fileMimeType.equals(downloadMimeType))
-					// No conversion is required.
-					authenticatedClient.files().get(fileID).executeMediaAndDownloadTo(outputStream);
-				else {
-						// Coveriosn is required from Drive (Google) format to download format.
-						Export request = authenticatedClient.files().export(fileID, downloadMimeType);
-						request.executeMediaAndDownloadTo(outputStream);
-				}
-				
-				outputStream.close();
 	    	 	System.out.println(String.format("%s downloaded ", file.getName()));	
 		        
 		} 
@@ -368,7 +403,7 @@ public class FileOperations {
 	 */
 	 public static void listFilesofSpecifiedType(int numberOfiles, String mimeType) throws IOException {
 		  String pageToken = null;
-		  String query = "mimeType='" +  mimeType + "'";
+		  String query = DriveQuery.mimeType(mimeType).toString();
 	
 		  FileList fileList = authenticatedClient.files().list()
 			.setQ(query) // Set MIME type
@@ -447,13 +482,341 @@ public class FileOperations {
 				}
 			    
 				System.out.println(String.format("%s is in: %s folder", fileName, parentName));
-				
-		} 
+
+		}
 		catch (IOException e) {System.out.println(
 					   String.format("Error occurred: %s", e.getMessage()));
 		}
-		
+
 	}
-		  
-	
+
+
+	 /*******
+	  * Batch Operations *
+	  * *******/
+
+	/**
+	 * Lists the files that match the specified query and passes them to the visitor, one page at a time.
+	 * Unlike {@link #listFiles(int)} it does not display anything and it does not resolve the parent names,
+	 * which would cost one extra request per file. The pages are parsed as a stream, see {@link StreamingListParser},
+	 * so the files are passed to the visitor as they are read and a whole page is never held in memory.
+	 * @param query The query used to filter the files on the server; null to list all the files.
+	 * @param pageSize The number of files to request per page.
+	 * @param allPages If true, follows the nextPageToken until the last page; otherwise, reads the first page only.
+	 * @param visitor The visitor that processes each returned file.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static void listFiles(DriveQuery query, int pageSize, boolean allPages, FileVisitor visitor) throws IOException {
+
+		String pageToken = null;
+
+		do {
+			Files.List request = authenticatedClient.files().list()
+				.setPageSize(pageSize)
+				// Order by file name in descendant order of modification (last modified).
+				.setOrderBy("modifiedTime desc,name")
+				.setSpaces("drive")
+				// Set the fields to include in the response.
+				.setFields("nextPageToken, files(id, name, parents, size, md5Checksum, modifiedTime, mimeType)")
+				.setPageToken(pageToken);
+
+			if (query != null)
+				request.setQ(query.toString());
+
+			pageToken = StreamingListParser.list(request, "files", File.class, visitor::visit);
+		} while (allPages && pageToken != null);
+	}
+
+	/**
+	 * Lists the files that match the specified query as compact records, see {@link FileRecord}.
+	 * The records are read directly from the response, so no File is built; the IDs are interned in the specified dictionary.
+	 * @param query The query used to filter the files on the server; null to list all the files.
+	 * @param pageSize The number of files to request per page.
+	 * @param allPages If true, follows the nextPageToken until the last page; otherwise, reads the first page only.
+	 * @param ids The dictionary of the ID handles.
+	 * @param visitor The visitor that processes each record.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static void listRecords(DriveQuery query, int pageSize, boolean allPages, IdDictionary ids,
+			StreamingListParser.ItemVisitor<FileRecord> visitor) throws IOException {
+		listRecords(query, null, pageSize, () -> allPages, ids, visitor);
+	}
+
+	/**
+	 * Lists the files that match the specified query as compact records, in the specified order, until the caller
+	 * has enough of them.
+	 * @param query The query used to filter the files on the server; null to list all the files.
+	 * @param orderBy The sort keys, such as "modifiedTime desc"; null for the default order of the Drive.
+	 * @param pageSize The number of files to request per page.
+	 * @param nextPage Asked after each page which has a nextPageToken: true to read the next page.
+	 * @param ids The dictionary of the ID handles.
+	 * @param visitor The visitor that processes each record.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static void listRecords(DriveQuery query, String orderBy, int pageSize, BooleanSupplier nextPage,
+			IdDictionary ids, StreamingListParser.ItemVisitor<FileRecord> visitor) throws IOException {
+
+		String pageToken = null;
+
+		do {
+			Files.List request = authenticatedClient.files().list()
+				.setPageSize(pageSize)
+				.setSpaces("drive")
+				.setFields("nextPageToken, files(id, name, parents, size, md5Checksum, modifiedTime, mimeType, owners(emailAddress))")
+				.setPageToken(pageToken);
+
+			if (query != null)
+				request.setQ(query.toString());
+			if (orderBy != null)
+				request.setOrderBy(orderBy);
+
+			pageToken = StreamingListParser.list(request, "files", parser -> FileRecord.read(parser, ids), visitor);
+		} while (pageToken != null && nextPage.getAsBoolean());
+	}
+
+	/**
+	 * Uploads the specified local file without displaying anything nor updating the default settings.
+	 * @param localFile The local file to upload.
+	 * @param parentId Parent folder's ID; null to upload into the Drive root.
+	 * @param mimeType MIME type of the content.
+	 * @return The metadata of the uploaded file.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static File uploadFile(java.io.File localFile, String parentId, String mimeType) throws IOException {
+		// Use a pre-generated ID, so that retrying the request cannot create a duplicate file.
+		return uploadFile(localFile, parentId, mimeType, idPool.next());
+	}
+
+	/**
+	 * Uploads the specified local file with the specified ID.
+	 * If a file with that ID already exists, because a previous attempt succeeded, its metadata is returned
+	 * and nothing is uploaded, unless its checksum differs from the local file's. This makes the upload idempotent when
+	 * the caller records the ID before the first attempt.
+	 * The uploaded content is verified against the checksum returned by the Drive, see {@link #setVerifyAttempts(int)}.
+	 * @param localFile The local file to upload.
+	 * @param parentId Parent folder's ID; null to upload into the Drive root.
+	 * @param mimeType MIME type of the content.
+	 * @param fileID An ID obtained from {@link #nextFileID()}.
+	 * @return The metadata of the uploaded file.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static File uploadFile(java.io.File localFile, String parentId, String mimeType, String fileID) throws IOException {
+
+		File fileMetadata = new File();
+		fileMetadata.setId(fileID);
+		fileMetadata.setName(localFile.getName());
+		if (parentId != null && parentId.length() > 0)
+			fileMetadata.setParents(Collections.singletonList(parentId));
+
+		StreamingChecksum checksum = new StreamingChecksum(sha256Enabled);
+		AbstractInputStreamContent mediaContent = checksum.wrap(transferScheduler.throttle(
+				new FileContent(mimeType, localFile), transferScheduler.open(localFile.getPath(), 1)));
+		Files.Create request = DriveClientPool.route(authenticatedClient, fileID).files().create(fileMetadata, mediaContent)
+				.setFields("id, name, parents, size, md5Checksum, modifiedTime, mimeType");
+		request.getMediaHttpUploader().setDirectUploadEnabled(true);
+		File file;
+		try {
+			file = request.execute();
+		}
+		catch (GoogleJsonResponseException e) {
+			if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_CONFLICT)
+				throw e;
+			// The ID is already in use: the file was created by a previous attempt, which may have sent other content.
+			file = DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+					.setFields("id, name, parents, size, md5Checksum, modifiedTime, mimeType")
+					.execute();
+			// The rejected request may not have read the whole file: compute the local checksum again.
+			checksum.reset();
+			try (InputStream in = checksum.wrap(new FileInputStream(localFile))) {
+				byte[] buffer = new byte[64 * 1024];
+				while (in.read(buffer) != -1)
+					;
+			}
+		}
+		return verifyUpload(file, checksum, localFile, mimeType);
+	}
+
+	/**
+	 * Gets the scheduler which shares the bandwidth among the uploads and downloads of this class.
+	 * Its limits can be changed at any time.
+	 * @return The transfer scheduler.
+	 */
+	public static TransferScheduler getTransferScheduler() {
+		return transferScheduler;
+	}
+
+	/**
+	 * Takes an unused file ID from the pool of pre-generated IDs.
+	 * @return The file ID.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static String nextFileID() throws IOException {
+		return idPool.next();
+	}
+
+	/**
+	 * Replaces the content of an existing Drive file with the content of the specified local file.
+	 * The uploaded content is verified against the checksum returned by the Drive, see {@link #setVerifyAttempts(int)}.
+	 * @param fileID The ID of the Drive file to update.
+	 * @param localFile The local file whose content must be uploaded.
+	 * @param mimeType MIME type of the content.
+	 * @return The metadata of the updated file.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static File updateFile(String fileID, java.io.File localFile, String mimeType) throws IOException {
+		StreamingChecksum checksum = new StreamingChecksum(sha256Enabled);
+		return verifyUpload(update(fileID, localFile, mimeType, checksum), checksum, localFile, mimeType);
+	}
+
+	/**
+	 * Reads the metadata which identifies the revision of the content of the specified file.
+	 * @param fileID The ID of the file.
+	 * @return The metadata of the file, with its headRevisionId, md5Checksum and modifiedTime.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static File getFile(String fileID) throws IOException {
+		return DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+				.setFields("id, name, mimeType, size, md5Checksum, headRevisionId, modifiedTime")
+				.execute();
+	}
+
+	/**
+	 * Downloads the specified file into the local target file without displaying anything.
+	 * Google formats are exported to the download MIME type; other files are downloaded as they are.
+	 * @param fileID The ID of the file to download.
+	 * @param target The local target file.
+	 * @param downloadMimeType The format of the file when downloaded; null to keep the Drive format.
+	 * @return The metadata of the downloaded file.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static File downloadFile(String fileID, java.io.File target, String downloadMimeType) throws IOException {
+
+		File file = DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+				.setFields("id, name, parents, size, md5Checksum, modifiedTime, mimeType")
+				.execute();
+		return downloadContent(file, target, downloadMimeType);
+	}
+
+	/**
+	 * Downloads the content of the specified file into memory, verified against the checksum of the Drive file,
+	 * such as to read a small configuration or image file without a temporary file.
+	 * @param fileID The ID of the file to download; Google formats must be exported instead.
+	 * @param maxSize The largest size accepted, in bytes.
+	 * @return The content.
+	 * @throws IOException The file has no content or is larger than the maximum size, the checksums still differ
+	 * after the last attempt, or an I/O error has been detected.
+	 */
+	public static byte[] downloadToMemory(String fileID, int maxSize) throws IOException {
+
+		File file = DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+				.setFields("id, name, size, md5Checksum, mimeType")
+				.execute();
+		if (file.getSize() == null)
+			throw new IOException(String.format("%s has no content to download: %s", file.getName(), file.getMimeType()));
+		if (file.getSize() > maxSize)
+			throw new IOException(String.format("%s is too large to download into memory: %d bytes", file.getName(), file.getSize()));
+
+		StreamingChecksum checksum = new StreamingChecksum(false);
+		for (int attempt = 1; ; attempt++) {
+			checksum.reset();
+			ByteArrayOutputStream content = new ByteArrayOutputStream(file.getSize().intValue());
+			try (OutputStream outputStream = checksum.wrap(content)) {
+				DriveClientPool.route(authenticatedClient, fileID).files().get(fileID).executeMediaAndDownloadTo(outputStream);
+			}
+			if (checksum.matches(file.getMd5Checksum()))
+				return content.toByteArray();
+			if (attempt >= verifyAttempts)
+				throw new IOException(String.format("%s: downloaded checksum %s does not match Drive checksum %s after %d attempts",
+						file.getName(), checksum.getMd5Checksum(), file.getMd5Checksum(), attempt));
+			if (Utility.isDEBUG())
+				System.out.println(String.format("%s: checksum mismatch, downloading again", file.getName()));
+		}
+	}
+
+	/**
+	 * Sets how many times a transfer is attempted when its content does not match the checksum of the Drive file,
+	 * such as when the bytes are corrupted on the way. After the last attempt the transfer fails.
+	 * @param attempts The number of attempts, at least 1; the default is 3.
+	 */
+	public static void setVerifyAttempts(int attempts) {
+		verifyAttempts = Math.max(1, attempts);
+	}
+
+	/**
+	 * Sets whether the SHA-256 checksum of the transfers is computed too, in the same pass as the MD5 one.
+	 * The Drive has no SHA-256 checksum to compare it with: it is recorded in the returned metadata, under the
+	 * <i>sha256Checksum</i> key, for the callers which store it.
+	 * @param enabled True to compute the SHA-256 checksum.
+	 */
+	public static void setSha256Enabled(boolean enabled) {
+		sha256Enabled = enabled;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	// Uploads the content of the local file into the existing Drive file.
+	private static File update(String fileID, java.io.File localFile, String mimeType, StreamingChecksum checksum)
+			throws IOException {
+		AbstractInputStreamContent mediaContent = checksum.wrap(transferScheduler.throttle(
+				new FileContent(mimeType, localFile), transferScheduler.open(localFile.getPath(), 1)));
+		Files.Update request = DriveClientPool.route(authenticatedClient, fileID).files().update(fileID, new File(), mediaContent)
+				.setFields("id, name, parents, size, md5Checksum, modifiedTime, mimeType");
+		request.getMediaHttpUploader().setDirectUploadEnabled(true);
+		return request.execute();
+	}
+
+	/**
+	 * Compares the checksum computed during the upload with the one returned by the Drive, and uploads the content again
+	 * into the same file until they match.
+	 * @return The metadata of the verified file.
+	 * @throws IOException The checksums still differ after the last attempt, or an I/O error has been detected.
+	 */
+	private static File verifyUpload(File file, StreamingChecksum checksum, java.io.File localFile, String mimeType)
+			throws IOException {
+		for (int attempt = 1; !checksum.matches(file.getMd5Checksum()); attempt++) {
+			if (attempt >= verifyAttempts)
+				throw new IOException(String.format("%s: uploaded checksum %s does not match local checksum %s after %d attempts",
+						localFile.getName(), file.getMd5Checksum(), checksum.getMd5Checksum(), attempt));
+			if (Utility.isDEBUG())
+				System.out.println(String.format("%s: checksum mismatch, uploading again", localFile.getName()));
+			file = update(file.getId(), localFile, mimeType, checksum);
+		}
+		return checksum.record(file);
+	}
+
+	/**
+	 * Downloads, or exports, the content of the file into the local target, computing its checksum in the same pass, and
+	 * downloads it again until the checksum matches the one of the Drive file. The exported files cannot be verified.
+	 * @return The metadata of the downloaded file.
+	 * @throws IOException The checksums still differ after the last attempt, or an I/O error has been detected.
+	 */
+	private static File downloadContent(File file, java.io.File target, String downloadMimeType) throws IOException {
+
+		// No conversion is required.
+		boolean media = downloadMimeType == null || file.getMimeType().equals(downloadMimeType);
+		StreamingChecksum checksum = new StreamingChecksum(sha256Enabled);
+		for (int attempt = 1; ; attempt++) {
+			checksum.reset();
+			TransferScheduler.Transfer transfer = transferScheduler.open(target.getPath(), 1);
+			try (OutputStream outputStream = checksum.wrap(transferScheduler.throttle(new FileOutputStream(target), transfer))) {
+				if (media)
+					DriveClientPool.route(authenticatedClient, file.getId()).files().get(file.getId()).executeMediaAndDownloadTo(outputStream);
+				else
+					// Conversion is required from Drive (Google) format to download format.
+					DriveClientPool.route(authenticatedClient, file.getId()).files().export(file.getId(), downloadMimeType).executeMediaAndDownloadTo(outputStream);
+			}
+			if (!media || checksum.matches(file.getMd5Checksum()))
+				return checksum.record(file);
+			if (attempt >= verifyAttempts) {
+				target.delete();
+				throw new IOException(String.format("%s: downloaded checksum %s does not match Drive checksum %s after %d attempts",
+						file.getName(), checksum.getMd5Checksum(), file.getMd5Checksum(), attempt));
+			}
+			if (Utility.isDEBUG())
+				System.out.println(String.format("%s: checksum mismatch, downloading again", file.getName()));
+		}
+	}
+
 }
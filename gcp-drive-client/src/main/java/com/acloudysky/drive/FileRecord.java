@@ -0,0 +1,359 @@
+package com.acloudysky.drive;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.User;
+
+/***
+ * Compact, immutable metadata of a Drive file, for the code paths which hold or scan the metadata of many files.
+ * A {@link File} of the API model is a map-backed GenericJson object whose fields are all boxed or strings; this record
+ * only keeps plain fields instead:
+ * <ul>
+ * 	<li>the ID and the parent IDs as int handles of an {@link IdDictionary};</li>
+ *  <li>the MIME type and the owner's email address as interned strings, shared by all the records with the same value;</li>
+ *  <li>the size and the modification time as primitive longs, and the MD5 checksum as two longs.</li>
+ * </ul>
+ * A record is built from a File, or read directly from the JSON of a files.list response without building the File, and it is
+ * converted back to a File only when the API model is needed, see {@link #toFile(IdDictionary)}.
+ * @author Michael
+ *
+ */
+public class FileRecord {
+
+	// Unknown size or modification time.
+	public final static long UNKNOWN = -1;
+
+	private final static int[] NO_PARENTS = new int[0];
+
+	// The distinct MIME types and owners; there are a few dozen MIME types and usually a few owners.
+	private final static ConcurrentHashMap<String, String> mimeTypes = new ConcurrentHashMap<>();
+	private final static ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>();
+
+	private final int id;
+	private final String name;
+	private final String mimeType;
+	private final String owner;
+	// Most files have a single parent: it is kept in a field, the other ones in an array.
+	private final int parent;
+	private final int[] otherParents;
+	private final long size;
+	private final long modifiedTime;
+	private final boolean hasMd5;
+	private final long md5High;
+	private final long md5Low;
+
+	private FileRecord(int id, String name, String mimeType, String owner, int[] parents, long size, long modifiedTime,
+			String md5) {
+		this.id = id;
+		this.name = name;
+		this.mimeType = internMimeType(mimeType);
+		this.owner = intern(owners, owner);
+		this.parent = parents.length > 0 ? parents[0] : IdDictionary.NONE;
+		this.otherParents = parents.length > 1 ? java.util.Arrays.copyOfRange(parents, 1, parents.length) : NO_PARENTS;
+		this.size = size;
+		this.modifiedTime = modifiedTime;
+		this.hasMd5 = md5 != null && md5.length() == 32;
+		this.md5High = hasMd5 ? Long.parseUnsignedLong(md5.substring(0, 16), 16) : 0;
+		this.md5Low = hasMd5 ? Long.parseUnsignedLong(md5.substring(16), 16) : 0;
+	}
+
+	/**
+	 * Creates the record of the specified file.
+	 * @param file The file metadata returned by the Drive.
+	 * @param ids The dictionary of the ID handles.
+	 * @return The record.
+	 */
+	public static FileRecord of(File file, IdDictionary ids) {
+		List<String> parentIds = file.getParents();
+		int[] parents = NO_PARENTS;
+		if (parentIds != null) {
+			parents = new int[parentIds.size()];
+			for (int i = 0; i < parents.length; i++)
+				parents[i] = ids.intern(parentIds.get(i));
+		}
+		String owner = file.getOwners() != null && !file.getOwners().isEmpty() ?
+				file.getOwners().get(0).getEmailAddress() : null;
+		return new FileRecord(ids.intern(file.getId()), file.getName(), file.getMimeType(), owner, parents,
+				file.getSize() != null ? file.getSize() : UNKNOWN,
+				file.getModifiedTime() != null ? file.getModifiedTime().getValue() : UNKNOWN,
+				file.getMd5Checksum());
+	}
+
+	/**
+	 * Reads a record from the JSON of a file resource, such as an item of a files.list response.
+	 * The parser must be on the START_OBJECT token of the file; it is left on its END_OBJECT token.
+	 * Unlike parsing a File, no map nor boxed value is created for the fields.
+	 * @param parser The JSON parser.
+	 * @param ids The dictionary of the ID handles.
+	 * @return The record.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static FileRecord read(JsonParser parser, IdDictionary ids) throws IOException {
+
+		int id = IdDictionary.NONE;
+		String name = null;
+		String mimeType = null;
+		String owner = null;
+		int[] parents = NO_PARENTS;
+		long size = UNKNOWN;
+		long modifiedTime = UNKNOWN;
+		String md5 = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (value == JsonToken.VALUE_NULL)
+				continue;
+			switch (field) {
+				case "id":
+					id = ids.intern(parser.getText());
+					break;
+				case "name":
+					name = parser.getText();
+					break;
+				case "mimeType":
+					mimeType = parser.getText();
+					break;
+				case "parents":
+					List<Integer> handles = new ArrayList<>(1);
+					while (parser.nextToken() == JsonToken.VALUE_STRING)
+						handles.add(ids.intern(parser.getText()));
+					parents = new int[handles.size()];
+					for (int i = 0; i < parents.length; i++)
+						parents[i] = handles.get(i);
+					break;
+				case "owners":
+					// The first owner's email address.
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						while (parser.nextToken() == JsonToken.FIELD_NAME) {
+							boolean emailAddress = "emailAddress".equals(parser.getCurrentName());
+							if (parser.nextToken() == JsonToken.VALUE_STRING && emailAddress && owner == null)
+								owner = parser.getText();
+							else
+								parser.skipChildren();
+						}
+					}
+					break;
+				case "size":
+					// int64 values are sent as strings.
+					size = Long.parseLong(parser.getText());
+					break;
+				case "modifiedTime":
+					modifiedTime = DateTime.parseRfc3339(parser.getText()).getValue();
+					break;
+				case "md5Checksum":
+					md5 = parser.getText();
+					break;
+				default:
+					parser.skipChildren();
+			}
+		}
+		return new FileRecord(id, name, mimeType, owner, parents, size, modifiedTime, md5);
+	}
+
+	/**
+	 * Writes the record in binary form, such as in a snapshot of the {@link MetadataIndex}.
+	 * The handles are written as is: the record must be read back with the same dictionary.
+	 * @param out The output.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeInt(id);
+		writeString(out, name);
+		writeString(out, mimeType);
+		writeString(out, owner);
+		out.writeInt(parent);
+		out.writeInt(otherParents.length);
+		for (int other : otherParents)
+			out.writeInt(other);
+		out.writeLong(size);
+		out.writeLong(modifiedTime);
+		out.writeBoolean(hasMd5);
+		out.writeLong(md5High);
+		out.writeLong(md5Low);
+	}
+
+	/**
+	 * Reads a record written by {@link #write(DataOutput)}.
+	 * @param in The input.
+	 * @return The record.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	static FileRecord read(DataInput in) throws IOException {
+		int id = in.readInt();
+		String name = readString(in);
+		String mimeType = readString(in);
+		String owner = readString(in);
+		int parent = in.readInt();
+		int[] parents = new int[parent == IdDictionary.NONE ? 0 : 1 + in.readInt()];
+		if (parent == IdDictionary.NONE)
+			in.readInt();
+		else
+			parents[0] = parent;
+		for (int i = 1; i < parents.length; i++)
+			parents[i] = in.readInt();
+		long size = in.readLong();
+		long modifiedTime = in.readLong();
+		boolean hasMd5 = in.readBoolean();
+		long md5High = in.readLong();
+		long md5Low = in.readLong();
+		String md5 = hasMd5 ? String.format("%016x%016x", md5High, md5Low) : null;
+		return new FileRecord(id, name, mimeType, owner, parents, size, modifiedTime, md5);
+	}
+
+	/**
+	 * Converts the record to the API model.
+	 * @param ids The dictionary of the ID handles used to build the record.
+	 * @return The file metadata.
+	 */
+	public File toFile(IdDictionary ids) {
+		File file = new File();
+		file.setId(ids.get(id));
+		file.setName(name);
+		file.setMimeType(mimeType);
+		if (owner != null)
+			file.setOwners(Collections.singletonList(new User().setEmailAddress(owner)));
+		if (parent != IdDictionary.NONE) {
+			List<String> parentIds = new ArrayList<>(1 + otherParents.length);
+			parentIds.add(ids.get(parent));
+			for (int other : otherParents)
+				parentIds.add(ids.get(other));
+			file.setParents(parentIds);
+		}
+		if (size != UNKNOWN)
+			file.setSize(size);
+		if (modifiedTime != UNKNOWN)
+			file.setModifiedTime(new DateTime(modifiedTime));
+		if (hasMd5)
+			file.setMd5Checksum(getMd5Checksum());
+		return file;
+	}
+
+	/**
+	 * Gets the shared instance of the specified MIME type.
+	 * @param mimeType The MIME type.
+	 * @return The interned MIME type; null if the specified one is null.
+	 */
+	static String internMimeType(String mimeType) {
+		return intern(mimeTypes, mimeType);
+	}
+
+	/**
+	 * Gets the handle of the file ID.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * Gets the email address of the first owner; null if it was not requested.
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	public boolean isFolder() {
+		return FolderOperations.FOLDER_MIME_TYPE.equals(mimeType);
+	}
+
+	/**
+	 * Gets the handle of the first parent; IdDictionary.NONE if the file has no parent.
+	 */
+	public int getParent() {
+		return parent;
+	}
+
+	/**
+	 * Gets the handles of all the parents.
+	 */
+	public int[] getParents() {
+		if (parent == IdDictionary.NONE)
+			return NO_PARENTS;
+		int[] parents = new int[1 + otherParents.length];
+		parents[0] = parent;
+		System.arraycopy(otherParents, 0, parents, 1, otherParents.length);
+		return parents;
+	}
+
+	/**
+	 * Tells whether the specified folder is one of the parents.
+	 * @param folder The handle of the folder ID.
+	 */
+	public boolean hasParent(int folder) {
+		if (parent == folder)
+			return true;
+		for (int other : otherParents)
+			if (other == folder)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Gets the size in bytes; UNKNOWN for the Google formats and the folders.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the modification time in milliseconds since the epoch; UNKNOWN if it was not requested.
+	 */
+	public long getModifiedTime() {
+		return modifiedTime;
+	}
+
+	/**
+	 * Gets the MD5 checksum as a hex string; null if the file has none.
+	 */
+	public String getMd5Checksum() {
+		if (!hasMd5)
+			return null;
+		String hex = new BigInteger(1, new byte[] {
+				(byte) (md5High >>> 56), (byte) (md5High >>> 48), (byte) (md5High >>> 40), (byte) (md5High >>> 32),
+				(byte) (md5High >>> 24), (byte) (md5High >>> 16), (byte) (md5High >>> 8), (byte) md5High,
+				(byte) (md5Low >>> 56), (byte) (md5Low >>> 48), (byte) (md5Low >>> 40), (byte) (md5Low >>> 32),
+				(byte) (md5Low >>> 24), (byte) (md5Low >>> 16), (byte) (md5Low >>> 8), (byte) md5Low }).toString(16);
+		return String.format("%32s", hex).replace(' ', '0');
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static String intern(ConcurrentHashMap<String, String> pool, String value) {
+		if (value == null)
+			return null;
+		String interned = pool.putIfAbsent(value, value);
+		return interned != null ? interned : value;
+	}
+
+}
@@ -0,0 +1,227 @@
+package com.acloudysky.drive;
+
+import java.util.Arrays;
+
+/***
+ * In-memory image of a Drive folder hierarchy, built by {@link FolderOperations#loadTree(String, int)}.
+ * Each file or folder is a node identified by an int index; the root folder is node 0.
+ * To keep the memory per node small enough for trees with millions of files, the nodes are not objects:
+ * their attributes are stored in parallel arrays and the full paths are computed on demand by walking up the parents.
+ * The children are linked through the firstChild and nextSibling arrays and a hash table keyed by (parent, name)
+ * resolves each path segment in constant time.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Nodes are added concurrently while the tree is loaded; the add method is synchronized.
+ * 	Once loaded, the tree is read-only and can be shared between threads.</li>
+ *  <li>Drive allows several files with the same name in a folder. The path lookup returns the first one that was added.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class FolderTree {
+
+	// No node.
+	public final static int NONE = -1;
+
+	private final static int INITIAL_CAPACITY = 1024;
+
+	// Node attributes.
+	private String[] ids;
+	private String[] names;
+	private int[] parents;
+	private int[] firstChildren;
+	private int[] nextSiblings;
+	private boolean[] folders;
+	private int size;
+
+	// Open addressing table of node indexes keyed by (parent, name); NONE marks a free slot.
+	private int[] table;
+
+	/**
+	 * Instantiates the FolderTree class with the specified root folder.
+	 * @param rootId The ID of the root folder.
+	 * @param rootName The name of the root folder.
+	 */
+	FolderTree(String rootId, String rootName) {
+		ids = new String[INITIAL_CAPACITY];
+		names = new String[INITIAL_CAPACITY];
+		parents = new int[INITIAL_CAPACITY];
+		firstChildren = new int[INITIAL_CAPACITY];
+		nextSiblings = new int[INITIAL_CAPACITY];
+		folders = new boolean[INITIAL_CAPACITY];
+		table = new int[INITIAL_CAPACITY * 2];
+		Arrays.fill(table, NONE);
+
+		ids[0] = rootId;
+		names[0] = rootName;
+		parents[0] = NONE;
+		firstChildren[0] = NONE;
+		nextSiblings[0] = NONE;
+		folders[0] = true;
+		size = 1;
+	}
+
+	/**
+	 * Adds a file or folder to the tree.
+	 * @param parent The parent node.
+	 * @param id The Drive ID.
+	 * @param name The file or folder name.
+	 * @param folder true if it is a folder.
+	 * @return The new node.
+	 */
+	synchronized int add(int parent, String id, String name, boolean folder) {
+
+		if (size == ids.length)
+			grow();
+
+		int node = size++;
+		ids[node] = id;
+		names[node] = name;
+		parents[node] = parent;
+		folders[node] = folder;
+		firstChildren[node] = NONE;
+		nextSiblings[node] = firstChildren[parent];
+		firstChildren[parent] = node;
+
+		// Keep the first node added with this name.
+		if (findChild(parent, name) == NONE)
+			insert(node);
+		return node;
+	}
+
+	/*********************
+	 * Query functions   *
+	 *********************/
+
+	/**
+	 * Gets the number of nodes, the root folder included.
+	 * @return The number of nodes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getId(int node) {
+		return ids[node];
+	}
+
+	public String getName(int node) {
+		return names[node];
+	}
+
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	public boolean isFolder(int node) {
+		return folders[node];
+	}
+
+	/**
+	 * Gets the first child of the specified node; use {@link #getNextSibling(int)} to get the others.
+	 * @param node The parent node.
+	 * @return The first child; NONE if the node has no children.
+	 */
+	public int getFirstChild(int node) {
+		return firstChildren[node];
+	}
+
+	public int getNextSibling(int node) {
+		return nextSiblings[node];
+	}
+
+	/**
+	 * Gets the full path of the specified node, such as /TestDriveApi/a/b.txt.
+	 * @param node The node.
+	 * @return The path starting with the root folder name.
+	 */
+	public String getPath(int node) {
+		int depth = 0;
+		for (int n = node; n != NONE; n = parents[n])
+			depth++;
+
+		String[] segments = new String[depth];
+		for (int n = node; n != NONE; n = parents[n])
+			segments[--depth] = names[n];
+
+		StringBuilder path = new StringBuilder();
+		for (String segment : segments)
+			path.append('/').append(segment);
+		return path.toString();
+	}
+
+	/**
+	 * Finds the node with the specified path, such as /TestDriveApi/a/b.txt.
+	 * The first segment is the root folder name.
+	 * @param path The path of the file or folder.
+	 * @return The node; NONE if not found.
+	 */
+	public int find(String path) {
+
+		String[] segments = path.split("/");
+		int first = segments.length > 0 && segments[0].isEmpty() ? 1 : 0;
+		if (first == segments.length || !segments[first].equals(names[0]))
+			return NONE;
+
+		int node = 0;
+		for (int i = first + 1; i < segments.length && node != NONE; i++) {
+			if (!segments[i].isEmpty())
+				node = findChild(node, segments[i]);
+		}
+		return node;
+	}
+
+	/**
+	 * Finds the child of the specified node with the specified name.
+	 * @param parent The parent node.
+	 * @param name The child name.
+	 * @return The child; NONE if not found.
+	 */
+	public int findChild(int parent, String name) {
+		int mask = table.length - 1;
+		for (int slot = hash(parent, name) & mask; table[slot] != NONE; slot = (slot + 1) & mask) {
+			int node = table[slot];
+			if (parents[node] == parent && names[node].equals(name))
+				return node;
+		}
+		return NONE;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private static int hash(int parent, String name) {
+		int h = parent * 0x9E3779B1 + name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private void insert(int node) {
+		int mask = table.length - 1;
+		int slot = hash(parents[node], names[node]) & mask;
+		while (table[slot] != NONE)
+			slot = (slot + 1) & mask;
+		table[slot] = node;
+	}
+
+	/**
+	 * Doubles the capacity of the node arrays and rebuilds the lookup table.
+	 */
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		names = Arrays.copyOf(names, capacity);
+		parents = Arrays.copyOf(parents, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+		folders = Arrays.copyOf(folders, capacity);
+
+		int[] oldTable = table;
+		table = new int[capacity * 2];
+		Arrays.fill(table, NONE);
+		for (int node : oldTable)
+			if (node != NONE)
+				insert(node);
+	}
+
+}
@@ -0,0 +1,408 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.acloudysky.utilities.Utility;
+
+/***
+ * Maps the Drive IDs to dense int handles, so that the in-memory indexes can refer to a file with an int instead of a
+ * 28 to 44 character string. The handles are assigned in order, starting from 0, and never change.
+ * <p>
+ * Nothing is kept on the Java heap: the IDs, the entries and the hash table are stored in direct or memory-mapped buffers,
+ * so that a dictionary of millions of IDs neither adds to the heap nor to the work of the garbage collector.
+ * There are three regions:
+ * <ul>
+ * 	<li>the strings: each ID as a length byte followed by its ASCII characters;</li>
+ * 	<li>the entries, indexed by handle: the offset of the ID in the strings and its hash, after a header;</li>
+ * 	<li>an open addressing table of handles keyed by ID, where 0 marks a free slot and a handle is stored plus one.</li>
+ * </ul>
+ * A dictionary opened on a file maps each region to its own file: <i>name</i>, <i>name</i>.strings and <i>name</i>.table.
+ * Reopening it maps the files again, no ID is read or hashed; the table is only rebuilt, from the stored hashes, if the
+ * dictionary was not closed.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The dictionary is thread-safe; an ID is never removed.</li>
+ * 	<li>The changes of a dictionary opened on a file are durable after {@link #force()} or {@link #close()}.</li>
+ * 	<li>A region is limited to 2 GB, that is about 45 million IDs.</li>
+ * 	<li>A dictionary opened on a file holds a lock on it until it is closed, so that another process waits for it instead
+ * 	of writing the same files. Within a process, {@link #open()} returns the same dictionary to every caller.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class IdDictionary implements AutoCloseable {
+
+	// No handle.
+	public final static int NONE = -1;
+
+	// The default dictionary file, next to the client_defaults.json file.
+	final static String DICTIONARYFILE = "id_dictionary";
+
+	private final static int MAGIC = 0x44494431;
+	// Header: magic, size, strings end, table capacity (slots), clean flag.
+	private final static int HEADER_SIZE = 32;
+	private final static int SIZE_OFFSET = 4;
+	private final static int STRINGS_END_OFFSET = 8;
+	private final static int TABLE_CAPACITY_OFFSET = 12;
+	private final static int CLEAN_OFFSET = 16;
+	private final static int ENTRY_SIZE = 8;
+	private final static int MAX_ID_LENGTH = 255;
+
+	private final static int INITIAL_CAPACITY = 1024;
+
+	// The dictionary of this process and the number of callers of open() which have not closed it.
+	private static IdDictionary shared;
+	private static int references;
+
+	// The canonical paths of the dictionaries opened on a file by this process.
+	private final static Set<String> openFiles = ConcurrentHashMap.newKeySet();
+
+	// Null for a dictionary in direct buffers.
+	private final String path;
+	private final FileLock lock;
+	private final Region entries;
+	private final Region strings;
+	private final Region table;
+
+	private int size;
+	private int stringsEnd;
+	private int tableCapacity;
+
+	/**
+	 * Creates an empty dictionary in direct buffers; it is discarded when it is no longer referenced.
+	 */
+	public IdDictionary() {
+		path = null;
+		lock = null;
+		entries = new Region(null, HEADER_SIZE + (long) INITIAL_CAPACITY * ENTRY_SIZE);
+		strings = new Region(null, INITIAL_CAPACITY * 32L);
+		table = new Region(null, INITIAL_CAPACITY * 2L * 4);
+		tableCapacity = INITIAL_CAPACITY * 2;
+		entries.buffer.putInt(0, MAGIC);
+		writeHeader(false);
+	}
+
+	/**
+	 * Opens the dictionary stored in the specified file, creating it if it does not exist.
+	 * The call waits while another process has the dictionary open.
+	 * @param file The dictionary file; the <i>.strings</i> and <i>.table</i> files are next to it.
+	 * @throws IOException The files could not be mapped, or the file is not a dictionary.
+	 */
+	public IdDictionary(java.io.File file) throws IOException {
+		// Closing a second channel on the file would release the lock held by the first one.
+		path = file.getCanonicalPath();
+		if (!openFiles.add(path))
+			throw new IOException(String.format("%s is already open in this process", file));
+		FileChannel entriesChannel = null;
+		try {
+			entriesChannel = channel(file);
+			lock = entriesChannel.lock();
+			entries = new Region(entriesChannel, HEADER_SIZE + (long) INITIAL_CAPACITY * ENTRY_SIZE);
+			strings = new Region(channel(new java.io.File(file.getPath() + ".strings")), INITIAL_CAPACITY * 32L);
+			table = new Region(channel(new java.io.File(file.getPath() + ".table")), INITIAL_CAPACITY * 2L * 4);
+		}
+		catch (IOException | RuntimeException e) {
+			if (entriesChannel != null)
+				entriesChannel.close();
+			openFiles.remove(path);
+			throw e;
+		}
+
+		ByteBuffer header = entries.buffer;
+		if (header.getInt(0) == 0) {
+			// A new dictionary.
+			header.putInt(0, MAGIC);
+			tableCapacity = INITIAL_CAPACITY * 2;
+		}
+		else if (header.getInt(0) != MAGIC) {
+			entries.close();
+			strings.close();
+			table.close();
+			openFiles.remove(path);
+			throw new IOException(String.format("%s is not an ID dictionary", file));
+		}
+		else {
+			size = header.getInt(SIZE_OFFSET);
+			stringsEnd = header.getInt(STRINGS_END_OFFSET);
+			tableCapacity = header.getInt(TABLE_CAPACITY_OFFSET);
+			if (header.getInt(CLEAN_OFFSET) == 0 || table.capacity() < tableCapacity * 4L) {
+				// The dictionary was not closed: the table may miss some of the entries.
+				if (Utility.isDEBUG())
+					System.out.println(String.format("Rebuilding the table of %s", file));
+				rehash(Math.max(tableCapacity, INITIAL_CAPACITY * 2));
+			}
+		}
+		// Dirty until closed.
+		writeHeader(false);
+		entries.force();
+	}
+
+	/**
+	 * Opens the dictionary stored in the id_dictionary file, next to the client_defaults.json file.
+	 * The dictionary is shared by the callers in this process; it is closed when the last of them closes it.
+	 * @return The dictionary.
+	 * @throws IOException The files could not be mapped.
+	 */
+	public static synchronized IdDictionary open() throws IOException {
+		if (shared == null)
+			shared = new IdDictionary(new java.io.File(
+					Utility.getAbsoluteFilePath(DriveDefaultSettings.SERVICESDIR, DriveDefaultSettings.DATADIR, DICTIONARYFILE)));
+		references++;
+		return shared;
+	}
+
+	/**
+	 * Gets the handle of the specified ID, assigning a new one if the ID is not in the dictionary yet.
+	 * @param id The Drive ID.
+	 * @return The handle.
+	 */
+	public synchronized int intern(String id) {
+
+		int hash = hash(id);
+		int mask = tableCapacity - 1;
+		int slot = hash & mask;
+		for (int stored; (stored = table.buffer.getInt(slot * 4)) != 0; slot = (slot + 1) & mask)
+			if (matches(stored - 1, id, hash))
+				return stored - 1;
+
+		if (id.length() > MAX_ID_LENGTH)
+			throw new IllegalArgumentException(String.format("Not a Drive ID: %s", id));
+		for (int i = 0; i < id.length(); i++)
+			if (id.charAt(i) >= 0x80)
+				throw new IllegalArgumentException(String.format("Not a Drive ID: %s", id));
+
+		int handle = size;
+		strings.ensure((long) stringsEnd + 1 + id.length());
+		entries.ensure(HEADER_SIZE + (long) (handle + 1) * ENTRY_SIZE);
+		ByteBuffer buffer = strings.buffer;
+		buffer.put(stringsEnd, (byte) id.length());
+		for (int i = 0; i < id.length(); i++)
+			buffer.put(stringsEnd + 1 + i, (byte) id.charAt(i));
+		entries.buffer.putInt(HEADER_SIZE + handle * ENTRY_SIZE, stringsEnd);
+		entries.buffer.putInt(HEADER_SIZE + handle * ENTRY_SIZE + 4, hash);
+		stringsEnd += 1 + id.length();
+		size++;
+
+		// Load factor of 1/2 at most.
+		if (size * 2 > tableCapacity)
+			rehash(tableCapacity * 2);
+		else
+			table.buffer.putInt(slot * 4, handle + 1);
+		entries.buffer.putInt(SIZE_OFFSET, size);
+		entries.buffer.putInt(STRINGS_END_OFFSET, stringsEnd);
+		return handle;
+	}
+
+	/**
+	 * Gets the handle of the specified ID without adding it.
+	 * @param id The Drive ID.
+	 * @return The handle; NONE if the ID is not in the dictionary.
+	 */
+	public synchronized int lookup(String id) {
+		int hash = hash(id);
+		int mask = tableCapacity - 1;
+		for (int slot = hash & mask, stored; (stored = table.buffer.getInt(slot * 4)) != 0; slot = (slot + 1) & mask)
+			if (matches(stored - 1, id, hash))
+				return stored - 1;
+		return NONE;
+	}
+
+	/**
+	 * Gets the ID of the specified handle.
+	 * @param handle A handle returned by {@link #intern(String)}.
+	 * @return The Drive ID.
+	 */
+	public synchronized String get(int handle) {
+		if (handle < 0 || handle >= size)
+			throw new IllegalArgumentException(String.format("Unknown handle %d", handle));
+		int offset = entries.buffer.getInt(HEADER_SIZE + handle * ENTRY_SIZE);
+		int length = strings.buffer.get(offset) & 0xFF;
+		char[] id = new char[length];
+		for (int i = 0; i < length; i++)
+			id[i] = (char) strings.buffer.get(offset + 1 + i);
+		return new String(id);
+	}
+
+	/**
+	 * Gets the number of IDs in the dictionary.
+	 * @return The number of IDs.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Writes the changes of a dictionary opened on a file to the storage device.
+	 */
+	public synchronized void force() {
+		strings.force();
+		table.force();
+		entries.force();
+	}
+
+	/**
+	 * Writes the changes, closes the files and releases the lock; the dictionary must no longer be used.
+	 * A dictionary returned by {@link #open()} is only closed when its last caller closes it.
+	 * The mappings themselves are released when the buffers are garbage collected.
+	 * @throws IOException The files could not be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (IdDictionary.class) {
+			if (this == shared) {
+				if (--references > 0)
+					return;
+				shared = null;
+			}
+		}
+		synchronized (this) {
+			if (entries.channel != null && entries.channel.isOpen()) {
+				strings.force();
+				table.force();
+				writeHeader(true);
+				entries.force();
+			}
+			if (lock != null && lock.isValid())
+				lock.release();
+			entries.close();
+			strings.close();
+			table.close();
+			if (path != null)
+				openFiles.remove(path);
+		}
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * A growable direct buffer, mapped to a file if it has a channel.
+	 */
+	private static class Region {
+
+		private final FileChannel channel;
+		private ByteBuffer buffer;
+
+		Region(FileChannel channel, long initialCapacity) {
+			this.channel = channel;
+			try {
+				buffer = allocate(channel == null ? initialCapacity : Math.max(channel.size(), initialCapacity));
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(String.format("The dictionary cannot be mapped: %s", e.getMessage()), e);
+			}
+		}
+
+		long capacity() {
+			return buffer.capacity();
+		}
+
+		/**
+		 * Grows the region, at least doubling it, so that it holds the specified number of bytes.
+		 */
+		void ensure(long required) {
+			if (required <= buffer.capacity())
+				return;
+			ByteBuffer previous = buffer;
+			buffer = allocate(Math.max(required, Math.min(2L * previous.capacity(), Integer.MAX_VALUE)));
+			if (channel == null) {
+				previous.clear();
+				buffer.put(previous);
+				buffer.clear();
+			}
+		}
+
+		/**
+		 * Grows the region to the specified number of bytes and clears it.
+		 */
+		void reset(long capacity) {
+			if (capacity > buffer.capacity() || channel == null)
+				buffer = allocate(capacity);
+			if (channel != null)
+				for (int position = 0; position < buffer.capacity(); position += 4)
+					buffer.putInt(position, 0);
+		}
+
+		void force() {
+			if (buffer instanceof MappedByteBuffer)
+				((MappedByteBuffer) buffer).force();
+		}
+
+		void close() throws IOException {
+			if (channel != null)
+				channel.close();
+		}
+
+		private ByteBuffer allocate(long capacity) {
+			if (capacity > Integer.MAX_VALUE)
+				throw new IllegalStateException("The dictionary is full");
+			if (channel == null)
+				return ByteBuffer.allocateDirect((int) capacity);
+			try {
+				// The file is extended with zeros.
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(String.format("The dictionary cannot be mapped: %s", e.getMessage()), e);
+			}
+		}
+	}
+
+	private static FileChannel channel(java.io.File file) throws IOException {
+		java.io.File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		@SuppressWarnings("resource")
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		// Closing the channel closes the file.
+		return randomAccessFile.getChannel();
+	}
+
+	private static int hash(String id) {
+		int h = id.hashCode() * 0x9E3779B1;
+		return h ^ (h >>> 16);
+	}
+
+	private boolean matches(int handle, String id, int hash) {
+		int entry = HEADER_SIZE + handle * ENTRY_SIZE;
+		if (entries.buffer.getInt(entry + 4) != hash)
+			return false;
+		int offset = entries.buffer.getInt(entry);
+		if ((strings.buffer.get(offset) & 0xFF) != id.length())
+			return false;
+		for (int i = 0; i < id.length(); i++)
+			if (strings.buffer.get(offset + 1 + i) != (byte) id.charAt(i))
+				return false;
+		return true;
+	}
+
+	private void rehash(int capacity) {
+		table.reset(capacity * 4L);
+		tableCapacity = capacity;
+		int mask = capacity - 1;
+		for (int handle = 0; handle < size; handle++) {
+			int slot = entries.buffer.getInt(HEADER_SIZE + handle * ENTRY_SIZE + 4) & mask;
+			while (table.buffer.getInt(slot * 4) != 0)
+				slot = (slot + 1) & mask;
+			table.buffer.putInt(slot * 4, handle + 1);
+		}
+		entries.buffer.putInt(TABLE_CAPACITY_OFFSET, tableCapacity);
+	}
+
+	private void writeHeader(boolean clean) {
+		ByteBuffer header = entries.buffer;
+		header.putInt(SIZE_OFFSET, size);
+		header.putInt(STRINGS_END_OFFSET, stringsEnd);
+		header.putInt(TABLE_CAPACITY_OFFSET, tableCapacity);
+		header.putInt(CLEAN_OFFSET, clean ? 1 : 0);
+	}
+
+}
@@ -41,7 +41,7 @@ public class Main {
 	 * @see DriveDefaultSettings#readSettings()  
 	 * @see FileOperations#initFileOperations(Drive, DriveDefaultSettings)
      * @see SimpleUI#SimpleUI(DriveDefaultSettings)
-	 * @param args args[0] = "drive"
+	 * @param args args[0] = "drive"; optionally followed by a command to run non-interactively, see {@link CommandLine}.
 	 * 
 	 */
 	public static void main(String[] args) {
@@ -52,6 +52,20 @@ public class Main {
 		// Set DEBUG flag for testing. 
 		Utility.setDEBUG(false);
 	
+		// Run a single command without greetings and menus, if one is passed.
+		// For example: drive ls --all --json
+		String[] command = commandArguments(args);
+		if (command.length > 0 && "daemon".equals(command[0])) {
+			// Keep the client warm and serve the commands over a loopback endpoint.
+			int exitCode = DriveDaemon.run(java.util.Arrays.copyOfRange(command, 1, command.length));
+			if (exitCode != CommandLine.EXIT_OK)
+				System.exit(exitCode);
+			return;
+		}
+		if (command.length > 0) {
+			System.exit(runCommand(command));
+		}
+		
 		// Display greeting message.
 		UserInterface.displayWelcomeMessage("Google Drive Service");
 		
@@ -77,33 +91,11 @@ public class Main {
 			System.out.println(startGreetings);	
 		}
 		
-		
-		
-		if (Utility.isDEBUG())
-			Utility.getAbsoluteFilePath(".googleservices", "drive", "client_secrets.json");
-		
-		// Instantiate the AuthenticateGoogleServiceClient class.
-		AuthenticateGoogleServiceClient serviceAuthentication = 
-				new AuthenticateGoogleServiceClient(".googleservices", "drive", "client_secrets.json"); 
-		
-		
 		// Create an authenticated client which is authorized to use Google Drive REST API.
 		Drive driveServiceClient = null;
 		
 		try {
-				String selectedScope = 
-						serviceAuthentication.getScope(IGoogleServiceClientAuthentication.driveScopes, "drive");
-				if (Utility.isDEBUG()) {
-					// Display scopes.
-					Utility.displayScopes(IGoogleServiceClientAuthentication.driveScopes);
-					System.out.println("Selected scope: " + selectedScope);	
-				}
-				driveServiceClient = 
-						serviceAuthentication.getAuthenticatedDriveClient(selectedScope);
-				String service = driveServiceClient.getApplicationName();
-				if (Utility.isDEBUG()) {
-					System.out.println(String.format("App name is: %s", service));
-				}
+				driveServiceClient = getAuthenticatedClient();
 		}
 		catch (Exception e) {
 			System.out.println(String.format("Error %s during service authentication.", e.toString()));
@@ -118,6 +110,17 @@ public class Main {
 						
 			// Initialize Drive operations classes.
 			FileOperations.initFileOperations(driveServiceClient, defaultSettings);
+			FolderOperations.initFolderOperations(driveServiceClient);
+			PackOperations.initPackOperations(driveServiceClient);
+			DeltaOperations.initDeltaOperations(driveServiceClient);
+			MetadataIndex.initMetadataIndex(driveServiceClient);
+			ExportOperations.initExportOperations(driveServiceClient);
+			BackupOperations.initBackupOperations(driveServiceClient);
+			PermissionOperations.initPermissionOperations(driveServiceClient);
+			BulkOperations.initBulkOperations(driveServiceClient);
+			ChangeNotificationReceiver.initChangeNotificationReceiver(driveServiceClient);
+			RemoteFileChannel.initRemoteFileChannel(driveServiceClient);
+			ContentCache.initContentCache(driveServiceClient);
 			OtherOperations.initCommentOperations(driveServiceClient);
 			
 			// Instantiate SimpleUI class and display menu.
@@ -132,6 +135,90 @@ public class Main {
 		UserInterface.displayGoodbyeMessage("Google Drive Service");	
 	}
 
+	/**
+	 * Gets the authenticated client object authorized to access the Google Drive service REST API.
+	 * The access token of the returned client is refreshed in the background, see {@link CredentialManager}.
+	 * The client pool described by the client_pool.json file, if any, is installed too, see {@link DriveClientPool}.
+	 * @return The authenticated Drive client.
+	 * @throws Exception An error occurred during the authentication.
+	 */
+	static Drive getAuthenticatedClient() throws Exception {
+		
+		if (Utility.isDEBUG())
+			Utility.getAbsoluteFilePath(".googleservices", "drive", "client_secrets.json");
+		
+		// Instantiate the AuthenticateGoogleServiceClient class.
+		AuthenticateGoogleServiceClient serviceAuthentication = 
+				new AuthenticateGoogleServiceClient(".googleservices", "drive", "client_secrets.json"); 
+		
+		String selectedScope = 
+				serviceAuthentication.getScope(IGoogleServiceClientAuthentication.driveScopes, "drive");
+		if (Utility.isDEBUG()) {
+			// Display scopes.
+			Utility.displayScopes(IGoogleServiceClientAuthentication.driveScopes);
+			System.out.println("Selected scope: " + selectedScope);	
+		}
+		Drive driveServiceClient = 
+				serviceAuthentication.getAuthenticatedDriveClient(selectedScope);
+		if (Utility.isDEBUG()) {
+			System.out.println(String.format("App name is: %s", driveServiceClient.getApplicationName()));
+		}
+		// Spread the operations on known folders and files over the identities of the client pool, if any.
+		DriveClientPool.install(DriveClientPool.fromSettings());
+		// Refresh the access token in the background, before it expires.
+		return CredentialManager.manage(driveServiceClient);
+	}
 	
-}
+	/**
+	 * Extracts the non-interactive command from the application input, if any.
+	 * The optional leading client name "drive" is skipped.
+	 * @param args The application input.
+	 * @return The command followed by its arguments; an empty array to start the interactive menu.
+	 */
+	private static String[] commandArguments(String[] args) {
+		int first = args.length > 0 && "drive".equals(args[0]) ? 1 : 0;
+		if (first < args.length && (CommandLine.isCommand(args[first]) || "daemon".equals(args[first])))
+			return java.util.Arrays.copyOfRange(args, first, args.length);
+		return new String[0];
+	}
+	
+	/**
+	 * Initializes the operation classes used by the non-interactive commands.
+	 * Unlike the interactive menu it does not read the default settings nor display anything.
+	 * @param driveServiceClient The authenticated Drive client.
+	 */
+	static void initServiceClients(Drive driveServiceClient) {
+		FileOperations.initServiceClient(driveServiceClient);
+		FolderOperations.initFolderOperations(driveServiceClient);
+		PackOperations.initPackOperations(driveServiceClient);
+		DeltaOperations.initDeltaOperations(driveServiceClient);
+		MetadataIndex.initMetadataIndex(driveServiceClient);
+		ExportOperations.initExportOperations(driveServiceClient);
+		BackupOperations.initBackupOperations(driveServiceClient);
+		PermissionOperations.initPermissionOperations(driveServiceClient);
+		BulkOperations.initBulkOperations(driveServiceClient);
+		ChangeNotificationReceiver.initChangeNotificationReceiver(driveServiceClient);
+		RemoteFileChannel.initRemoteFileChannel(driveServiceClient);
+		ContentCache.initContentCache(driveServiceClient);
+	}
+	
+	/**
+	 * Runs the specified command non-interactively.
+	 * @param command The command followed by its arguments.
+	 * @return The exit code.
+	 * @see CommandLine
+	 */
+	private static int runCommand(String[] command) {
+		
+		try {
+				initServiceClients(getAuthenticatedClient());
+		}
+		catch (Exception e) {
+			System.err.println(String.format("Error %s during service authentication.", e.toString()));
+			return CommandLine.EXIT_FAILED;
+		}
+		return new CommandLine(System.out, System.err).run(command);
+	}
 
+	
+}
@@ -0,0 +1,741 @@
+package com.acloudysky.drive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+
+/***
+ * Local search index over the metadata of the Drive files, so that the searches are answered offline instead of sending a
+ * files.list request each time.
+ * The index holds a {@link FileRecord} per file, keyed by the handles of an {@link IdDictionary}, and the following indexes:
+ * <ul>
+ * 	<li>an inverted index of the lower case words of the names, searched by prefix like the <i>name contains</i> queries;</li>
+ * 	<li>sorted indexes of the MIME types and of the owners;</li>
+ * 	<li>sorted indexes of the modification times and of the sizes, for the range predicates.</li>
+ * </ul>
+ * A search intersects the handles found in the indexes of its predicates, then checks each candidate against the whole
+ * query; the folder predicate matches the files anywhere under the folder, by walking up their parents.
+ * <p>
+ * The index is loaded once with a full listing and then kept current with the change feed (changes.list), starting from the
+ * page token taken before the listing. It is saved to the metadata_index.dat file, next to the client_defaults.json file,
+ * with the IDs in the id_dictionary files; the word, owner, MIME type, time and size indexes are rebuilt when it is read.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>A search on a stale index first applies the changes. Only if this fails, or the index was never loaded, is the query
+ * 	sent to the server; the server cannot search a folder recursively, so this fallback only returns its direct children.</li>
+ * 	<li>The methods are synchronized; a search does not block the others for long, since it does not send any request unless
+ * 	the index is stale.</li>
+ * 	<li>Within a process, {@link #open()} returns the same index to every caller. Across processes, the lock held by the
+ * 	dictionary also guards the snapshot: another process waits until the index is closed.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class MetadataIndex implements AutoCloseable {
+
+	// The index snapshot, next to the client_defaults.json file.
+	final static String INDEXFILE = "metadata_index.dat";
+
+	private final static int SNAPSHOT_VERSION = 1;
+	private final static int PAGE_SIZE = 1000;
+	private final static String FILE_FIELDS = "id, name, parents, size, md5Checksum, modifiedTime, mimeType, owners(emailAddress)";
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	// The index of this process and the number of callers of open() which have not closed it.
+	private static MetadataIndex shared;
+	private static int references;
+
+	private final java.io.File snapshotFile;
+	private final IdDictionary ids;
+
+	// The records, indexed by handle; null for the handles of files not in the index, such as the root folder.
+	private FileRecord[] records = new FileRecord[1024];
+	private int count;
+
+	private final TreeMap<String, Postings> words = new TreeMap<>();
+	private final TreeMap<String, Postings> mimeTypes = new TreeMap<>();
+	private final TreeMap<String, Postings> owners = new TreeMap<>();
+	private final SortedIndex modifiedTimes = new SortedIndex();
+	private final SortedIndex sizes = new SortedIndex();
+
+	// The change feed position and the time the index was last brought up to date; null and 0 if it was never loaded.
+	private String pageToken;
+	private long updatedTime;
+
+	/***
+	 * The predicates of a search; the unset predicates match all the files.
+	 */
+	public static class Query {
+
+		private final List<String> words = new ArrayList<>();
+		private String mimeType;
+		private String owner;
+		private long modifiedAfter = Long.MIN_VALUE;
+		private long modifiedBefore = Long.MAX_VALUE;
+		private long minSize = Long.MIN_VALUE;
+		private long maxSize = Long.MAX_VALUE;
+		private String folder;
+		private int limit = Integer.MAX_VALUE;
+
+		/**
+		 * Matches the files whose name contains words starting with each word of the specified text.
+		 */
+		public Query setName(String text) {
+			words.addAll(tokenize(text));
+			return this;
+		}
+
+		public Query setMimeType(String mimeType) {
+			this.mimeType = mimeType;
+			return this;
+		}
+
+		/**
+		 * Matches the files whose first owner has the specified email address.
+		 */
+		public Query setOwner(String owner) {
+			this.owner = owner;
+			return this;
+		}
+
+		/**
+		 * Matches the files modified at or after the specified time, in milliseconds since the epoch.
+		 */
+		public Query setModifiedAfter(long time) {
+			this.modifiedAfter = time;
+			return this;
+		}
+
+		/**
+		 * Matches the files modified before the specified time, in milliseconds since the epoch.
+		 */
+		public Query setModifiedBefore(long time) {
+			this.modifiedBefore = time;
+			return this;
+		}
+
+		public Query setMinSize(long size) {
+			this.minSize = size;
+			return this;
+		}
+
+		public Query setMaxSize(long size) {
+			this.maxSize = size;
+			return this;
+		}
+
+		/**
+		 * Matches the files anywhere under the specified folder.
+		 */
+		public Query setFolder(String folderID) {
+			this.folder = folderID;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of files returned, the most recently modified first.
+		 */
+		public Query setLimit(int limit) {
+			this.limit = limit;
+			return this;
+		}
+
+		/**
+		 * Gets the equivalent Drive query, used when the index cannot answer.
+		 * The folder predicate only matches the direct children of the folder, and the sizes are not filtered.
+		 */
+		DriveQuery toDriveQuery() {
+			DriveQuery query = DriveQuery.trashed(false);
+			for (String word : words)
+				query = query.and(DriveQuery.nameContains(word));
+			if (mimeType != null)
+				query = query.and(DriveQuery.mimeType(mimeType));
+			if (owner != null)
+				query = query.and(DriveQuery.owner(owner));
+			if (modifiedAfter != Long.MIN_VALUE)
+				// The term is exclusive.
+				query = query.and(DriveQuery.modifiedAfter(modifiedAfter - 1));
+			if (modifiedBefore != Long.MAX_VALUE)
+				query = query.and(DriveQuery.modifiedBefore(modifiedBefore));
+			if (folder != null)
+				query = query.and(DriveQuery.inParents(folder));
+			return query;
+		}
+	}
+
+	/**
+	 * Initializes the service client used to load and update the indexes.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initMetadataIndex(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Opens the index stored in the metadata_index.dat file, with the IDs of the id_dictionary files.
+	 * The index is empty if it was never loaded. It is shared by the callers in this process and closed when the last of
+	 * them closes it.
+	 * @return The index.
+	 * @throws IOException The snapshot or the dictionary could not be read.
+	 */
+	public static synchronized MetadataIndex open() throws IOException {
+		if (shared == null) {
+			IdDictionary ids = IdDictionary.open();
+			try {
+				shared = new MetadataIndex(new java.io.File(
+						Utility.getAbsoluteFilePath(DriveDefaultSettings.SERVICESDIR, DriveDefaultSettings.DATADIR, INDEXFILE)),
+						ids);
+			}
+			catch (IOException | RuntimeException e) {
+				ids.close();
+				throw e;
+			}
+		}
+		references++;
+		return shared;
+	}
+
+	/**
+	 * Opens the index stored in the specified snapshot, if it exists, and rebuilds its indexes.
+	 * @param snapshotFile The snapshot file.
+	 * @param ids The dictionary the snapshot handles refer to.
+	 * @throws IOException The snapshot could not be read.
+	 */
+	public MetadataIndex(java.io.File snapshotFile, IdDictionary ids) throws IOException {
+		this.snapshotFile = snapshotFile;
+		this.ids = ids;
+		if (snapshotFile.exists())
+			readSnapshot();
+	}
+
+	/**
+	 * Gets the dictionary of the handles of the records.
+	 */
+	public IdDictionary getIds() {
+		return ids;
+	}
+
+	/**
+	 * Gets the number of files in the index.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Tells whether the index was loaded.
+	 */
+	public synchronized boolean isLoaded() {
+		return pageToken != null;
+	}
+
+	/**
+	 * Gets the position in the change feed from which the next update reads the changes; null if the index was not loaded.
+	 */
+	public synchronized String getPageToken() {
+		return pageToken;
+	}
+
+	/**
+	 * Tells whether the index was last brought up to date more than the specified time ago, or never loaded.
+	 * @param maxAge The maximum age in milliseconds.
+	 */
+	public synchronized boolean isStale(long maxAge) {
+		return pageToken == null || System.currentTimeMillis() - updatedTime > maxAge;
+	}
+
+	/**
+	 * Closes the dictionary of the handles, unless other callers in this process still use the index.
+	 * @throws IOException The dictionary could not be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (MetadataIndex.class) {
+			if (this == shared) {
+				if (--references > 0)
+					return;
+				shared = null;
+			}
+		}
+		synchronized (this) {
+			ids.close();
+		}
+	}
+
+	/*********************
+	 * Feed functions    *
+	 *********************/
+
+	/**
+	 * Replaces the content of the index with a full listing of the files, then saves it.
+	 * The change feed position is taken before the listing, so the changes made during the listing are applied later.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public synchronized void load() throws IOException {
+
+		String startPageToken = authenticatedClient.changes().getStartPageToken().execute().getStartPageToken();
+		long startTime = System.currentTimeMillis();
+
+		clear();
+		FileOperations.listRecords(DriveQuery.trashed(false), PAGE_SIZE, true, ids, this::put);
+		pageToken = startPageToken;
+		updatedTime = startTime;
+		save();
+	}
+
+	/**
+	 * Applies the changes made since the last load or update, then saves the index.
+	 * @return The number of changes applied.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public synchronized int update() throws IOException {
+
+		if (pageToken == null)
+			throw new IllegalStateException("The index was not loaded");
+
+		long startTime = System.currentTimeMillis();
+		int applied = 0;
+		String token = pageToken;
+		while (token != null) {
+			ChangeList changes = authenticatedClient.changes().list(token)
+					.setPageSize(PAGE_SIZE)
+					.setSpaces("drive")
+					.setFields(String.format("nextPageToken, newStartPageToken, changes(fileId, removed, file(%s, trashed))",
+							FILE_FIELDS))
+					.execute();
+			for (Change change : changes.getChanges()) {
+				if (change.getFileId() == null)
+					continue;
+				if (Boolean.TRUE.equals(change.getRemoved()) || change.getFile() == null
+						|| Boolean.TRUE.equals(change.getFile().getTrashed()))
+					remove(change.getFileId());
+				else
+					put(FileRecord.of(change.getFile(), ids));
+				applied++;
+			}
+			if (changes.getNewStartPageToken() != null) {
+				pageToken = changes.getNewStartPageToken();
+				token = null;
+			}
+			else
+				token = changes.getNextPageToken();
+		}
+		updatedTime = startTime;
+		save();
+		return applied;
+	}
+
+	/**
+	 * Adds or replaces the record of a file.
+	 * @param record The record.
+	 */
+	public synchronized void put(FileRecord record) {
+		int handle = record.getId();
+		if (handle >= records.length)
+			records = Arrays.copyOf(records, Math.max(records.length * 2, handle + 1));
+		if (records[handle] != null)
+			unindex(records[handle]);
+		else
+			count++;
+		records[handle] = record;
+		index(record);
+	}
+
+	/**
+	 * Removes the record of a file.
+	 * @param fileID The file ID.
+	 */
+	public synchronized void remove(String fileID) {
+		int handle = ids.lookup(fileID);
+		if (handle == IdDictionary.NONE || handle >= records.length || records[handle] == null)
+			return;
+		unindex(records[handle]);
+		records[handle] = null;
+		count--;
+	}
+
+	/*********************
+	 * Query functions   *
+	 *********************/
+
+	/**
+	 * Finds the files matching the query, the most recently modified first.
+	 * If the index is older than the specified age it is updated first. If it cannot be updated, or was never loaded,
+	 * the query is sent to the server instead.
+	 * @param query The query.
+	 * @param maxAge The maximum age of the index in milliseconds.
+	 * @return The matching files.
+	 * @throws IOException The index is stale and the server could not be queried.
+	 */
+	public List<FileRecord> search(Query query, long maxAge) throws IOException {
+		if (isStale(maxAge)) {
+			try {
+				if (!isLoaded())
+					return searchServer(query);
+				update();
+			}
+			catch (IOException e) {
+				if (Utility.isDEBUG())
+					System.out.println(String.format("The index cannot be updated: %s", e.getMessage()));
+				return searchServer(query);
+			}
+		}
+		return search(query);
+	}
+
+	/**
+	 * Finds the files of the index matching the query, the most recently modified first, without sending any request.
+	 * @param query The query.
+	 * @return The matching files.
+	 */
+	public synchronized List<FileRecord> search(Query query) {
+
+		BitSet candidates = null;
+		for (String word : query.words) {
+			BitSet matches = new BitSet();
+			// Prefix search.
+			for (Postings postings : words.subMap(word, word + Character.MAX_VALUE).values())
+				postings.addTo(matches);
+			candidates = intersect(candidates, matches);
+		}
+		if (query.mimeType != null)
+			candidates = intersect(candidates, postings(mimeTypes, query.mimeType));
+		if (query.owner != null)
+			candidates = intersect(candidates, postings(owners, query.owner));
+		if (query.modifiedAfter != Long.MIN_VALUE || query.modifiedBefore != Long.MAX_VALUE)
+			candidates = intersect(candidates, modifiedTimes.range(timeKey(query.modifiedAfter), timeKey(query.modifiedBefore)));
+		if (query.minSize != Long.MIN_VALUE || query.maxSize != Long.MAX_VALUE)
+			candidates = intersect(candidates, sizes.range(sizeKey(query.minSize), sizeKey(query.maxSize)));
+
+		int folder = query.folder == null ? IdDictionary.NONE : ids.lookup(query.folder);
+		if (query.folder != null && folder == IdDictionary.NONE)
+			return new ArrayList<>();
+
+		List<FileRecord> results = new ArrayList<>();
+		if (candidates == null) {
+			for (FileRecord record : records)
+				if (record != null && matches(record, query, folder))
+					results.add(record);
+		}
+		else {
+			for (int handle = candidates.nextSetBit(0); handle >= 0; handle = candidates.nextSetBit(handle + 1))
+				if (handle < records.length && records[handle] != null && matches(records[handle], query, folder))
+					results.add(records[handle]);
+		}
+		results.sort(Comparator.comparingLong(FileRecord::getModifiedTime).reversed());
+		return results.size() > query.limit ? new ArrayList<>(results.subList(0, query.limit)) : results;
+	}
+
+	/**
+	 * Sends the query to the server.
+	 */
+	private List<FileRecord> searchServer(Query query) throws IOException {
+		List<FileRecord> results = new ArrayList<>();
+		// The server cannot filter the sizes: they are checked here, on the pages needed to reach the limit.
+		boolean sizeFiltered = query.minSize != Long.MIN_VALUE || query.maxSize != Long.MAX_VALUE;
+		// Sorted on the server like the index results, so the first matches are the most recent ones.
+		FileOperations.listRecords(query.toDriveQuery(), "modifiedTime desc", Math.min(query.limit, PAGE_SIZE),
+				() -> results.size() < query.limit, ids,
+				record -> {
+					if (results.size() < query.limit && (!sizeFiltered || matches(record, query, IdDictionary.NONE)))
+						results.add(record);
+				});
+		return results;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * A sorted list of handles.
+	 */
+	private static class Postings {
+
+		private int[] handles = new int[2];
+		private int size;
+
+		void add(int handle) {
+			int position = size;
+			// The handles are mostly added in increasing order.
+			if (size > 0 && handles[size - 1] >= handle) {
+				position = Arrays.binarySearch(handles, 0, size, handle);
+				if (position >= 0)
+					return;
+				position = -position - 1;
+			}
+			if (size == handles.length)
+				handles = Arrays.copyOf(handles, size * 2);
+			System.arraycopy(handles, position, handles, position + 1, size - position);
+			handles[position] = handle;
+			size++;
+		}
+
+		void remove(int handle) {
+			int position = Arrays.binarySearch(handles, 0, size, handle);
+			if (position < 0)
+				return;
+			System.arraycopy(handles, position + 1, handles, position, size - position - 1);
+			size--;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void addTo(BitSet set) {
+			for (int i = 0; i < size; i++)
+				set.set(handles[i]);
+		}
+	}
+
+	/**
+	 * Handles sorted by a key, for the range predicates. An entry packs the key in the high 34 bits and the handle in the low
+	 * 30 bits of a long, so that the entries are sorted as plain longs. The replaced entries are left in place and ignored,
+	 * since the candidates are checked against the record, until they are half of the entries.
+	 */
+	private static class SortedIndex {
+
+		private final static int HANDLE_BITS = 30;
+		private final static long MAX_KEY = (1L << (64 - HANDLE_BITS - 1)) - 1;
+
+		private long[] entries = new long[1024];
+		private int size;
+		private int sorted;
+		private int stale;
+
+		void add(long key, int handle) {
+			if (size == entries.length)
+				entries = Arrays.copyOf(entries, size * 2);
+			entries[size++] = key << HANDLE_BITS | handle;
+		}
+
+		void replaced() {
+			stale++;
+		}
+
+		boolean needsCompaction() {
+			return stale > 1024 && stale * 2 > size;
+		}
+
+		void clear() {
+			size = sorted = stale = 0;
+		}
+
+		/**
+		 * Gets the handles of the entries whose key is in [low, high].
+		 */
+		BitSet range(long low, long high) {
+			if (sorted < size) {
+				Arrays.sort(entries, 0, size);
+				sorted = size;
+			}
+			BitSet handles = new BitSet();
+			int from = Arrays.binarySearch(entries, 0, size, low << HANDLE_BITS);
+			for (int i = from < 0 ? -from - 1 : from; i < size && entries[i] >>> HANDLE_BITS <= high; i++)
+				handles.set((int) (entries[i] & ((1 << HANDLE_BITS) - 1)));
+			return handles;
+		}
+	}
+
+	private void clear() {
+		records = new FileRecord[1024];
+		count = 0;
+		words.clear();
+		mimeTypes.clear();
+		owners.clear();
+		modifiedTimes.clear();
+		sizes.clear();
+	}
+
+	private void index(FileRecord record) {
+		int handle = record.getId();
+		for (String word : tokenize(record.getName()))
+			words.computeIfAbsent(word, key -> new Postings()).add(handle);
+		if (record.getMimeType() != null)
+			mimeTypes.computeIfAbsent(record.getMimeType(), key -> new Postings()).add(handle);
+		if (record.getOwner() != null)
+			owners.computeIfAbsent(record.getOwner(), key -> new Postings()).add(handle);
+		if (record.getModifiedTime() != FileRecord.UNKNOWN)
+			modifiedTimes.add(timeKey(record.getModifiedTime()), handle);
+		if (record.getSize() != FileRecord.UNKNOWN)
+			sizes.add(sizeKey(record.getSize()), handle);
+	}
+
+	private void unindex(FileRecord record) {
+		int handle = record.getId();
+		for (String word : tokenize(record.getName()))
+			remove(words, word, handle);
+		if (record.getMimeType() != null)
+			remove(mimeTypes, record.getMimeType(), handle);
+		if (record.getOwner() != null)
+			remove(owners, record.getOwner(), handle);
+		modifiedTimes.replaced();
+		sizes.replaced();
+		if (modifiedTimes.needsCompaction() || sizes.needsCompaction())
+			compact();
+	}
+
+	// Rebuilds the sorted indexes without their stale entries.
+	private void compact() {
+		modifiedTimes.clear();
+		sizes.clear();
+		for (FileRecord record : records) {
+			if (record == null)
+				continue;
+			if (record.getModifiedTime() != FileRecord.UNKNOWN)
+				modifiedTimes.add(timeKey(record.getModifiedTime()), record.getId());
+			if (record.getSize() != FileRecord.UNKNOWN)
+				sizes.add(sizeKey(record.getSize()), record.getId());
+		}
+	}
+
+	private static void remove(Map<String, Postings> index, String key, int handle) {
+		Postings postings = index.get(key);
+		if (postings == null)
+			return;
+		postings.remove(handle);
+		if (postings.isEmpty())
+			index.remove(key);
+	}
+
+	private static BitSet postings(Map<String, Postings> index, String key) {
+		BitSet handles = new BitSet();
+		Postings postings = index.get(key);
+		if (postings != null)
+			postings.addTo(handles);
+		return handles;
+	}
+
+	private static BitSet intersect(BitSet candidates, BitSet matches) {
+		if (candidates == null)
+			return matches;
+		candidates.and(matches);
+		return candidates;
+	}
+
+	// Seconds: the candidates are checked against the exact time.
+	private static long timeKey(long time) {
+		return Math.max(0, Math.min(time / 1000, SortedIndex.MAX_KEY));
+	}
+
+	// Units of 256 bytes, up to 4 TB: the candidates are checked against the exact size.
+	private static long sizeKey(long size) {
+		return Math.max(0, Math.min(size >> 8, SortedIndex.MAX_KEY));
+	}
+
+	private boolean matches(FileRecord record, Query query, int folder) {
+		if (query.mimeType != null && !query.mimeType.equals(record.getMimeType()))
+			return false;
+		if (query.owner != null && !query.owner.equals(record.getOwner()))
+			return false;
+		if ((query.modifiedAfter != Long.MIN_VALUE || query.modifiedBefore != Long.MAX_VALUE)
+				&& (record.getModifiedTime() == FileRecord.UNKNOWN
+				|| record.getModifiedTime() < query.modifiedAfter || record.getModifiedTime() >= query.modifiedBefore))
+			return false;
+		if ((query.minSize != Long.MIN_VALUE || query.maxSize != Long.MAX_VALUE)
+				&& (record.getSize() == FileRecord.UNKNOWN || record.getSize() < query.minSize || record.getSize() > query.maxSize))
+			return false;
+		if (!query.words.isEmpty()) {
+			List<String> nameWords = tokenize(record.getName());
+			for (String word : query.words) {
+				boolean found = false;
+				for (String nameWord : nameWords)
+					found |= nameWord.startsWith(word);
+				if (!found)
+					return false;
+			}
+		}
+		return folder == IdDictionary.NONE || isUnder(record, folder, 0);
+	}
+
+	private boolean isUnder(FileRecord record, int folder, int depth) {
+		if (record.hasParent(folder))
+			return true;
+		// Guards against cycles.
+		if (depth > 64)
+			return false;
+		for (int parent : record.getParents())
+			if (parent < records.length && records[parent] != null && isUnder(records[parent], folder, depth + 1))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Splits a name into lower case words of letters and digits, such as [report, 2017, xlsx] for "Report-2017.xlsx".
+	 */
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<>();
+		if (text == null)
+			return tokens;
+		String lowerCase = text.toLowerCase(Locale.ROOT);
+		int start = -1;
+		for (int i = 0; i <= lowerCase.length(); i++) {
+			boolean wordChar = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+			if (wordChar && start < 0)
+				start = i;
+			else if (!wordChar && start >= 0) {
+				tokens.add(lowerCase.substring(start, i));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	private void save() throws IOException {
+		// The snapshot refers to the handles.
+		ids.force();
+		java.io.File tmpFile = new java.io.File(snapshotFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeUTF(pageToken);
+			out.writeLong(updatedTime);
+			out.writeInt(count);
+			for (FileRecord record : records)
+				if (record != null)
+					record.write(out);
+		}
+		Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void readSnapshot() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+			if (in.readInt() != SNAPSHOT_VERSION)
+				throw new IOException(String.format("%s: unknown version", snapshotFile));
+			String token = in.readUTF();
+			long time = in.readLong();
+			int records = in.readInt();
+			for (int i = 0; i < records; i++) {
+				FileRecord record = FileRecord.read(in);
+				if (record.getId() >= ids.size())
+					throw new IOException(String.format("%s does not match the ID dictionary", snapshotFile));
+				put(record);
+			}
+			pageToken = token;
+			updatedTime = time;
+		}
+	}
+
+}
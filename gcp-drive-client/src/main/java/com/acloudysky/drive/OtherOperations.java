@@ -1,11 +1,13 @@
 package com.acloudysky.drive;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import java.util.List;
 import java.util.Map;
 
 import com.acloudysky.utilities.Utility;
+import com.google.api.client.json.JsonGenerator;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.About;
@@ -74,22 +76,24 @@ public class OtherOperations {
 		// Get the Comments accessor (collection of methods).
 	    Comments comments = authenticatedClient.comments();
 	    
-	    // Get the Comments list data model by sending a request to the Drive.
-	    CommentList commentListAll = comments.list(fileID)
-    		.setFields("*")
-	        .execute();
-	    
-		// Clear buffer of previous content.
-		buffer.delete(0, buffer.length());
-		
-	    // Store header information into the buffer.
-		buffer.append(String.format("%n==== " + "Display all comments info for the file: %s whose MIME is: %s"  + " ==== %n", file.getName(), file.getMimeType()));	
-		buffer.append(Utility.newline);
-		// Read the response and buffer it. 
-		buffer.append(String.format("%s", commentListAll.toPrettyString()));
-		
-		// Display comments information.
-		System.out.println(buffer.toString());
+	    // Display header information.
+		System.out.println(String.format("%n==== " + "Display all comments info for the file: %s whose MIME is: %s"  + " ==== %n", file.getName(), file.getMimeType()));
+		
+	    // Stream the comments, one page at a time, and write each of them to the console as it is read
+	    // instead of buffering the whole response. The generator is not closed: it would close System.out.
+	    JsonGenerator generator = authenticatedClient.getJsonFactory().createJsonGenerator(System.out, StandardCharsets.UTF_8);
+	    generator.enablePrettyPrint();
+	    String pageToken = null;
+	    do {
+	    	Comments.List request = comments.list(fileID)
+	    		.setFields("*")
+	    		.setPageToken(pageToken);
+	    	pageToken = StreamingListParser.list(request, "comments", Comment.class, comment -> {
+	    		generator.serialize(comment);
+	    		generator.flush();
+	    		System.out.println();
+	    	});
+	    } while (pageToken != null);
 		
 		
 		// Clear buffer of previous content.
@@ -0,0 +1,384 @@
+package com.acloudysky.drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.Drive.Files.Get;
+import com.google.api.services.drive.model.File;
+
+/***
+ * Contains the methods which store many small files as a few pack objects, to avoid a files.create round trip per file.
+ * A pack is an uncompressed (STORED) zip archive, so it can also be opened with the usual tools. Next to each pack an index
+ * file, named after the pack with the <i>.index.json</i> suffix, records the offset and the size of each member in the archive:
+ * <pre>
+ * { "pack" : "PACKID", "members" : [ { "name" : "a.txt", "offset" : 36, "size" : 1024, "crc32" : 123456, "modifiedTime" : 1500000000000 } ] }
+ * </pre>
+ * The <i>appProperties</i> of the pack contain the ID of the index (<i>packIndex</i>) and the number of members (<i>packMembers</i>);
+ * the index does not fit in the appProperties themselves, which are limited to 124 bytes each.
+ * A single member is extracted with a Range request on its offsets, without downloading the whole pack.
+ * @author Michael
+ *
+ */
+public class PackOperations {
+
+	// The MIME type of the packs.
+	final static String PACK_MIME_TYPE = "application/zip";
+	// The suffix of the index file names.
+	final static String INDEX_SUFFIX = ".index.json";
+
+	private final static JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	// The indexes already read, keyed by pack ID; a pack is never modified once uploaded.
+	private final static Map<String, PackIndex> indexes = new ConcurrentHashMap<>();
+
+	/***
+	 * The index of a pack.
+	 */
+	public static class PackIndex extends GenericJson {
+
+		@Key("pack")
+		private String pack;
+
+		@Key("members")
+		private List<Member> members;
+
+		public String getPack() {
+			return pack;
+		}
+
+		public List<Member> getMembers() {
+			return members;
+		}
+
+		/**
+		 * Gets the member with the specified name; null if the pack does not contain it.
+		 */
+		public Member getMember(String name) {
+			for (Member member : members)
+				if (member.name.equals(name))
+					return member;
+			return null;
+		}
+	}
+
+	/***
+	 * A file stored in a pack.
+	 */
+	public static class Member extends GenericJson {
+
+		@Key("name")
+		private String name;
+
+		// Offset of the member data in the pack.
+		@Key("offset")
+		private Long offset;
+
+		@Key("size")
+		private Long size;
+
+		@Key("crc32")
+		private Long crc32;
+
+		@Key("modifiedTime")
+		private Long modifiedTime;
+
+		public String getName() {
+			return name;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getSize() {
+			return size;
+		}
+	}
+
+	/**
+	 * Initializes class global variables.
+	 * @param serviceClient The authenticated service
+	 * authorized to access Google Drive using its REST API.
+	 */
+	public static void initPackOperations(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Stores the local files in packs of the specified maximum size.
+	 * @param localFiles The local files; two files with the same name go in different packs.
+	 * @param parentId The ID of the folder where the packs and their indexes are created.
+	 * @param maxPackSize The maximum size of a pack, in bytes.
+	 * @param failures If not null, receives the local files of the packs which could not be created, with the error; the
+	 * other packs are created anyway. If null, the first pack which cannot be created stops the packing.
+	 * @return The indexes of the packs created, with the metadata of the pack files; the members are in the order of the local files.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static Map<File, PackIndex> pack(List<java.io.File> localFiles, String parentId, long maxPackSize,
+			Map<java.io.File, String> failures) throws IOException {
+
+		Map<File, PackIndex> packs = new LinkedHashMap<>();
+		String prefix = "pack-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+		List<java.io.File> group = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		long groupSize = 0;
+		// Numbered in order, whether they could be created or not.
+		int number = 0;
+		for (java.io.File localFile : localFiles) {
+			if (!group.isEmpty() && (groupSize + localFile.length() > maxPackSize || names.contains(localFile.getName()))) {
+				packGroup(group, parentId, String.format("%s-%d.zip", prefix, number++), packs, failures);
+				group.clear();
+				names.clear();
+				groupSize = 0;
+			}
+			group.add(localFile);
+			names.add(localFile.getName());
+			groupSize += localFile.length();
+		}
+		if (!group.isEmpty())
+			packGroup(group, parentId, String.format("%s-%d.zip", prefix, number), packs, failures);
+		return packs;
+	}
+
+	/**
+	 * Gets the index of the specified pack.
+	 * @param packId The ID of the pack.
+	 * @return The pack index.
+	 * @throws IOException An I/O error has been detected, or the file is not a pack.
+	 */
+	public static PackIndex readIndex(String packId) throws IOException {
+
+		PackIndex index = indexes.get(packId);
+		if (index != null)
+			return index;
+
+		File pack = DriveClientPool.route(authenticatedClient, packId).files().get(packId)
+				.setFields("id, name, appProperties")
+				.execute();
+		Map<String, String> properties = pack.getAppProperties();
+		if (properties == null || !properties.containsKey("packIndex"))
+			throw new IOException(String.format("%s is not a pack", pack.getName()));
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		DriveClientPool.route(authenticatedClient, packId).files().get(properties.get("packIndex")).executeMediaAndDownloadTo(content);
+		index = jsonFactory.fromString(content.toString("UTF-8"), PackIndex.class);
+		indexes.put(packId, index);
+		return index;
+	}
+
+	/**
+	 * Extracts a single member of the pack with a Range request; the rest of the pack is not downloaded.
+	 * @param packId The ID of the pack.
+	 * @param memberName The name of the member.
+	 * @param target The local target file.
+	 * @return The member.
+	 * @throws IOException An I/O error has been detected, the pack does not contain the member or its checksum does not match.
+	 */
+	public static Member extract(String packId, String memberName, java.io.File target) throws IOException {
+
+		Member member = readIndex(packId).getMember(memberName);
+		if (member == null)
+			throw new IOException(String.format("%s not found in the pack", memberName));
+
+		try (OutputStream outputStream = new FileOutputStream(target)) {
+			if (member.size > 0) {
+				Get request = DriveClientPool.route(authenticatedClient, packId).files().get(packId);
+				request.getRequestHeaders().setRange(
+						String.format("bytes=%d-%d", member.offset, member.offset + member.size - 1));
+				try (CheckedInputStream inputStream = new CheckedInputStream(
+						request.executeMedia().getContent(), new CRC32())) {
+					copy(inputStream, outputStream, member.size);
+					if (inputStream.getChecksum().getValue() != member.crc32)
+						throw new IOException(String.format("%s: checksum mismatch", memberName));
+				}
+			}
+		}
+		if (member.modifiedTime != null)
+			target.setLastModified(member.modifiedTime);
+		return member;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/**
+	 * Writes the files in a temporary zip archive, then uploads the archive and its index.
+	 * If the pack cannot be created, its files are added to the failures, or the error is thrown if there are none.
+	 */
+	private static void packGroup(List<java.io.File> group, String parentId, String name, Map<File, PackIndex> packs,
+			Map<java.io.File, String> failures) throws IOException {
+		try {
+			packGroup(group, parentId, name, packs);
+		}
+		catch (IOException e) {
+			if (failures == null)
+				throw e;
+			if (Utility.isDEBUG())
+				System.out.println(String.format("[PackOperations] %s not created: %s", name, e.getMessage()));
+			for (java.io.File localFile : group)
+				failures.put(localFile, e.getMessage());
+		}
+	}
+
+	private static void packGroup(List<java.io.File> group, String parentId, String name, Map<File, PackIndex> packs)
+			throws IOException {
+
+		String packId = FileOperations.nextFileID();
+		PackIndex index = new PackIndex();
+		index.setFactory(jsonFactory);
+		index.pack = packId;
+		index.members = new ArrayList<>();
+
+		java.io.File archive = java.io.File.createTempFile("pack", ".zip");
+		try {
+			try (CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(archive));
+					ZipOutputStream zip = new ZipOutputStream(counter)) {
+				zip.setMethod(ZipOutputStream.STORED);
+				for (java.io.File localFile : group) {
+					byte[] data = Files.readAllBytes(localFile.toPath());
+					CRC32 crc = new CRC32();
+					crc.update(data);
+
+					ZipEntry entry = new ZipEntry(localFile.getName());
+					entry.setSize(data.length);
+					entry.setCompressedSize(data.length);
+					entry.setCrc(crc.getValue());
+					entry.setTime(localFile.lastModified());
+					zip.putNextEntry(entry);
+					// The local header has been written: the data starts here.
+					zip.flush();
+					long offset = counter.count;
+					zip.write(data);
+					zip.closeEntry();
+
+					Member member = new Member();
+					member.setFactory(jsonFactory);
+					member.name = localFile.getName();
+					member.offset = offset;
+					member.size = (long) data.length;
+					member.crc32 = crc.getValue();
+					member.modifiedTime = localFile.lastModified();
+					index.members.add(member);
+				}
+			}
+
+			// The index is created first, so that a pack is never visible without its index.
+			String indexId = FileOperations.nextFileID();
+			File indexMetadata = new File();
+			indexMetadata.setId(indexId);
+			indexMetadata.setName(name + INDEX_SUFFIX);
+			indexMetadata.setParents(Collections.singletonList(parentId));
+			indexMetadata.setAppProperties(Collections.singletonMap("packOf", packId));
+			Drive.Files.Create createIndex = DriveClientPool.route(authenticatedClient, indexId).files().create(indexMetadata,
+					new ByteArrayContent("application/json", index.toString().getBytes("UTF-8")))
+					.setFields("id");
+			createIndex.getMediaHttpUploader().setDirectUploadEnabled(true);
+			createIndex.execute();
+
+			File packMetadata = new File();
+			packMetadata.setId(packId);
+			packMetadata.setName(name);
+			packMetadata.setParents(Collections.singletonList(parentId));
+			Map<String, String> packProperties = new HashMap<>();
+			packProperties.put("packIndex", indexId);
+			packProperties.put("packMembers", String.valueOf(group.size()));
+			packMetadata.setAppProperties(packProperties);
+
+			TransferScheduler scheduler = FileOperations.getTransferScheduler();
+			Drive.Files.Create createPack = DriveClientPool.route(authenticatedClient, packId).files().create(packMetadata,
+					scheduler.throttle(new FileContent(PACK_MIME_TYPE, archive), scheduler.open(name, 1)))
+					.setFields("id, name, parents, size, md5Checksum, modifiedTime, mimeType, appProperties");
+			createPack.getMediaHttpUploader().setDirectUploadEnabled(true);
+			File pack;
+			try {
+				pack = createPack.execute();
+			}
+			catch (IOException e) {
+				// Do not leave the index of a pack which does not exist.
+				try {
+					DriveClientPool.route(authenticatedClient, indexId).files().delete(indexId).execute();
+				}
+				catch (IOException deleteError) {
+					e.addSuppressed(deleteError);
+				}
+				throw e;
+			}
+
+			indexes.put(packId, index);
+			packs.put(pack, index);
+		}
+		finally {
+			archive.delete();
+		}
+	}
+
+	private static void copy(InputStream inputStream, OutputStream outputStream, long length) throws IOException {
+		byte[] buffer = new byte[8192];
+		long remaining = length;
+		while (remaining > 0) {
+			int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0)
+				throw new IOException("Unexpected end of the pack");
+			outputStream.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	/***
+	 * Counts the bytes written to the pack, to know the offset of each member.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			count += length;
+		}
+	}
+
+}
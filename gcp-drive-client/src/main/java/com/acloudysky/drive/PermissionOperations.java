@@ -0,0 +1,376 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Permission;
+
+/***
+ * Contains the methods which apply a set of permissions to a folder and to everything under it, such as to share a project folder
+ * with a new team.
+ * The permissions of each file are read by the listing of its folder, compared with the set, and only the differences are sent:
+ * a missing permission is created, a permission with a different role is updated and, when pruning, a permission not in the set
+ * is deleted. The calls are grouped into batch requests of up to 100 calls by the {@link BatchExecutor}. Applying a set already
+ * applied costs only the listings.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>No notification email is sent to the users and groups added.</li>
+ *  <li>The permissions are identified by their type and their email address or domain; the owner permissions are never
+ *  changed nor deleted, and the set cannot contain any.</li>
+ *  <li>Sharing a folder makes the Drive propagate the permission to its content in the background. The grants of a folder are
+ *  applied before its content is listed, and a file is given a permission only when it cannot inherit it from its folder.</li>
+ *  <li>The files whose permissions the user cannot read, because the user cannot share them, are skipped.</li>
+ * </ul>
+ * For more information see <a href="https://developers.google.com/drive/v3/web/manage-sharing" target="_blank">Share Files, Folders and Drives</a>.
+ * @author Michael
+ *
+ */
+public class PermissionOperations {
+
+	private final static int PAGE_SIZE = 1000;
+	private final static String FILE_FIELDS = "id, name, mimeType, permissions(id, type, role, emailAddress, domain)";
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	/***
+	 * The outcome of a sharing.
+	 */
+	public static class Result extends GenericJson {
+
+		@Key("files")
+		private int files;
+
+		// Files whose permissions already matched the set.
+		@Key("unchanged")
+		private int unchanged;
+
+		// Files whose permissions cannot be read.
+		@Key("skipped")
+		private int skipped;
+
+		@Key("created")
+		private int created;
+
+		@Key("updated")
+		private int updated;
+
+		@Key("deleted")
+		private int deleted;
+
+		@Key("failed")
+		private int failed;
+
+		public int getFailed() {
+			return failed;
+		}
+	}
+
+	/**
+	 * Initializes the service client used to share the files.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initPermissionOperations(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Builds a permission of a set.
+	 * @param type The grantee type: user, group, domain or anyone.
+	 * @param role The role: reader, commenter, writer or organizer.
+	 * @param address The email address of a user or group, the domain name of a domain; null for anyone.
+	 * @return The permission.
+	 */
+	public static Permission permission(String type, String role, String address) {
+
+		if ("owner".equals(role))
+			throw new IllegalArgumentException("The ownership cannot be transferred by a permission set");
+		Permission permission = new Permission().setType(type).setRole(role);
+		switch (type) {
+			case "user":
+			case "group":
+				permission.setEmailAddress(address);
+				break;
+			case "domain":
+				permission.setDomain(address);
+				break;
+			case "anyone":
+				break;
+			default:
+				throw new IllegalArgumentException(String.format("Invalid permission type: %s", type));
+		}
+		return permission;
+	}
+
+	/**
+	 * Parses a permission written as TYPE:ADDRESS=ROLE, such as user:alice@example.com=writer, domain:example.com=reader or
+	 * anyone=reader.
+	 * @param spec The permission.
+	 * @return The permission.
+	 */
+	public static Permission parse(String spec) {
+
+		int equals = spec.lastIndexOf('=');
+		if (equals < 0)
+			throw new IllegalArgumentException(String.format("Missing role: %s", spec));
+		String grantee = spec.substring(0, equals);
+		int colon = grantee.indexOf(':');
+		return colon < 0
+				? permission(grantee, spec.substring(equals + 1), null)
+				: permission(grantee.substring(0, colon), spec.substring(equals + 1), grantee.substring(colon + 1));
+	}
+
+	/**
+	 * Applies the permission set to the specified folder, its subfolders and their files.
+	 * @param folderId The ID of the folder.
+	 * @param permissions The permission set.
+	 * @param prune True to delete the permissions not in the set, except the owner ones; false to only add and update.
+	 * @param parallelism The number of folders listed and batches sent at the same time.
+	 * @return The outcome of the sharing; the calls which failed are counted, and written to the standard error.
+	 * @throws IOException A folder could not be listed, or a batch could not be sent.
+	 */
+	public static Result share(String folderId, List<Permission> permissions, boolean prune, int parallelism)
+			throws IOException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+		Sharing sharing;
+		try (BatchExecutor batches = new BatchExecutor(authenticatedClient, parallelism)) {
+			sharing = new Sharing(permissions, prune, batches);
+
+			// The grants of each level are applied before the next level is listed, so that the content of a folder
+			// can be compared with the permissions it inherits from the folder.
+			Map<String, FolderState> level = new HashMap<>();
+			level.put(folderId, sharing.apply(authenticatedClient.files().get(folderId).setFields(FILE_FIELDS).execute(),
+					new FolderState()));
+			batches.flush();
+			while (!level.isEmpty()) {
+				Map<String, FolderState> next = new ConcurrentHashMap<>();
+				List<Future<?>> listings = new ArrayList<>();
+				for (Map.Entry<String, FolderState> folder : level.entrySet())
+					listings.add(executor.submit(() -> {
+						list(folder.getKey(), file -> {
+							FolderState state = sharing.apply(file, folder.getValue());
+							if (FolderOperations.FOLDER_MIME_TYPE.equals(file.getMimeType()))
+								next.put(file.getId(), state);
+						});
+						return null;
+					}));
+				for (Future<?> listing : listings)
+					await(listing);
+				batches.flush();
+				level = next;
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		Result result = sharing.result();
+		if (Utility.isDEBUG())
+			System.out.println(String.format("Sharing of %s: %s", folderId, result));
+		return result;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	/***
+	 * The permissions of a folder once its calls are applied, which its content inherits.
+	 */
+	private static class FolderState {
+
+		// The roles, keyed by grantee; a grantee is removed when its call fails.
+		private final Map<String, String> roles = new ConcurrentHashMap<>();
+		// The grantees the folder had before the sharing.
+		private final Set<String> previous = new HashSet<>();
+	}
+
+	/***
+	 * Compares the permissions of each file with the set and queues the calls for the differences.
+	 */
+	private static class Sharing {
+
+		private final Map<String, Permission> wanted = new LinkedHashMap<>();
+		private final boolean prune;
+		private final BatchExecutor batches;
+
+		private final AtomicInteger files = new AtomicInteger();
+		private final AtomicInteger unchanged = new AtomicInteger();
+		private final AtomicInteger skipped = new AtomicInteger();
+		private final AtomicInteger created = new AtomicInteger();
+		private final AtomicInteger updated = new AtomicInteger();
+		private final AtomicInteger deleted = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+
+		private Sharing(List<Permission> permissions, boolean prune, BatchExecutor batches) {
+			for (Permission permission : permissions)
+				wanted.put(key(permission), permission);
+			this.prune = prune;
+			this.batches = batches;
+		}
+
+		/**
+		 * Queues the calls which give the file the permission set. A grantee the folder of the file has, or had before the
+		 * sharing, is inherited: the Drive propagates the changes of the folder to its content, so the file only gets a call
+		 * when it has no such grantee to inherit.
+		 * @param file The file, with its permissions.
+		 * @param folder The permissions of its folder; empty for the top folder.
+		 * @return The permissions of the file once the calls are applied, used when the file is a folder.
+		 */
+		FolderState apply(File file, FolderState folder) throws IOException {
+
+			files.incrementAndGet();
+			FolderState state = new FolderState();
+			if (file.getPermissions() == null) {
+				// The content of the folder is compared with what the folder inherits.
+				skipped.incrementAndGet();
+				state.roles.putAll(folder.roles);
+				state.previous.addAll(folder.previous);
+				return state;
+			}
+			Map<String, Permission> existing = new HashMap<>();
+			for (Permission permission : file.getPermissions())
+				existing.put(key(permission), permission);
+			state.previous.addAll(existing.keySet());
+
+			int calls = 0;
+			for (Map.Entry<String, Permission> entry : wanted.entrySet()) {
+				String key = entry.getKey();
+				Permission permission = entry.getValue();
+				Permission current = existing.remove(key);
+				state.roles.put(key, permission.getRole());
+				if (current == null) {
+					if (folder.roles.containsKey(key))
+						continue;
+					Drive.Permissions.Create request = authenticatedClient.permissions().create(file.getId(), permission)
+							.setFields("id");
+					// The notification can only be set for the users and groups.
+					if (permission.getEmailAddress() != null)
+						request.setSendNotificationEmail(false);
+					batches.queue(request, callback(file, "create", created, failed, state, key));
+					calls++;
+				}
+				else if ("owner".equals(current.getRole()))
+					state.roles.put(key, current.getRole());
+				else if (!permission.getRole().equals(current.getRole())) {
+					// The role shown may be the one inherited from the folder, which is being changed.
+					if (folder.previous.contains(key) && folder.roles.containsKey(key))
+						continue;
+					batches.queue(authenticatedClient.permissions()
+							.update(file.getId(), current.getId(), new Permission().setRole(permission.getRole()))
+							.setFields("id"), callback(file, "update", updated, failed, state, key));
+					calls++;
+				}
+			}
+			for (Map.Entry<String, Permission> entry : existing.entrySet()) {
+				Permission permission = entry.getValue();
+				// Kept, or removed from the content with the folder one.
+				if (!prune || "owner".equals(permission.getRole()) || folder.previous.contains(entry.getKey())) {
+					state.roles.put(entry.getKey(), permission.getRole());
+					continue;
+				}
+				batches.queue(authenticatedClient.permissions().delete(file.getId(), permission.getId()),
+						callback(file, "delete", deleted, failed, null, null));
+				calls++;
+			}
+			if (calls == 0)
+				unchanged.incrementAndGet();
+			return state;
+		}
+
+		Result result() {
+			Result result = new Result();
+			result.files = files.get();
+			result.unchanged = unchanged.get();
+			result.skipped = skipped.get();
+			result.created = created.get();
+			result.updated = updated.get();
+			result.deleted = deleted.get();
+			result.failed = failed.get();
+			result.setFactory(JacksonFactory.getDefaultInstance());
+			return result;
+		}
+	}
+
+	/**
+	 * Lists the files and folders of the folder, with their permissions.
+	 */
+	private static void list(String folderId, FileOperations.FileVisitor visitor) throws IOException {
+		String pageToken = null;
+		do {
+			Drive.Files.List request = authenticatedClient.files().list()
+					.setQ(DriveQuery.inParents(folderId).and(DriveQuery.trashed(false)).toString())
+					.setPageSize(PAGE_SIZE)
+					.setSpaces("drive")
+					.setFields(String.format("nextPageToken, files(%s)", FILE_FIELDS))
+					.setPageToken(pageToken);
+			pageToken = StreamingListParser.list(request, "files", File.class, visitor::visit);
+		} while (pageToken != null);
+	}
+
+	// Identifies the grantee of a permission; the email addresses and domains are case insensitive.
+	private static String key(Permission permission) {
+		String address = permission.getEmailAddress() != null ? permission.getEmailAddress() : permission.getDomain();
+		return permission.getType() + ":" + (address == null ? "" : address.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Counts the outcome of a call; when a grant fails, the grantee is removed from the permissions the content of the
+	 * folder inherits.
+	 */
+	private static <T> JsonBatchCallback<T> callback(File file, String call, AtomicInteger done, AtomicInteger failed,
+			FolderState state, String key) {
+		return new JsonBatchCallback<T>() {
+			@Override
+			public void onSuccess(T response, HttpHeaders responseHeaders) {
+				done.incrementAndGet();
+			}
+
+			@Override
+			public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+				failed.incrementAndGet();
+				if (state != null)
+					state.roles.remove(key);
+				System.err.println(String.format("Error occurred: %s of %s: %s", call, file.getName(), error.getMessage()));
+			}
+		};
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Sharing interrupted");
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,396 @@
+package com.acloudysky.drive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/***
+ * Reads the content of a Drive file through a read-only {@link SeekableByteChannel}, fetching only the bytes read with Range
+ * requests, so that a caller which needs a few parts of a large file, such as the header of an image or the central directory
+ * of a zip archive, does not download the whole file.
+ * The content is fetched in blocks of 64 KB, kept in a small LRU cache of 1 MB by default. The reads at the position where the
+ * previous read ended are sequential: each Range request of a sequential read fetches twice as many blocks as the previous
+ * one, up to 1 MB, so a channel read from start to end needs few requests. A read elsewhere goes back to a single block.
+ * For example, to read the zip central directory at the end of a pack:
+ * <pre>
+ * try (RemoteFileChannel channel = RemoteFileChannel.open(packId)) {
+ *     channel.position(channel.size() - 22);
+ *     channel.read(endOfCentralDirectory);
+ * }
+ * </pre>
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The Google formats have no content to read: they must be exported, see {@link ExportOperations}.</li>
+ *  <li>The blocks are fetched from the head revision when the channel was opened, so they all match {@link #getMd5Checksum()}
+ *  even if the file changes while the channel is open. Once the Drive purges that revision, the reads fail.</li>
+ *  <li>The Drive may refuse the revisions to a viewer without the edit rights: the blocks are then fetched from the file,
+ *  and kept only if its head revision is still the one of the channel; otherwise the read fails with a
+ *  {@link RevisionChangedException}.</li>
+ *  <li>The methods are synchronized: the channel can be shared, but the reads are serialized.</li>
+ *  <li>A channel opened by a {@link ContentCache} looks for the blocks in the cache before fetching them, and stores the
+ *  blocks it fetches into it.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class RemoteFileChannel implements SeekableByteChannel {
+
+	final static int BLOCK_SIZE = 64 * 1024;
+	// The largest read-ahead, in blocks.
+	private final static int MAX_READ_AHEAD = 16;
+	// The default capacity of the cache, in blocks.
+	private final static int DEFAULT_CACHED_BLOCKS = 16;
+	private final static int PARTIAL_CONTENT = 206;
+	private final static int FORBIDDEN = 403;
+	private final static int NOT_FOUND = 404;
+
+	/***
+	 * Signals that the file changed since the channel was opened, so its blocks cannot be read any longer.
+	 */
+	public static class RevisionChangedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		RevisionChangedException(String message) {
+			super(message);
+		}
+	}
+
+	// The authenticated service client authorized to use the Google Drive REST API.
+	private static Drive authenticatedClient;
+
+	private final String fileID;
+	private final long size;
+	private final String md5Checksum;
+	// The revision the blocks are fetched from; null if the Drive reports none.
+	private final String headRevisionId;
+	// Set once the Drive refuses the revision: the blocks are then fetched from the file.
+	private boolean revisionRefused;
+	private final Map<Long, byte[]> blocks;
+	// The shared cache; null if none.
+	private final ContentCache cache;
+	private long position;
+	// Where the last read ended, to detect the sequential reads.
+	private long lastReadEnd = -1;
+	// The blocks fetched by the next request of a sequential read.
+	private int readAhead = 1;
+	private boolean open = true;
+
+	private long requests;
+	private long bytesFetched;
+
+	/**
+	 * Initializes the service client used to read the files.
+	 * @param serviceClient The authenticated service authorized to access Google Drive using its REST API.
+	 */
+	public static void initRemoteFileChannel(Drive serviceClient) {
+		authenticatedClient = serviceClient;
+	}
+
+	/**
+	 * Opens a channel on the content of the specified file, with the default cache.
+	 * @param fileID The ID of the file.
+	 * @return The channel, at position 0.
+	 * @throws IOException An I/O error has been detected, or the file has no content, such as a Google document.
+	 */
+	public static RemoteFileChannel open(String fileID) throws IOException {
+		return open(fileID, DEFAULT_CACHED_BLOCKS);
+	}
+
+	/**
+	 * Opens a channel on the content of the specified file.
+	 * @param fileID The ID of the file.
+	 * @param cachedBlocks The number of blocks of 64 KB kept in the cache.
+	 * @return The channel, at position 0.
+	 * @throws IOException An I/O error has been detected, or the file has no content, such as a Google document.
+	 */
+	public static RemoteFileChannel open(String fileID, int cachedBlocks) throws IOException {
+		File file = DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+				.setFields("id, name, mimeType, size, md5Checksum, headRevisionId")
+				.execute();
+		if (file.getSize() == null)
+			throw new IOException(String.format("%s has no content to read: %s", file.getName(), file.getMimeType()));
+		return new RemoteFileChannel(fileID, file.getSize(), file.getMd5Checksum(), file.getHeadRevisionId(), cachedBlocks, null);
+	}
+
+	/**
+	 * Opens a channel on the content of the validated file, which reads the blocks through the shared cache.
+	 * @param file The file, with its ID, size, MD5 checksum and head revision.
+	 * @param cache The shared cache.
+	 * @throws IOException The file has no content, such as a Google document.
+	 */
+	static RemoteFileChannel open(File file, ContentCache cache) throws IOException {
+		if (file.getSize() == null)
+			throw new IOException(String.format("%s has no content to read: %s", file.getName(), file.getMimeType()));
+		return new RemoteFileChannel(file.getId(), file.getSize(), file.getMd5Checksum(), file.getHeadRevisionId(),
+				DEFAULT_CACHED_BLOCKS, cache);
+	}
+
+	private RemoteFileChannel(String fileID, long size, String md5Checksum, String headRevisionId, int cachedBlocks,
+			ContentCache cache) {
+		this.fileID = fileID;
+		this.size = size;
+		this.md5Checksum = md5Checksum;
+		this.headRevisionId = headRevisionId;
+		this.cache = cache;
+		int capacity = Math.max(MAX_READ_AHEAD, cachedBlocks);
+		this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Reads bytes from the current position into the buffer.
+	 * @param dst The buffer.
+	 * @return The number of bytes read; -1 at the end of the file.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+
+		ensureOpen();
+		if (position >= size)
+			return -1;
+
+		// Grow the read-ahead while the reads are sequential.
+		if (position == lastReadEnd)
+			readAhead = Math.min(MAX_READ_AHEAD, readAhead * 2);
+		else
+			readAhead = 1;
+
+		int read = 0;
+		while (dst.hasRemaining() && position < size) {
+			long index = position / BLOCK_SIZE;
+			byte[] block = blocks.get(index);
+			if (block == null && cache != null && (block = cache.getBlock(fileID, md5Checksum, index, blockLength(index))) != null)
+				blocks.put(index, block);
+			if (block == null)
+				block = fetch(index, Math.max(readAhead, blocksFor(dst.remaining())));
+			int offset = (int) (position - index * BLOCK_SIZE);
+			int length = Math.min(dst.remaining(), block.length - offset);
+			dst.put(block, offset, length);
+			position += length;
+			read += length;
+		}
+		lastReadEnd = position;
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	/**
+	 * Moves the position; nothing is fetched until the next read.
+	 * @param newPosition The new position; past the end of the file, the reads return -1.
+	 * @return This channel.
+	 */
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position");
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Closes the channel and releases its cache.
+	 */
+	@Override
+	public synchronized void close() {
+		open = false;
+		blocks.clear();
+	}
+
+	/**
+	 * Gets the ID of the file.
+	 */
+	public String getFileID() {
+		return fileID;
+	}
+
+	/**
+	 * Gets the MD5 checksum of the file when the channel was opened.
+	 */
+	public String getMd5Checksum() {
+		return md5Checksum;
+	}
+
+	/**
+	 * Gets the ID of the revision the channel reads; null if the Drive reports none.
+	 */
+	public String getHeadRevisionId() {
+		return headRevisionId;
+	}
+
+	/**
+	 * Gets the number of Range requests sent.
+	 */
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * Gets the number of bytes fetched, including the ones read ahead.
+	 */
+	public synchronized long getBytesFetched() {
+		return bytesFetched;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open)
+			throw new ClosedChannelException();
+	}
+
+	// The blocks needed to fill a buffer; a large read is fetched in one request rather than block by block.
+	private static int blocksFor(int bytes) {
+		return Math.max(1, Math.min(MAX_READ_AHEAD, (bytes + BLOCK_SIZE - 1) / BLOCK_SIZE));
+	}
+
+	/**
+	 * Fetches the specified block and up to count - 1 following ones with a single Range request, stopping at the first
+	 * block already cached, locally or in the shared cache, and at the end of the file.
+	 * @return The first block.
+	 */
+	private byte[] fetch(long index, int count) throws IOException {
+
+		long lastBlock = (size - 1) / BLOCK_SIZE;
+		int fetched = 1;
+		while (fetched < count && index + fetched <= lastBlock && !blocks.containsKey(index + fetched)
+				&& (cache == null || !cache.containsBlock(fileID, md5Checksum, index + fetched)))
+			fetched++;
+		long start = index * BLOCK_SIZE;
+		long end = Math.min(size, (index + fetched) * BLOCK_SIZE);
+
+		String range = String.format("bytes=%d-%d", start, end - 1);
+		HttpResponse response = null;
+		if (headRevisionId != null && !revisionRefused) {
+			Drive.Revisions.Get request = DriveClientPool.route(authenticatedClient, fileID).revisions().get(fileID, headRevisionId);
+			request.getRequestHeaders().setRange(range);
+			try {
+				response = request.executeMedia();
+			}
+			catch (HttpResponseException e) {
+				if (e.getStatusCode() != FORBIDDEN && e.getStatusCode() != NOT_FOUND)
+					throw e;
+				if (Utility.isDEBUG())
+					System.out.println(String.format("[RemoteFileChannel] %s: revision refused, reading the file", fileID));
+				revisionRefused = true;
+			}
+			requests++;
+		}
+		if (response == null) {
+			Drive.Files.Get request = DriveClientPool.route(authenticatedClient, fileID).files().get(fileID);
+			request.getRequestHeaders().setRange(range);
+			response = request.executeMedia();
+			requests++;
+		}
+		byte[][] data = new byte[fetched][];
+		try (InputStream in = response.getContent()) {
+			// A server ignoring the range sends the whole content instead of 206 Partial Content.
+			if (response.getStatusCode() != PARTIAL_CONTENT)
+				skipFully(in, start);
+			for (int i = 0; i < fetched; i++) {
+				data[i] = new byte[blockLength(index + i)];
+				readFully(in, data[i]);
+			}
+		}
+		if (revisionRefused)
+			checkRevision();
+		for (int i = 0; i < fetched; i++) {
+			blocks.put(index + i, data[i]);
+			if (cache != null)
+				cache.putBlock(fileID, md5Checksum, index + i, data[i]);
+		}
+		bytesFetched += end - start;
+		if (Utility.isDEBUG())
+			System.out.println(String.format("[RemoteFileChannel] %s: bytes %d-%d", fileID, start, end - 1));
+		return data[0];
+	}
+
+	/**
+	 * Checks, after reading blocks from the file rather than from the revision, that the head revision is still the one
+	 * of the channel. The revisions only move forward, so the blocks read before the check belong to it.
+	 */
+	private void checkRevision() throws IOException {
+		File current = DriveClientPool.route(authenticatedClient, fileID).files().get(fileID)
+				.setFields("md5Checksum, headRevisionId")
+				.execute();
+		if (!headRevisionId.equals(current.getHeadRevisionId()))
+			throw new RevisionChangedException(String.format("%s changed since the channel was opened: revision %s, now %s",
+					fileID, headRevisionId, current.getHeadRevisionId()));
+	}
+
+	// The length of a block; the last one is shorter.
+	private int blockLength(long index) {
+		return (int) (Math.min(size, (index + 1) * BLOCK_SIZE) - index * BLOCK_SIZE);
+	}
+
+	private static void readFully(InputStream in, byte[] data) throws IOException {
+		int offset = 0;
+		while (offset < data.length) {
+			int read = in.read(data, offset, data.length - offset);
+			if (read < 0)
+				throw new EOFException("The content is shorter than the file size");
+			offset += read;
+		}
+	}
+
+	private static void skipFully(InputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0) {
+				if (in.read() < 0)
+					throw new EOFException("The content is shorter than the file size");
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+}
@@ -38,6 +38,9 @@ public class SimpleUI extends UserInterface {
 	// The default settings object.
 	DriveDefaultSettings defaultSettings=null;
 	
+	// Standard input, opened once and shared by all the prompts.
+	private static final BufferedReader stdin = new BufferedReader(new java.io.InputStreamReader(System.in));
+	
 	/**
 	 * Instantiates SimpleUI class along with its superclass.
 	 * Initializes the defaultSettings object. Displays the user's menu. 
@@ -65,9 +68,6 @@ public class SimpleUI extends UserInterface {
 	 */
 	private static String readUserInput(String msg) {
 		
-		// Open standard input.
-		BufferedReader br = new BufferedReader(new java.io.InputStreamReader(System.in));
-
 		String selection = null;
 		
 		// Read the selection from the command-line.
@@ -77,7 +77,7 @@ public class SimpleUI extends UserInterface {
 				System.out.print("\n>>> ");
 			else
 				System.out.print("\n" + msg);
-			selection = br.readLine();
+			selection = stdin.readLine();
 		} catch (IOException e) {
 			System.out.println("IO error trying to read your input!");
 			System.out.println(String.format("%s", e.getMessage()));
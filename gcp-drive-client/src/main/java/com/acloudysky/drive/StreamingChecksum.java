@@ -0,0 +1,169 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.json.GenericJson;
+
+/***
+ * Computes the checksums of a transfer while its bytes stream through, so that the content can be verified against the
+ * <i>md5Checksum</i> of the Drive file without being read again.
+ * The streams of an upload or a download are wrapped, like the ones of the {@link TransferScheduler}; the MD5 checksum is always
+ * computed, the SHA-256 one only if requested, since the Drive does not return it and it is only useful to the callers which
+ * record it.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The checksums are reset each time the wrapped upload content is read again, such as when the request is retried,
+ * 	so they are always the ones of the last attempt.</li>
+ *  <li>The Google formats, and the exported files, have no <i>md5Checksum</i>; their content cannot be verified.</li>
+ *  <li>A checksum is not thread safe: use one per transfer.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class StreamingChecksum {
+
+	// The name of the field where the SHA-256 checksum is recorded in the file metadata.
+	final static String SHA256_FIELD = "sha256Checksum";
+
+	private final MessageDigest md5;
+	// Null unless the SHA-256 checksum is requested.
+	private final MessageDigest sha256;
+	// The checksums of the bytes transferred, computed when first read.
+	private String md5Checksum;
+	private String sha256Checksum;
+
+	/**
+	 * Creates the checksum of a transfer.
+	 * @param withSha256 True to compute the SHA-256 checksum too.
+	 */
+	public StreamingChecksum(boolean withSha256) {
+		this.md5 = digest("MD5");
+		this.sha256 = withSha256 ? digest("SHA-256") : null;
+	}
+
+	/**
+	 * Wraps the stream read by an upload.
+	 * @param in The stream of the local source.
+	 * @return The stream which computes the checksums of the bytes read.
+	 */
+	public InputStream wrap(InputStream in) {
+		InputStream digested = new DigestInputStream(in, md5);
+		return sha256 == null ? digested : new DigestInputStream(digested, sha256);
+	}
+
+	/**
+	 * Wraps the stream written by a download.
+	 * @param out The stream of the local target.
+	 * @return The stream which computes the checksums of the bytes written.
+	 */
+	public OutputStream wrap(OutputStream out) {
+		OutputStream digested = new DigestOutputStream(out, md5);
+		return sha256 == null ? digested : new DigestOutputStream(digested, sha256);
+	}
+
+	/**
+	 * Wraps the content of an upload; the checksums are reset each time the content is read.
+	 * @param content The content to upload.
+	 * @return The content which computes the checksums of the bytes uploaded.
+	 */
+	public AbstractInputStreamContent wrap(AbstractInputStreamContent content) {
+		return new AbstractInputStreamContent(content.getType()) {
+
+			@Override
+			public InputStream getInputStream() throws IOException {
+				reset();
+				return wrap(content.getInputStream());
+			}
+
+			@Override
+			public long getLength() throws IOException {
+				return content.getLength();
+			}
+
+			@Override
+			public boolean retrySupported() {
+				return content.retrySupported();
+			}
+		};
+	}
+
+	/**
+	 * Forgets the bytes transferred, to start a new attempt.
+	 */
+	public void reset() {
+		md5.reset();
+		if (sha256 != null)
+			sha256.reset();
+		md5Checksum = null;
+		sha256Checksum = null;
+	}
+
+	/**
+	 * Gets the MD5 checksum of the bytes transferred, as a hex string.
+	 * The transfer must be complete.
+	 */
+	public String getMd5Checksum() {
+		if (md5Checksum == null)
+			md5Checksum = hex(md5.digest());
+		return md5Checksum;
+	}
+
+	/**
+	 * Gets the SHA-256 checksum of the bytes transferred, as a hex string; null if it is not computed.
+	 * The transfer must be complete.
+	 */
+	public String getSha256Checksum() {
+		if (sha256Checksum == null && sha256 != null)
+			sha256Checksum = hex(sha256.digest());
+		return sha256Checksum;
+	}
+
+	/**
+	 * Checks the bytes transferred against the checksum of the Drive file.
+	 * @param expectedMd5 The <i>md5Checksum</i> of the Drive file; null if it has none.
+	 * @return True if the checksums match, or if there is nothing to compare.
+	 */
+	public boolean matches(String expectedMd5) {
+		return expectedMd5 == null || expectedMd5.equalsIgnoreCase(getMd5Checksum());
+	}
+
+	/**
+	 * Records the SHA-256 checksum, if computed, in the metadata of the file transferred; it is then returned by
+	 * {@code file.get("sha256Checksum")}.
+	 * @param file The metadata of the file.
+	 * @return The same metadata.
+	 */
+	public <T extends GenericJson> T record(T file) {
+		if (getSha256Checksum() != null)
+			file.set(SHA256_FIELD, sha256Checksum);
+		return file;
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+}
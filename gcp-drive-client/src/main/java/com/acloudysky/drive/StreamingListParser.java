@@ -0,0 +1,146 @@
+package com.acloudysky.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+
+/***
+ * Parses the pages returned by the list methods, such as files.list and comments.list, one item at a time.
+ * The usual <i>execute()</i> builds the whole page, up to 1000 items, as a FileList or a CommentList before the caller sees the
+ * first item. This class reads the response from the Jackson token stream instead: each item of the array is parsed into its
+ * model class and passed to the visitor, then dropped, so only one item at a time is reachable. The other fields of the page
+ * are skipped, except <i>nextPageToken</i>.
+ * @author Michael
+ *
+ */
+public class StreamingListParser {
+
+	/**
+	 * Receives the items of a page one at a time.
+	 * @author Michael
+	 *
+	 * @param <T> The item model class, such as File or Comment.
+	 */
+	public interface ItemVisitor<T> {
+		/**
+		 * Processes the specified item.
+		 * @param item The item.
+		 * @throws IOException An I/O error has been detected.
+		 */
+		void visit(T item) throws IOException;
+	}
+
+	/**
+	 * Reads an item from the token stream, for the callers which build their own representation of the items instead of
+	 * the model class, such as {@link FileRecord#read(JsonParser, IdDictionary)}.
+	 * @author Michael
+	 *
+	 * @param <T> The item class.
+	 */
+	public interface ItemReader<T> {
+		/**
+		 * Reads the item the parser is on.
+		 * @param parser The parser, on the START_OBJECT token of the item; it must be left on the END_OBJECT token.
+		 * @return The item.
+		 * @throws IOException An I/O error has been detected.
+		 */
+		T read(JsonParser parser) throws IOException;
+	}
+
+	/**
+	 * Sends the list request and streams the items of the page to the visitor.
+	 * @param request The list request, such as files().list().
+	 * @param arrayField The name of the array holding the items, such as <i>files</i> or <i>comments</i>.
+	 * @param itemClass The item model class.
+	 * @param visitor The visitor.
+	 * @return The token of the next page; null if this is the last page.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static <T> String list(AbstractGoogleJsonClientRequest<?> request, String arrayField, Class<T> itemClass,
+			ItemVisitor<T> visitor) throws IOException {
+		return list(request, arrayField, parser -> parser.parse(itemClass), visitor);
+	}
+
+	/**
+	 * Sends the list request and streams the items of the page, read by the specified reader, to the visitor.
+	 * @param request The list request.
+	 * @param arrayField The name of the array holding the items.
+	 * @param reader The item reader.
+	 * @param visitor The visitor.
+	 * @return The token of the next page; null if this is the last page.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static <T> String list(AbstractGoogleJsonClientRequest<?> request, String arrayField, ItemReader<T> reader,
+			ItemVisitor<T> visitor) throws IOException {
+
+		JsonFactory jsonFactory = request.getAbstractGoogleClient().getJsonFactory();
+		// Errors are still turned into GoogleJsonResponseException by executeUnparsed.
+		HttpResponse response = request.executeUnparsed();
+		try (InputStream content = response.getContent()) {
+			return parse(jsonFactory, content, arrayField, reader, visitor);
+		}
+		finally {
+			response.disconnect();
+		}
+	}
+
+	/**
+	 * Streams the items of a page to the visitor.
+	 * @param jsonFactory The JSON factory.
+	 * @param content The page content.
+	 * @param arrayField The name of the array holding the items.
+	 * @param itemClass The item model class.
+	 * @param visitor The visitor.
+	 * @return The token of the next page; null if this is the last page.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static <T> String parse(JsonFactory jsonFactory, InputStream content, String arrayField, Class<T> itemClass,
+			ItemVisitor<T> visitor) throws IOException {
+		return parse(jsonFactory, content, arrayField, parser -> parser.parse(itemClass), visitor);
+	}
+
+	/**
+	 * Streams the items of a page, read by the specified reader, to the visitor.
+	 * @param jsonFactory The JSON factory.
+	 * @param content The page content.
+	 * @param arrayField The name of the array holding the items.
+	 * @param reader The item reader.
+	 * @param visitor The visitor.
+	 * @return The token of the next page; null if this is the last page.
+	 * @throws IOException An I/O error has been detected.
+	 */
+	public static <T> String parse(JsonFactory jsonFactory, InputStream content, String arrayField, ItemReader<T> reader,
+			ItemVisitor<T> visitor) throws IOException {
+
+		String nextPageToken = null;
+		JsonParser parser = jsonFactory.createJsonParser(content, StandardCharsets.UTF_8);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("The response is not a JSON object");
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (arrayField.equals(field) && value == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT)
+						visitor.visit(reader.read(parser));
+				}
+				else if ("nextPageToken".equals(field) && value == JsonToken.VALUE_STRING)
+					nextPageToken = parser.getText();
+				else
+					parser.skipChildren();
+			}
+		}
+		finally {
+			parser.close();
+		}
+		return nextPageToken;
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.acloudysky.drive;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Limits the rate at which a resource, such as the bytes sent to the Drive, is consumed.
+ * The bucket fills at the configured rate up to its capacity, which is the largest burst allowed after an idle period.
+ * A caller either reserves the tokens it needs and then waits until they are available, the reservations being served in the
+ * order they are made, or only takes the tokens when they are all available, leaving the order to the caller.
+ * <b>Note</b>. The rate and the capacity can be changed while the bucket is in use; a rate of 0 means no limit.
+ * @author Michael
+ *
+ */
+public class TokenBucket {
+
+	private long rate;
+	private long capacity;
+	// Tokens available; negative when the reservations made exceed the tokens accumulated.
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * Instantiates the TokenBucket class.
+	 * @param rate The tokens added per second; 0 for no limit.
+	 * @param capacity The maximum number of tokens accumulated while idle.
+	 */
+	public TokenBucket(long rate, long capacity) {
+		setRate(rate, capacity);
+		tokens = this.capacity;
+	}
+
+	/**
+	 * Changes the rate and the capacity of the bucket.
+	 * @param rate The tokens added per second; 0 for no limit.
+	 * @param capacity The maximum number of tokens accumulated while idle.
+	 */
+	public synchronized void setRate(long rate, long capacity) {
+		refill();
+		this.rate = Math.max(0, rate);
+		this.capacity = Math.max(1, capacity);
+		tokens = Math.min(tokens, this.capacity);
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Tells whether the bucket limits the rate.
+	 */
+	public synchronized boolean isLimited() {
+		return rate > 0;
+	}
+
+	/**
+	 * Reserves the tokens without waiting.
+	 * @param count The number of tokens.
+	 * @return The time in nanoseconds the caller must wait before consuming the tokens.
+	 */
+	public synchronized long reserve(long count) {
+		if (rate == 0)
+			return 0;
+		refill();
+		tokens -= count;
+		return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+	}
+
+	/**
+	 * Consumes the tokens if they are all available.
+	 * @param count The number of tokens, at most the capacity.
+	 * @return 0 if the tokens have been consumed; otherwise, the time in nanoseconds until they are available.
+	 */
+	public synchronized long tryAcquire(long count) {
+		if (rate == 0)
+			return 0;
+		refill();
+		if (tokens >= count) {
+			tokens -= count;
+			return 0;
+		}
+		return Math.max(1, (long) ((count - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+	}
+
+	/**
+	 * Reserves the tokens and waits until they are available.
+	 * @param count The number of tokens.
+	 * @throws InterruptedIOException The thread was interrupted while waiting.
+	 */
+	public void acquire(long count) throws InterruptedIOException {
+		pause(reserve(count));
+	}
+
+	/**
+	 * Waits for the specified time.
+	 * @param nanos The time in nanoseconds.
+	 * @throws InterruptedIOException The thread was interrupted while waiting.
+	 */
+	static void pause(long nanos) throws InterruptedIOException {
+		if (nanos <= 0)
+			return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttled");
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate > 0)
+			tokens = Math.min(capacity, tokens + (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.acloudysky.drive;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.model.File;
+
+/***
+ * Describes an upload or a download recorded in the {@link TransferQueue}.
+ * It extends GenericJson so that it is written to and read from the queue log as is.
+ * Two jobs with the same key are the same transfer: the key contains the local path, the Drive file or folder and,
+ * for the uploads, the size and the modification time of the local file, so a local file changed after its upload
+ * is uploaded again. Likewise the key of a download contains the revision of the Drive file, so a file changed
+ * after its download is downloaded again.
+ * @author Michael
+ *
+ */
+public class TransferJob extends GenericJson {
+
+	// Job types.
+	public final static String UPLOAD = "upload";
+	public final static String UPDATE = "update";
+	public final static String DOWNLOAD = "download";
+
+	@Key("key")
+	private String key;
+
+	@Key("type")
+	private String type;
+
+	@Key("localPath")
+	private String localPath;
+
+	// The parent folder for the uploads; the Drive file for the updates and the downloads.
+	@Key("remoteID")
+	private String remoteID;
+
+	@Key("mimeType")
+	private String mimeType;
+
+	@Key("size")
+	private Long size;
+
+	// Higher priorities are taken first.
+	@Key("priority")
+	private Integer priority;
+
+	// The ID reserved for the uploaded file before the first attempt.
+	@Key("fileID")
+	private String fileID;
+
+	/**
+	 * Instantiates an empty TransferJob; used when the job is read from the queue log.
+	 */
+	public TransferJob() {
+	}
+
+	private TransferJob(String type, java.io.File localFile, String remoteID, String mimeType, int priority) {
+		this.type = type;
+		this.localPath = localFile.getAbsolutePath();
+		this.remoteID = remoteID;
+		this.mimeType = mimeType;
+		this.priority = priority;
+		this.size = localFile.length();
+		this.key = String.join("|", type, localPath, remoteID,
+				Long.toString(size), Long.toString(localFile.lastModified()));
+	}
+
+	private TransferJob(File remoteFile, java.io.File localFile, String mimeType, int priority) {
+		this.type = DOWNLOAD;
+		this.localPath = localFile.getAbsolutePath();
+		this.remoteID = remoteFile.getId();
+		this.mimeType = mimeType;
+		this.priority = priority;
+		this.key = String.join("|", type, remoteID, revisionOf(remoteFile), localPath);
+	}
+
+	/**
+	 * Creates a job which uploads a local file into a Drive folder.
+	 * @param localFile The local file.
+	 * @param parentID The ID of the parent folder.
+	 * @param mimeType The MIME type of the file.
+	 * @param priority The job priority; higher priorities are taken first.
+	 * @return The job.
+	 */
+	public static TransferJob upload(java.io.File localFile, String parentID, String mimeType, int priority) {
+		return new TransferJob(UPLOAD, localFile, parentID, mimeType, priority);
+	}
+
+	/**
+	 * Creates a job which replaces the content of a Drive file with a local file.
+	 * @param localFile The local file.
+	 * @param fileID The ID of the Drive file.
+	 * @param mimeType The MIME type of the file.
+	 * @param priority The job priority; higher priorities are taken first.
+	 * @return The job.
+	 */
+	public static TransferJob update(java.io.File localFile, String fileID, String mimeType, int priority) {
+		return new TransferJob(UPDATE, localFile, fileID, mimeType, priority);
+	}
+
+	/**
+	 * Creates a job which downloads a Drive file into a local file.
+	 * @param remoteFile The metadata of the Drive file, with its ID and its headRevisionId, md5Checksum or
+	 * modifiedTime, such as returned by {@link FileOperations#getFile(String)}.
+	 * @param target The local file.
+	 * @param mimeType The MIME type to export to; null to download the content as is.
+	 * @param priority The job priority; higher priorities are taken first.
+	 * @return The job.
+	 */
+	public static TransferJob download(File remoteFile, java.io.File target, String mimeType, int priority) {
+		return new TransferJob(remoteFile, target, mimeType, priority);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getLocalPath() {
+		return localPath;
+	}
+
+	public String getRemoteID() {
+		return remoteID;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * Gets the size of the local file when the job was created; null for the downloads.
+	 */
+	public Long getSize() {
+		return size;
+	}
+
+	public int getPriority() {
+		return priority == null ? 0 : priority;
+	}
+
+	/**
+	 * Gets the ID reserved for the uploaded file; null until the upload is started.
+	 */
+	public String getFileID() {
+		return fileID;
+	}
+
+	void setFileID(String fileID) {
+		this.fileID = fileID;
+	}
+
+	/**
+	 * Gets the revision of the content of a Drive file. The Google documents have no headRevisionId nor checksum:
+	 * their modification time is used instead.
+	 */
+	private static String revisionOf(File remoteFile) {
+		if (remoteFile.getHeadRevisionId() != null)
+			return remoteFile.getHeadRevisionId();
+		if (remoteFile.getMd5Checksum() != null)
+			return remoteFile.getMd5Checksum();
+		return remoteFile.getModifiedTime() == null ? "" : Long.toString(remoteFile.getModifiedTime().getValue());
+	}
+
+}
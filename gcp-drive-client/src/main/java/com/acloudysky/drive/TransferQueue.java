@@ -0,0 +1,470 @@
+package com.acloudysky.drive;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.acloudysky.utilities.Utility;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+
+/***
+ * Durable queue of the uploads and downloads, so that a run that dies in the middle of a large transfer can be resumed.
+ * Each change is appended to a write-ahead log and synced to the disk before the call returns: a job is <i>enqueued</i>,
+ * <i>started</i>, then <i>done</i> or <i>failed</i>. When the queue is opened the log is replayed; the jobs which are not
+ * done, including the ones that were running when the process died, are pending again. The log is then compacted, without the jobs
+ * done whose local file has been deleted or modified since: they cannot be enqueued with the same key again.
+ * An upload is started with the ID reserved for the new file, so an upload that completed just before the crash is
+ * recognized when it is retried, instead of creating a duplicate.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>A job whose key is pending, running or done is not enqueued again, so enqueuing the same migration twice
+ *  only transfers what is left.</li>
+ *  <li>The jobs are enqueued for an owner, such as a command run, and {@link #take(String)} only returns the jobs of
+ *  that owner, so the commands which share the queue in a process do not run each other's jobs. The jobs replayed
+ *  from the log, and the ones released by their owner, belong to no one: any owner takes them.</li>
+ *  <li>The pending jobs are taken by priority, then smallest first, then in the order they were enqueued.</li>
+ *  <li>A job which fails is not taken again in the same run; it is pending again when the queue is reopened.</li>
+ *  <li>A torn last line, left by a crash during a write, is ignored.</li>
+ *  <li>The queue holds a lock on the <i>transfer_queue.log.lock</i> file while it is open, so that another process
+ *  waits for it instead of compacting the log under it. Within a process, such as the daemon, {@link #open()}
+ *  returns the same queue to every command.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class TransferQueue implements AutoCloseable {
+
+	// Transfer queue log file name.
+	final static String QUEUEFILE = "transfer_queue.log";
+
+	private final static JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+	/***
+	 * A line of the queue log.
+	 */
+	public static class LogRecord extends GenericJson {
+
+		// enqueue, start, done or failed.
+		@Key("op")
+		private String op;
+
+		@Key("key")
+		private String key;
+
+		// Set for enqueue only.
+		@Key("job")
+		private TransferJob job;
+
+		// Set for start only, for the uploads.
+		@Key("fileID")
+		private String fileID;
+
+		// Set for failed only.
+		@Key("error")
+		private String error;
+
+		// Set for done only: the local file and the completion time, to tell when the record is no longer needed.
+		@Key("localPath")
+		private String localPath;
+
+		@Key("time")
+		private Long time;
+
+		public LogRecord() {
+		}
+
+		private LogRecord(String op, String key, TransferJob job, String error) {
+			this.op = op;
+			this.key = key;
+			if ("enqueue".equals(op))
+				this.job = job;
+			else if ("start".equals(op))
+				this.fileID = job.getFileID();
+			else if ("done".equals(op) && job != null) {
+				this.localPath = job.getLocalPath();
+				this.time = System.currentTimeMillis();
+			}
+			this.error = error;
+			setFactory(jsonFactory);
+		}
+	}
+
+	/***
+	 * A pending job with its owner and its enqueue order.
+	 */
+	private static class Entry {
+		private final TransferJob job;
+		private final String owner;
+		private final long sequence;
+
+		private Entry(TransferJob job, String owner, long sequence) {
+			this.job = job;
+			this.owner = owner;
+			this.sequence = sequence;
+		}
+	}
+
+	// By priority, then smallest first, so that most of the files complete early, then in the enqueue order.
+	private final static Comparator<Entry> ORDER = Comparator.comparingInt((Entry entry) -> -entry.job.getPriority())
+			.thenComparingLong(entry -> entry.job.getSize() == null ? Long.MAX_VALUE : entry.job.getSize())
+			.thenComparingLong(entry -> entry.sequence);
+
+	// The queue of this process and the number of callers of open() which have not closed it.
+	private static TransferQueue shared;
+	private static int references;
+
+	// The canonical paths of the queues opened by this process.
+	private final static Set<String> openFiles = ConcurrentHashMap.newKeySet();
+
+	private final java.io.File logFile;
+	private final String path;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	// The pending jobs of each owner; the null owner holds the jobs which belong to no one.
+	private final Map<String, PriorityQueue<Entry>> pending = new HashMap<>();
+	private final Set<String> pendingKeys = new HashSet<>();
+	private final Map<String, TransferJob> running = new HashMap<>();
+	// The done records, kept to recognize the jobs already done.
+	private final Map<String, LogRecord> done = new HashMap<>();
+	private final Map<String, TransferJob> failed = new HashMap<>();
+	private long sequence;
+
+	private FileOutputStream logStream;
+	private Writer logWriter;
+
+	/**
+	 * Opens the queue stored in the transfer_queue.log file, next to the client_defaults.json file.
+	 * The queue is shared by the callers in this process; it is closed when the last of them closes it.
+	 * @return The queue.
+	 * @throws IOException The log could not be read or written.
+	 */
+	public static synchronized TransferQueue open() throws IOException {
+		if (shared == null)
+			shared = new TransferQueue(new java.io.File(
+					Utility.getAbsoluteFilePath(DriveDefaultSettings.SERVICESDIR, DriveDefaultSettings.DATADIR, QUEUEFILE)));
+		references++;
+		return shared;
+	}
+
+	/**
+	 * Opens the queue stored in the specified log, replays it and compacts it.
+	 * The call waits while another process has the queue open.
+	 * @param logFile The queue log; it is created if it does not exist.
+	 * @throws IOException The log could not be read or written.
+	 */
+	public TransferQueue(java.io.File logFile) throws IOException {
+		this.logFile = logFile;
+		// Closing a second channel on the lock file would release the lock held by the first one.
+		path = logFile.getCanonicalPath();
+		if (!openFiles.add(path))
+			throw new IOException(String.format("%s is already open in this process", logFile));
+		// The log itself is replaced by the compaction, so the lock is taken on a file of its own.
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(new java.io.File(logFile.getPath() + ".lock").toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			lockChannel = channel;
+			lock = lockChannel.lock();
+			replay();
+			compact();
+			logStream = new FileOutputStream(logFile, true);
+			logWriter = new OutputStreamWriter(logStream, StandardCharsets.UTF_8);
+		}
+		catch (IOException | RuntimeException e) {
+			// Closing the channel releases the lock.
+			if (channel != null)
+				channel.close();
+			openFiles.remove(path);
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds a job which belongs to no one to the queue, unless a job with the same key is pending, running or done.
+	 * @param job The job.
+	 * @return true if the job has been added; otherwise, false.
+	 * @throws IOException The log could not be written.
+	 */
+	public synchronized boolean enqueue(TransferJob job) throws IOException {
+		if (!add(job, null))
+			return false;
+		append(new LogRecord("enqueue", job.getKey(), job, null));
+		sync();
+		return true;
+	}
+
+	/**
+	 * Adds jobs which belong to no one to the queue with a single sync of the log.
+	 * @param jobs The jobs.
+	 * @return The number of jobs added; the others were already pending, running or done.
+	 * @throws IOException The log could not be written.
+	 */
+	public int enqueueAll(List<TransferJob> jobs) throws IOException {
+		return enqueueAll(null, jobs);
+	}
+
+	/**
+	 * Adds the jobs of the specified owner to the queue with a single sync of the log.
+	 * @param owner The owner, which takes the jobs with {@link #take(String)}.
+	 * @param jobs The jobs.
+	 * @return The number of jobs added; the others were already pending, running or done, possibly for another owner.
+	 * @throws IOException The log could not be written.
+	 */
+	public synchronized int enqueueAll(String owner, List<TransferJob> jobs) throws IOException {
+		int added = 0;
+		for (TransferJob job : jobs) {
+			if (add(job, owner)) {
+				append(new LogRecord("enqueue", job.getKey(), job, null));
+				added++;
+			}
+		}
+		if (added > 0)
+			sync();
+		return added;
+	}
+
+	/**
+	 * Takes the pending job with the highest priority among the jobs which belong to no one.
+	 * @return The job; null if no such job is pending.
+	 */
+	public TransferJob take() {
+		return take(null);
+	}
+
+	/**
+	 * Takes the pending job with the highest priority among the jobs of the specified owner and the jobs which belong
+	 * to no one.
+	 * @param owner The owner.
+	 * @return The job; null if no such job is pending.
+	 */
+	public synchronized TransferJob take(String owner) {
+		PriorityQueue<Entry> own = pending.get(owner);
+		PriorityQueue<Entry> orphans = owner == null ? null : pending.get(null);
+		PriorityQueue<Entry> from = own;
+		if (from == null || (orphans != null && ORDER.compare(orphans.peek(), own.peek()) < 0))
+			from = orphans;
+		if (from == null)
+			return null;
+		Entry entry = from.poll();
+		if (from.isEmpty())
+			pending.remove(entry.owner);
+		TransferJob job = entry.job;
+		pendingKeys.remove(job.getKey());
+		running.put(job.getKey(), job);
+		return job;
+	}
+
+	/**
+	 * Hands the pending jobs of the specified owner over to no one, so that another owner runs them.
+	 * @param owner The owner, which stops taking jobs.
+	 */
+	public synchronized void release(String owner) {
+		PriorityQueue<Entry> own = owner == null ? null : pending.remove(owner);
+		if (own == null)
+			return;
+		PriorityQueue<Entry> orphans = pending.computeIfAbsent(null, none -> new PriorityQueue<>(ORDER));
+		for (Entry entry : own)
+			orphans.add(new Entry(entry.job, null, entry.sequence));
+	}
+
+	/**
+	 * Records that the job is running.
+	 * @param job A job returned by {@link #take()}.
+	 * @param fileID For the uploads, the ID reserved for the new file, if the job has none yet; otherwise, null.
+	 * @throws IOException The log could not be written.
+	 */
+	public synchronized void start(TransferJob job, String fileID) throws IOException {
+		if (fileID != null)
+			job.setFileID(fileID);
+		append(new LogRecord("start", job.getKey(), job, null));
+		// The reserved ID must be on the disk before the upload begins.
+		if (fileID != null)
+			sync();
+		else
+			logWriter.flush();
+	}
+
+	/**
+	 * Records that the job completed.
+	 * @param job A job returned by {@link #take()}.
+	 * @throws IOException The log could not be written.
+	 */
+	public synchronized void complete(TransferJob job) throws IOException {
+		running.remove(job.getKey());
+		LogRecord record = new LogRecord("done", job.getKey(), job, null);
+		done.put(job.getKey(), record);
+		append(record);
+		sync();
+	}
+
+	/**
+	 * Records that the job failed; it is retried when the queue is reopened.
+	 * @param job A job returned by {@link #take()}.
+	 * @param error The error message.
+	 * @throws IOException The log could not be written.
+	 */
+	public synchronized void fail(TransferJob job, String error) throws IOException {
+		running.remove(job.getKey());
+		failed.put(job.getKey(), job);
+		append(new LogRecord("failed", job.getKey(), null, error));
+		sync();
+	}
+
+	/**
+	 * Gets the number of jobs not done yet: pending, running or failed.
+	 */
+	public synchronized int unfinished() {
+		int count = running.size() + failed.size();
+		for (PriorityQueue<Entry> entries : pending.values())
+			count += entries.size();
+		return count;
+	}
+
+	/**
+	 * Closes the queue log and releases the lock, unless other callers in this process still use the queue.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (TransferQueue.class) {
+			if (this == shared) {
+				if (--references > 0)
+					return;
+				shared = null;
+			}
+		}
+		synchronized (this) {
+			try {
+				logWriter.close();
+			}
+			finally {
+				lock.release();
+				lockChannel.close();
+				openFiles.remove(path);
+			}
+		}
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private boolean add(TransferJob job, String owner) {
+		String key = job.getKey();
+		if (done.containsKey(key) || pendingKeys.contains(key) || running.containsKey(key))
+			return false;
+		failed.remove(key);
+		pendingKeys.add(key);
+		pending.computeIfAbsent(owner, none -> new PriorityQueue<>(ORDER)).add(new Entry(job, owner, sequence++));
+		return true;
+	}
+
+	/**
+	 * Rebuilds the state of the queue from the log.
+	 */
+	private void replay() throws IOException {
+
+		if (!logFile.exists())
+			return;
+
+		// The jobs not done, in the order they were enqueued.
+		Map<String, TransferJob> unfinished = new LinkedHashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(logFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				LogRecord record;
+				try {
+					record = jsonFactory.fromString(line, LogRecord.class);
+				}
+				catch (IOException | IllegalArgumentException e) {
+					// Torn write at the end of the log.
+					if (Utility.isDEBUG())
+						System.out.println(String.format("[TransferQueue] skipped log line: %s", line));
+					continue;
+				}
+				if ("enqueue".equals(record.op) && record.job != null)
+					unfinished.put(record.key, record.job);
+				else if ("start".equals(record.op) && record.fileID != null && unfinished.containsKey(record.key))
+					unfinished.get(record.key).setFileID(record.fileID);
+				else if ("done".equals(record.op)) {
+					unfinished.remove(record.key);
+					done.put(record.key, record);
+				}
+			}
+		}
+		for (TransferJob job : unfinished.values())
+			if (!done.containsKey(job.getKey()))
+				add(job, null);
+	}
+
+	/**
+	 * Rewrites the log with one line per job, then replaces the old log atomically.
+	 * The jobs done whose local file has been deleted or modified since are dropped.
+	 */
+	private void compact() throws IOException {
+
+		done.values().removeIf(TransferQueue::isStale);
+		java.io.File compacted = new java.io.File(logFile.getPath() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(compacted);
+				Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
+			for (LogRecord record : done.values())
+				writer.write(record.toString() + "\n");
+			List<Entry> entries = new ArrayList<>();
+			for (PriorityQueue<Entry> owned : pending.values())
+				entries.addAll(owned);
+			entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+			for (Entry entry : entries)
+				writer.write(new LogRecord("enqueue", entry.job.getKey(), entry.job, null).toString() + "\n");
+			writer.flush();
+			stream.getFD().sync();
+		}
+		Files.move(compacted.toPath(), logFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Tells whether a job done can no longer be enqueued with the same key: the key of an upload contains the size and
+	 * the modification time of the local file, and the file written by a download is not modified after the record.
+	 * The records written before the local path was recorded are kept.
+	 */
+	private static boolean isStale(LogRecord record) {
+		if (record.localPath == null || record.time == null)
+			return false;
+		java.io.File localFile = new java.io.File(record.localPath);
+		return !localFile.exists() || localFile.lastModified() > record.time;
+	}
+
+	private void append(LogRecord record) throws IOException {
+		logWriter.write(record.toString());
+		logWriter.write('\n');
+	}
+
+	/**
+	 * Flushes the log and forces it to the disk.
+	 */
+	private void sync() throws IOException {
+		logWriter.flush();
+		logStream.getFD().sync();
+	}
+
+}
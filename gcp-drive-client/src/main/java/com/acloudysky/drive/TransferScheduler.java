@@ -0,0 +1,266 @@
+package com.acloudysky.drive;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+/***
+ * Shares the bandwidth among the concurrent uploads and downloads.
+ * The streams of each transfer are wrapped so that every chunk of data read or written first gets the permission of the scheduler.
+ * The permissions are limited by a global token bucket, capping the total rate, and by a token bucket per transfer.
+ * When the global rate is limited, the chunks waiting for it are served by weighted fair queuing: each chunk gets a virtual finish
+ * time which grows with the bytes already sent by its transfer divided by the transfer weight, and the chunk with the earliest time
+ * goes first. A large transfer therefore cannot starve the small ones, which complete after a few chunks.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The limits can be changed at any time, for example to cap the egress during business hours; they apply to the next chunk.</li>
+ *  <li>The chunks are at most 16 KB, so a change of the limits or a new transfer is taken into account quickly.</li>
+ *  <li>When no limit is set the streams are not slowed down and no lock is taken on the global state.</li>
+ * </ul>
+ * @author Michael
+ *
+ */
+public class TransferScheduler {
+
+	// The largest chunk a transfer can send with a single permission.
+	final static int CHUNK_SIZE = 16 * 1024;
+	// The capacity of the buckets, in seconds of traffic at the configured rate.
+	private final static int BURST_SECONDS = 1;
+
+	/***
+	 * A transfer using the scheduler; it is returned by {@link TransferScheduler#open(String, int)}.
+	 */
+	public static class Transfer {
+
+		private final String name;
+		private final int weight;
+		private final TokenBucket bucket;
+		// Virtual finish time of the last chunk of the transfer.
+		private double finish;
+		private volatile long transferred;
+
+		private Transfer(String name, int weight) {
+			this.name = name;
+			this.weight = Math.max(1, weight);
+			this.bucket = new TokenBucket(0, CHUNK_SIZE);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the bytes sent or received so far.
+		 */
+		public long getTransferred() {
+			return transferred;
+		}
+	}
+
+	/***
+	 * A chunk waiting for the global bucket.
+	 */
+	private static class Request {
+		private final double tag;
+		private final long sequence;
+
+		private Request(double tag, long sequence) {
+			this.tag = tag;
+			this.sequence = sequence;
+		}
+	}
+
+	private final TokenBucket global;
+	// The rate of each transfer; 0 for no limit other than the global one.
+	private volatile long transferRate;
+	private final PriorityQueue<Request> waiting = new PriorityQueue<>(
+			Comparator.comparingDouble((Request request) -> request.tag).thenComparingLong(request -> request.sequence));
+	// The virtual time: the start time of the last chunk served.
+	private double virtualTime;
+	private long sequence;
+
+	/**
+	 * Instantiates the TransferScheduler class.
+	 * @param rate The total bytes per second; 0 for no limit.
+	 */
+	public TransferScheduler(long rate) {
+		global = new TokenBucket(rate, Math.max(CHUNK_SIZE, rate * BURST_SECONDS));
+	}
+
+	/**
+	 * Changes the rate of each transfer, including the running ones.
+	 * @param rate The bytes per second of each transfer; 0 for no limit other than the global one.
+	 */
+	public void setTransferRate(long rate) {
+		transferRate = Math.max(0, rate);
+	}
+
+	public long getTransferRate() {
+		return transferRate;
+	}
+
+	/**
+	 * Changes the total rate.
+	 * @param rate The total bytes per second; 0 for no limit.
+	 */
+	public void setRate(long rate) {
+		global.setRate(rate, Math.max(CHUNK_SIZE, rate * BURST_SECONDS));
+	}
+
+	public long getRate() {
+		return global.getRate();
+	}
+
+	/**
+	 * Registers a new transfer.
+	 * @param name The transfer name, such as the local path.
+	 * @param weight The share of the bandwidth the transfer gets relative to the other transfers; 1 for an equal share.
+	 * @return The transfer, to be passed to the throttle methods.
+	 */
+	public Transfer open(String name, int weight) {
+		Transfer transfer = new Transfer(name, weight);
+		synchronized (this) {
+			// A new transfer starts at the current virtual time, not at 0, so it gets no credit for the time it was idle.
+			transfer.finish = virtualTime;
+		}
+		return transfer;
+	}
+
+	/**
+	 * Wraps the stream read by an upload.
+	 * @param in The stream of the local content.
+	 * @param transfer The transfer.
+	 * @return The throttled stream.
+	 */
+	public InputStream throttle(InputStream in, Transfer transfer) {
+		return new FilterInputStream(in) {
+
+			// The bytes are charged once read: a short read or the end of the stream does not use the budget.
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					acquire(transfer, 1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int read = super.read(buffer, offset, Math.min(length, CHUNK_SIZE));
+				if (read > 0)
+					acquire(transfer, read);
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Wraps the content sent by an upload. Unlike a plain stream the content can be read again, so the upload can be retried.
+	 * @param content The content, such as a FileContent or a ByteArrayContent.
+	 * @param transfer The transfer.
+	 * @return The throttled content.
+	 */
+	public AbstractInputStreamContent throttle(AbstractInputStreamContent content, Transfer transfer) {
+		return new AbstractInputStreamContent(content.getType()) {
+
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return throttle(content.getInputStream(), transfer);
+			}
+
+			@Override
+			public long getLength() throws IOException {
+				return content.getLength();
+			}
+
+			@Override
+			public boolean retrySupported() {
+				return content.retrySupported();
+			}
+		};
+	}
+
+	/**
+	 * Wraps the stream written by a download.
+	 * @param out The stream of the local target.
+	 * @param transfer The transfer.
+	 * @return The throttled stream.
+	 */
+	public OutputStream throttle(OutputStream out, Transfer transfer) {
+		return new FilterOutputStream(out) {
+
+			@Override
+			public void write(int b) throws IOException {
+				acquire(transfer, 1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				while (length > 0) {
+					int chunk = Math.min(length, CHUNK_SIZE);
+					acquire(transfer, chunk);
+					out.write(buffer, offset, chunk);
+					offset += chunk;
+					length -= chunk;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits until the transfer can send or receive the specified bytes.
+	 * @param transfer The transfer.
+	 * @param bytes The bytes, at most {@link #CHUNK_SIZE}.
+	 * @throws InterruptedIOException The thread was interrupted while waiting.
+	 */
+	void acquire(Transfer transfer, int bytes) throws InterruptedIOException {
+
+		transfer.transferred += bytes;
+		long rate = transferRate;
+		if (transfer.bucket.getRate() != rate)
+			transfer.bucket.setRate(rate, Math.max(CHUNK_SIZE, rate * BURST_SECONDS));
+		transfer.bucket.acquire(bytes);
+		if (!global.isLimited())
+			return;
+
+		synchronized (this) {
+			double start = Math.max(virtualTime, transfer.finish);
+			transfer.finish = start + (double) bytes / transfer.weight;
+			Request request = new Request(transfer.finish, sequence++);
+			waiting.add(request);
+			try {
+				// Only the chunk with the earliest finish time takes the global tokens; it waits for them in the
+				// queue, so a chunk arriving meanwhile with an earlier finish time goes ahead of it.
+				while (true) {
+					if (waiting.peek() == request) {
+						long nanos = global.tryAcquire(bytes);
+						if (nanos == 0)
+							break;
+						TimeUnit.NANOSECONDS.timedWait(this, nanos);
+					}
+					else
+						wait();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+			finally {
+				waiting.remove(request);
+				notifyAll();
+			}
+			virtualTime = start;
+		}
+	}
+
+}
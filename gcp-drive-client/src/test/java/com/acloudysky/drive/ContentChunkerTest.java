@@ -0,0 +1,142 @@
+package com.acloudysky.drive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/***
+ * Tests the chunk boundaries found by the {@link ContentChunker}.
+ * @author Michael
+ *
+ */
+public class ContentChunkerTest {
+
+	private final static int MIN_SIZE = 1024;
+	private final static int AVG_SIZE = 4096;
+	private final static int MAX_SIZE = 16384;
+
+	private final ContentChunker chunker = new ContentChunker(MIN_SIZE, AVG_SIZE, MAX_SIZE);
+
+	@Test
+	public void coversTheStreamWithinTheSizes() throws IOException {
+		byte[] content = random(1 << 20, 1);
+		List<long[]> chunks = new ArrayList<>();
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+
+		long length = chunker.chunk(new ByteArrayInputStream(content), (offset, data) -> {
+			chunks.add(new long[] { offset, data.length });
+			joined.write(data);
+		});
+
+		assertEquals(content.length, length);
+		assertArrayEquals(content, joined.toByteArray());
+		long expected = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			long[] chunk = chunks.get(i);
+			assertEquals(expected, chunk[0]);
+			assertTrue(chunk[1] <= MAX_SIZE);
+			// Only the last chunk can be shorter than the minimum.
+			assertTrue(i == chunks.size() - 1 || chunk[1] >= MIN_SIZE);
+			expected += chunk[1];
+		}
+		// Normalized chunking keeps the sizes close to the average.
+		long average = content.length / chunks.size();
+		assertTrue(average > AVG_SIZE / 2 && average < AVG_SIZE * 2);
+	}
+
+	@Test
+	public void findsTheBoundariesInTheContent() throws IOException {
+		byte[] content = random(1 << 20, 2);
+		// The same content, read a few bytes at a time.
+		InputStream shortReads = new FilterInputStream(new ByteArrayInputStream(content)) {
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				return super.read(buffer, offset, Math.min(length, 7));
+			}
+		};
+		assertEquals(boundaries(new ByteArrayInputStream(content)), boundaries(shortReads));
+	}
+
+	@Test
+	public void keepsTheChunksAfterAnEdit() throws IOException {
+		byte[] content = random(1 << 20, 3);
+		byte[] edited = new byte[content.length + 10];
+		System.arraycopy(content, 0, edited, 0, 5000);
+		System.arraycopy(content, 5000, edited, 5010, content.length - 5000);
+
+		Set<ByteBuffer> before = chunks(content);
+		Set<ByteBuffer> after = chunks(edited);
+		int kept = 0;
+		for (ByteBuffer chunk : after)
+			if (before.contains(chunk))
+				kept++;
+		// Only the chunks around the insertion change.
+		assertTrue(kept >= after.size() - 3);
+	}
+
+	@Test
+	public void cutsAtTheMaximumWithoutBoundary() throws IOException {
+		// The Gear hash of a run of zeros never matches the masks.
+		byte[] content = new byte[MAX_SIZE * 3 + 100];
+		List<Integer> sizes = new ArrayList<>();
+		chunker.chunk(new ByteArrayInputStream(content), (offset, data) -> sizes.add(data.length));
+		assertEquals(Arrays.asList(MAX_SIZE, MAX_SIZE, MAX_SIZE, 100), sizes);
+	}
+
+	@Test
+	public void keepsAShortStreamWhole() throws IOException {
+		byte[] content = random(MIN_SIZE, 4);
+		List<byte[]> chunks = new ArrayList<>();
+		chunker.chunk(new ByteArrayInputStream(content), (offset, data) -> chunks.add(data));
+		assertEquals(1, chunks.size());
+		assertArrayEquals(content, chunks.get(0));
+
+		chunks.clear();
+		assertEquals(0, chunker.chunk(new ByteArrayInputStream(new byte[0]), (offset, data) -> chunks.add(data)));
+		assertEquals(0, chunks.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInconsistentSizes() {
+		new ContentChunker(AVG_SIZE, MIN_SIZE, MAX_SIZE);
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private static byte[] random(int length, long seed) {
+		byte[] content = new byte[length];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+
+	private List<Long> boundaries(InputStream in) throws IOException {
+		List<Long> boundaries = new ArrayList<>();
+		chunker.chunk(in, (offset, data) -> boundaries.add(offset + data.length));
+		return boundaries;
+	}
+
+	// The chunks, compared by content.
+	private Set<ByteBuffer> chunks(byte[] content) throws IOException {
+		Set<ByteBuffer> chunks = new HashSet<>();
+		chunker.chunk(new ByteArrayInputStream(content), (offset, data) -> chunks.add(ByteBuffer.wrap(data)));
+		return chunks;
+	}
+
+}
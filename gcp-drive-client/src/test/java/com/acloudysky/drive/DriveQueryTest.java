@@ -0,0 +1,74 @@
+package com.acloudysky.drive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/***
+ * Tests the escaping and the composition of the {@link DriveQuery} expressions.
+ * @author Michael
+ *
+ */
+public class DriveQueryTest {
+
+	@Test
+	public void quotesAPlainValue() {
+		assertEquals("'budget 2018.xlsx'", DriveQuery.quote("budget 2018.xlsx"));
+		assertEquals("''", DriveQuery.quote(""));
+	}
+
+	@Test
+	public void escapesTheQuotes() {
+		assertEquals("'Bob\\'s budget'", DriveQuery.quote("Bob's budget"));
+		assertEquals("'\\'\\''", DriveQuery.quote("''"));
+	}
+
+	@Test
+	public void escapesTheBackslashesFirst() {
+		assertEquals("'C:\\\\temp'", DriveQuery.quote("C:\\temp"));
+		// An escaped quote in the value must not end the string.
+		assertEquals("'a\\\\\\' or name contains \\'b'", DriveQuery.quote("a\\' or name contains 'b"));
+	}
+
+	@Test
+	public void leavesTheOtherCharactersAsIs() {
+		assertEquals("'\"report\" \u00e9t\u00e9 50% {x}'", DriveQuery.quote("\"report\" \u00e9t\u00e9 50% {x}"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsANullValue() {
+		DriveQuery.quote(null);
+	}
+
+	@Test
+	public void quotesTheValuesOfTheTerms() {
+		assertEquals("name = 'Bob\\'s'", DriveQuery.nameEquals("Bob's").toString());
+		assertEquals("'it\\'s' in parents", DriveQuery.inParents("it's").toString());
+		assertEquals("appProperties has { key='packOf' and value='a\\\\b' }",
+				DriveQuery.appProperty("packOf", "a\\b").toString());
+		assertEquals("trashed = false", DriveQuery.trashed(false).toString());
+	}
+
+	@Test
+	public void parenthesizesTheOperandsOfAnotherOperator() {
+		DriveQuery pdf = DriveQuery.mimeType("application/pdf");
+		DriveQuery budget = DriveQuery.nameContains("budget");
+		DriveQuery trashed = DriveQuery.trashed(true);
+
+		assertEquals("mimeType = 'application/pdf' and name contains 'budget' and trashed = true",
+				pdf.and(budget).and(trashed).toString());
+		assertEquals("(mimeType = 'application/pdf' or name contains 'budget') and trashed = true",
+				pdf.or(budget).and(trashed).toString());
+		assertEquals("not (mimeType = 'application/pdf' and trashed = true)", DriveQuery.not(pdf.and(trashed)).toString());
+		assertEquals("not trashed = true", DriveQuery.not(trashed).toString());
+	}
+
+	@Test
+	public void combinesTheNonNullQueries() {
+		assertNull(DriveQuery.allOf(null, null));
+		assertEquals("trashed = false and name = 'a'",
+				DriveQuery.allOf(null, DriveQuery.trashed(false), null, DriveQuery.nameEquals("a")).toString());
+	}
+
+}
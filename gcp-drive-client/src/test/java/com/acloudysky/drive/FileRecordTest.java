@@ -0,0 +1,126 @@
+package com.acloudysky.drive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.User;
+
+/***
+ * Tests the conversions of a {@link FileRecord}: from and to the API model, from JSON and through its binary form.
+ * @author Michael
+ *
+ */
+public class FileRecordTest {
+
+	private final IdDictionary ids = new IdDictionary();
+
+	@Test
+	public void roundTripsAFile() throws IOException {
+		File file = new File()
+				.setId("1a2B3c")
+				.setName("budget 2018 \u2014 \u00e9t\u00e9.xlsx")
+				.setMimeType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet")
+				.setOwners(Collections.singletonList(new User().setEmailAddress("bob@example.com")))
+				.setParents(Arrays.asList("folderA", "folderB", "folderC"))
+				.setSize(123456789012L)
+				.setModifiedTime(new DateTime(1514764800123L))
+				// Leading zeros, which must be kept.
+				.setMd5Checksum("00a1b2c3d4e5f60718293a4b5c6d7e8f");
+
+		FileRecord record = roundTrip(FileRecord.of(file, ids));
+
+		assertEquals(ids.lookup("1a2B3c"), record.getId());
+		assertEquals(file.getName(), record.getName());
+		assertEquals(file.getMimeType(), record.getMimeType());
+		assertEquals("bob@example.com", record.getOwner());
+		assertArrayEquals(new int[] { ids.lookup("folderA"), ids.lookup("folderB"), ids.lookup("folderC") },
+				record.getParents());
+		assertTrue(record.hasParent(ids.lookup("folderC")));
+		assertEquals(123456789012L, record.getSize());
+		assertEquals(1514764800123L, record.getModifiedTime());
+		assertEquals("00a1b2c3d4e5f60718293a4b5c6d7e8f", record.getMd5Checksum());
+		assertEquals(file, record.toFile(ids));
+	}
+
+	@Test
+	public void roundTripsTheMissingFields() throws IOException {
+		File folder = new File()
+				.setId("root")
+				.setMimeType("application/vnd.google-apps.folder");
+
+		FileRecord record = roundTrip(FileRecord.of(folder, ids));
+
+		assertNull(record.getName());
+		assertNull(record.getOwner());
+		assertTrue(record.isFolder());
+		assertEquals(IdDictionary.NONE, record.getParent());
+		assertEquals(0, record.getParents().length);
+		assertEquals(FileRecord.UNKNOWN, record.getSize());
+		assertEquals(FileRecord.UNKNOWN, record.getModifiedTime());
+		assertNull(record.getMd5Checksum());
+		assertEquals(folder, record.toFile(ids));
+	}
+
+	@Test
+	public void roundTripsASingleParent() throws IOException {
+		FileRecord record = roundTrip(FileRecord.of(new File().setId("child").setParents(Arrays.asList("parent")), ids));
+		assertEquals(ids.lookup("parent"), record.getParent());
+		assertArrayEquals(new int[] { ids.lookup("parent") }, record.getParents());
+		assertFalse(record.hasParent(ids.lookup("child")));
+	}
+
+	@Test
+	public void readsTheJsonOfAFile() throws IOException {
+		String json = "{\"kind\":\"drive#file\",\"id\":\"1a2B3c\",\"name\":\"a.txt\",\"mimeType\":\"text/plain\","
+				+ "\"parents\":[\"folderA\",\"folderB\"],\"owners\":[{\"kind\":\"drive#user\",\"displayName\":\"Bob\","
+				+ "\"emailAddress\":\"bob@example.com\"},{\"emailAddress\":\"alice@example.com\"}],"
+				+ "\"size\":\"42\",\"modifiedTime\":\"2018-01-01T00:00:00.123Z\",\"md5Checksum\":null,"
+				+ "\"capabilities\":{\"canEdit\":true},\"webViewLink\":\"https://drive.google.com/file/d/1a2B3c\"}";
+		JsonParser parser = JacksonFactory.getDefaultInstance().createJsonParser(json);
+		parser.nextToken();
+
+		FileRecord record = FileRecord.read(parser, ids);
+
+		assertEquals("a.txt", record.getName());
+		assertEquals("bob@example.com", record.getOwner());
+		assertArrayEquals(new int[] { ids.lookup("folderA"), ids.lookup("folderB") }, record.getParents());
+		assertEquals(42, record.getSize());
+		assertEquals(1514764800123L, record.getModifiedTime());
+		assertNull(record.getMd5Checksum());
+		assertEquals("1a2B3c", record.toFile(ids).getId());
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private static FileRecord roundTrip(FileRecord record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			record.write(out);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		FileRecord read = FileRecord.read(in);
+		// Nothing is left unread.
+		assertEquals(-1, in.read());
+		return read;
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.acloudysky.drive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/***
+ * Tests the {@link IdDictionary} stored in files: its reopening, after a clean or an unclean close, and its lock.
+ * @author Michael
+ *
+ */
+public class IdDictionaryTest {
+
+	// Enough IDs to grow the regions and the table a few times.
+	private final static int COUNT = 5000;
+
+	private java.io.File directory;
+	private java.io.File file;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("id_dictionary").toFile();
+		file = new java.io.File(directory, IdDictionary.DICTIONARYFILE);
+	}
+
+	@After
+	public void tearDown() {
+		for (java.io.File child : directory.listFiles())
+			child.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void keepsTheHandlesInMemory() {
+		IdDictionary ids = new IdDictionary();
+		int handle = ids.intern("0B1a2b3c");
+		assertEquals(handle, ids.intern("0B1a2b3c"));
+		assertEquals("0B1a2b3c", ids.get(handle));
+		assertEquals(IdDictionary.NONE, ids.lookup("missing"));
+		assertEquals(1, ids.size());
+	}
+
+	@Test
+	public void reopensAfterAClose() throws IOException {
+		try (IdDictionary ids = new IdDictionary(file)) {
+			for (int i = 0; i < COUNT; i++)
+				assertEquals(i, ids.intern(id(i)));
+		}
+		try (IdDictionary ids = new IdDictionary(file)) {
+			assertEquals(COUNT, ids.size());
+			assertLookups(ids);
+			assertEquals(COUNT, ids.intern("new"));
+		}
+	}
+
+	@Test
+	public void rebuildsTheTableAfterAnUncleanClose() throws IOException {
+		java.io.File crashed = new java.io.File(directory, "crashed");
+		try (IdDictionary ids = new IdDictionary(file)) {
+			for (int i = 0; i < COUNT; i++)
+				ids.intern(id(i));
+			ids.force();
+			// The files as a process which died now would leave them, with a table which misses the entries.
+			copy(file, crashed);
+			copy(new java.io.File(file.getPath() + ".strings"), new java.io.File(crashed.getPath() + ".strings"));
+			java.io.File table = new java.io.File(crashed.getPath() + ".table");
+			Files.write(table.toPath(), new byte[(int) new java.io.File(file.getPath() + ".table").length()]);
+		}
+		try (IdDictionary ids = new IdDictionary(crashed)) {
+			assertEquals(COUNT, ids.size());
+			assertLookups(ids);
+			assertEquals(COUNT, ids.intern("new"));
+		}
+	}
+
+	@Test
+	public void refusesASecondOpenInTheProcess() throws IOException {
+		try (IdDictionary ids = new IdDictionary(file)) {
+			try {
+				new IdDictionary(file).close();
+				fail("The dictionary was opened twice");
+			}
+			catch (IOException e) {
+				// Expected: the first dictionary is still usable.
+				assertEquals(0, ids.intern("first"));
+			}
+		}
+		// The file can be opened again once closed.
+		try (IdDictionary ids = new IdDictionary(file)) {
+			assertEquals(0, ids.lookup("first"));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAFileWhichIsNotADictionary() throws IOException {
+		Files.write(file.toPath(), "not a dictionary".getBytes("US-ASCII"));
+		new IdDictionary(file).close();
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private static String id(int i) {
+		return String.format("1%08dAbCdEfGhIjKlMnOpQrStUv", i);
+	}
+
+	private static void assertLookups(IdDictionary ids) {
+		for (int i = 0; i < COUNT; i++) {
+			assertEquals(i, ids.lookup(id(i)));
+			assertEquals(id(i), ids.get(i));
+		}
+	}
+
+	private static void copy(java.io.File source, java.io.File target) throws IOException {
+		Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
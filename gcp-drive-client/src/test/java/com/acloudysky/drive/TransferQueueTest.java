@@ -0,0 +1,207 @@
+package com.acloudysky.drive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/***
+ * Tests the replay and the compaction of the {@link TransferQueue} log, and the owners of the jobs.
+ * @author Michael
+ *
+ */
+public class TransferQueueTest {
+
+	private java.io.File directory;
+	private java.io.File logFile;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("transfer_queue").toFile();
+		logFile = new java.io.File(directory, TransferQueue.QUEUEFILE);
+	}
+
+	@After
+	public void tearDown() {
+		for (java.io.File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void replaysTheJobsNotDone() throws IOException {
+		TransferJob done = upload("done.txt", 0);
+		TransferJob running = upload("running.txt", 0);
+		TransferJob failed = upload("failed.txt", 0);
+		TransferJob pending = upload("pending.txt", 0);
+
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			assertEquals(4, queue.enqueueAll(Arrays.asList(done, running, failed, pending)));
+			queue.start(queue.take(), "doneID");
+			queue.complete(done);
+			queue.start(queue.take(), "runningID");
+			queue.start(queue.take(), null);
+			queue.fail(failed, "503 Service Unavailable");
+		}
+
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			assertEquals(3, queue.unfinished());
+			TransferJob job = queue.take();
+			assertEquals(running.getKey(), job.getKey());
+			// The ID reserved before the crash is kept, so the upload is recognized when it is retried.
+			assertEquals("runningID", job.getFileID());
+			assertEquals(failed.getKey(), queue.take().getKey());
+			assertEquals(pending.getKey(), queue.take().getKey());
+			assertNull(queue.take());
+			assertFalse(queue.enqueue(done));
+		}
+	}
+
+	@Test
+	public void takesByPriorityThenSize() throws IOException {
+		TransferJob large = upload("large.txt", 0, 1000);
+		TransferJob small = upload("small.txt", 0, 10);
+		TransferJob urgent = upload("urgent.txt", 1, 1000);
+
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			queue.enqueueAll(Arrays.asList(large, small, urgent));
+		}
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			assertEquals(urgent.getKey(), queue.take().getKey());
+			assertEquals(small.getKey(), queue.take().getKey());
+			assertEquals(large.getKey(), queue.take().getKey());
+		}
+	}
+
+	@Test
+	public void compactsTheLog() throws IOException {
+		TransferJob first = upload("first.txt", 0);
+		TransferJob second = upload("second.txt", 0);
+
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			queue.enqueueAll(Arrays.asList(first, second));
+			queue.start(queue.take(), "firstID");
+			queue.complete(first);
+			queue.start(queue.take(), "secondID");
+			queue.fail(second, "500 Internal Server Error");
+		}
+		assertEquals(6, lines().size());
+
+		new TransferQueue(logFile).close();
+		List<String> lines = lines();
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0).contains("\"op\":\"done\""));
+		assertTrue(lines.get(1).contains("\"op\":\"enqueue\""));
+		assertFalse(new java.io.File(logFile.getPath() + ".tmp").exists());
+
+		// The compacted log replays to the same state.
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			assertEquals(1, queue.unfinished());
+			assertEquals("secondID", queue.take().getFileID());
+		}
+	}
+
+	@Test
+	public void takesOnlyTheJobsOfTheOwner() throws IOException {
+		TransferJob mine = upload("mine.txt", 0, 10);
+		TransferJob theirs = upload("theirs.txt", 0, 10);
+		TransferJob orphan = upload("orphan.txt", 0, 1000);
+
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			queue.enqueue(orphan);
+			assertEquals(1, queue.enqueueAll("run-1", Arrays.asList(mine)));
+			assertEquals(1, queue.enqueueAll("run-2", Arrays.asList(theirs)));
+			// Already pending for the other owner.
+			assertEquals(0, queue.enqueueAll("run-1", Arrays.asList(theirs)));
+
+			// The jobs which belong to no one are taken by any owner.
+			assertEquals(mine.getKey(), queue.take("run-1").getKey());
+			assertEquals(orphan.getKey(), queue.take("run-1").getKey());
+			assertNull(queue.take("run-1"));
+
+			queue.release("run-2");
+			assertEquals(theirs.getKey(), queue.take("run-1").getKey());
+			assertEquals(3, queue.unfinished());
+		}
+	}
+
+	@Test
+	public void dropsTheJobsDoneOfChangedFiles() throws IOException {
+		TransferJob kept = upload("kept.txt", 0);
+		TransferJob deleted = upload("deleted.txt", 0);
+		TransferJob modified = upload("modified.txt", 0);
+
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			queue.enqueueAll(Arrays.asList(kept, deleted, modified));
+			for (int i = 0; i < 3; i++) {
+				TransferJob job = queue.take();
+				queue.start(job, null);
+				queue.complete(job);
+			}
+		}
+		new java.io.File(deleted.getLocalPath()).delete();
+		new java.io.File(modified.getLocalPath()).setLastModified(System.currentTimeMillis() + 60000);
+
+		new TransferQueue(logFile).close();
+		List<String> lines = lines();
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0).contains("kept.txt"));
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			assertFalse(queue.enqueue(kept));
+		}
+	}
+
+	@Test
+	public void ignoresATornLastLine() throws IOException {
+		TransferJob job = upload("job.txt", 0);
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			queue.enqueue(job);
+		}
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8)) {
+			writer.write("{\"op\":\"done\",\"key\":\"" + job.getKey().substring(0, 10));
+		}
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			assertEquals(1, queue.unfinished());
+			assertEquals(job.getKey(), queue.take().getKey());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesASecondQueueOnTheSameLog() throws IOException {
+		try (TransferQueue queue = new TransferQueue(logFile)) {
+			new TransferQueue(logFile).close();
+		}
+	}
+
+	/*********************
+	 * Utility functions *
+	 *********************/
+
+	private TransferJob upload(String name, int priority) throws IOException {
+		return upload(name, priority, 100);
+	}
+
+	private TransferJob upload(String name, int priority, int size) throws IOException {
+		java.io.File file = new java.io.File(directory, name);
+		Files.write(file.toPath(), new byte[size]);
+		return TransferJob.upload(file, "parentID", "text/plain", priority);
+	}
+
+	private List<String> lines() throws IOException {
+		return Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+	}
+
+}